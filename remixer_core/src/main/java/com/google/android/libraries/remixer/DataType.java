@@ -76,7 +76,7 @@ public class DataType<RuntimeT, SerializableT> {
       Class<RuntimeT> runtimeType,
       Class<SerializableT> serializableType,
       ValueConverter<RuntimeT, SerializableT> converter) {
-    this.name = name;
+    this.name = name.intern();
     this.runtimeType = runtimeType;
     this.serializableType = serializableType;
     this.converter = converter;
@@ -16,6 +16,7 @@
 
 package com.google.android.libraries.remixer;
 
+import com.google.android.libraries.remixer.sync.BatchingSynchronizationMechanism;
 import com.google.android.libraries.remixer.sync.LocalValueSyncing;
 import com.google.android.libraries.remixer.sync.SynchronizationMechanism;
 import java.util.ArrayList;
@@ -66,6 +67,11 @@ public class Remixer {
    */
   private SynchronizationMechanism synchronizationMechanism;
 
+  /**
+   * How many calls to {@link #beginBatch()} have not been matched by {@link #endBatch()} yet.
+   */
+  private int batchDepth;
+
   /**
    * Gets the singleton for Remixer.
    *
@@ -217,6 +223,45 @@ public class Remixer {
     return list;
   }
 
+  /**
+   * Starts a batch of changes, such as applying a preset. If the synchronization mechanism is a
+   * {@link BatchingSynchronizationMechanism} it commits all the changes made until the matching
+   * {@link #endBatch()} as one group, for example in a single atomic write to storage.
+   *
+   * <p>Batches can be nested, only the outermost one is committed. Always pair this with
+   * {@link #endBatch()} in a finally block:
+   * <pre>{@code
+   * remixer.beginBatch();
+   * try {
+   *   colorVariable.setValue(color);
+   *   titleVariable.setValue(title);
+   * } finally {
+   *   remixer.endBatch();
+   * }
+   * }</pre>
+   */
+  public void beginBatch() {
+    if (batchDepth++ == 0
+        && synchronizationMechanism instanceof BatchingSynchronizationMechanism) {
+      ((BatchingSynchronizationMechanism) synchronizationMechanism).onBatchStarted();
+    }
+  }
+
+  /**
+   * Finishes a batch started with {@link #beginBatch()}.
+   *
+   * @throws IllegalStateException if there is no batch in progress.
+   */
+  public void endBatch() {
+    if (batchDepth == 0) {
+      throw new IllegalStateException("endBatch called without a matching beginBatch");
+    }
+    if (--batchDepth == 0
+        && synchronizationMechanism instanceof BatchingSynchronizationMechanism) {
+      ((BatchingSynchronizationMechanism) synchronizationMechanism).onBatchFinished();
+    }
+  }
+
   /**
    * Notifies the synchronization mechanism that this variable's value has changed.
    */
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A read-only snapshot of {@link SerializableRemixerContents} that is memory-mapped from a file and
+ * only decodes the stored variables that are actually looked up.
+ *
+ * <p>This is meant for large configurations that are baked into a build and would otherwise have
+ * to be parsed in full on every launch. Opening a snapshot only maps the file and validates its
+ * header; {@link #getItem(String)} binary searches the key index directly in the mapped buffer and
+ * decodes that one entry.
+ *
+ * <p>The file format (big endian) is:
+ * <ul>
+ *   <li>A header: the magic number {@link #MAGIC}, the format {@link #VERSION} and the number of
+ *   entries, all of them ints.</li>
+ *   <li>An index with one record per entry, sorted by the UTF-8 bytes of the key. Each record is
+ *   four ints: key offset, key length, value offset and value length. Offsets are absolute.</li>
+ *   <li>The data: the UTF-8 bytes of each key followed by the UTF-8 JSON of its stored variable,
+ *   in the same format {@link GsonProvider} uses.</li>
+ * </ul>
+ *
+ * <p>Snapshots are created with {@link #write(SerializableRemixerContents, File)}. Instances are
+ * safe to use from several threads. To start an app with the values in a snapshot, use
+ * {@link com.google.android.libraries.remixer.sync.SnapshotValueSyncing}.
+ */
+public class MappedSnapshot {
+
+  /**
+   * Magic number at the start of every snapshot file, "RMXS" in ASCII.
+   */
+  public static final int MAGIC = 0x524D5853;
+
+  /**
+   * Version of the snapshot file format.
+   */
+  public static final int VERSION = 1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int HEADER_SIZE = 3 * 4;
+  private static final int INDEX_RECORD_SIZE = 4 * 4;
+
+  private final ByteBuffer buffer;
+  private final int size;
+
+  private MappedSnapshot(ByteBuffer buffer, int size) {
+    this.buffer = buffer;
+    this.size = size;
+  }
+
+  /**
+   * Maps the snapshot in {@code file} into memory.
+   *
+   * @throws IOException if the file cannot be read or is not a valid snapshot.
+   */
+  public static MappedSnapshot open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long length = channel.size();
+      if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+        throw new IOException("Invalid snapshot file size " + length);
+      }
+      // The mapping stays valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      buffer.order(ByteOrder.BIG_ENDIAN);
+      return fromBuffer(buffer);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Reads a snapshot from a buffer that holds the whole snapshot file.
+   *
+   * @throws IOException if {@code buffer} does not contain a valid snapshot.
+   */
+  static MappedSnapshot fromBuffer(ByteBuffer buffer) throws IOException {
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a Remixer snapshot file");
+    }
+    int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException(String.format(
+          Locale.getDefault(), "Unsupported snapshot version %d, expected %d", version, VERSION));
+    }
+    int size = buffer.getInt(8);
+    if (size < 0 || HEADER_SIZE + (long) size * INDEX_RECORD_SIZE > buffer.limit()) {
+      throw new IOException("Snapshot index does not fit in the file");
+    }
+    // Checking every record once here keeps lookups from reading outside the buffer. It only reads
+    // the index, no keys or values.
+    int dataStart = recordOffset(size);
+    for (int i = 0; i < size; i++) {
+      int record = recordOffset(i);
+      if (!isInData(buffer.getInt(record), buffer.getInt(record + 4), dataStart, buffer.limit())
+          || !isInData(
+              buffer.getInt(record + 8), buffer.getInt(record + 12), dataStart, buffer.limit())) {
+        throw new IOException(String.format(
+            Locale.getDefault(), "Snapshot index record %d points outside the file", i));
+      }
+    }
+    return new MappedSnapshot(buffer, size);
+  }
+
+  /**
+   * Returns whether the range of {@code length} bytes at {@code offset} is between
+   * {@code dataStart} and {@code limit}.
+   */
+  private static boolean isInData(int offset, int length, int dataStart, int limit) {
+    return offset >= dataStart && length >= 0 && (long) offset + length <= limit;
+  }
+
+  /**
+   * Returns the number of stored variables in this snapshot.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns whether this snapshot contains a stored variable for {@code key}.
+   */
+  public boolean containsKey(String key) {
+    return find(key.getBytes(UTF_8)) >= 0;
+  }
+
+  /**
+   * Decodes and returns the stored variable for {@code key}, or null if there is none. The index
+   * was checked when the snapshot was opened, so this never reads outside the file.
+   *
+   * @throws JsonParseException if the stored variable cannot be parsed.
+   */
+  public StoredVariable<?> getItem(String key) {
+    int index = find(key.getBytes(UTF_8));
+    if (index < 0) {
+      return null;
+    }
+    int record = recordOffset(index);
+    String json = readString(buffer.getInt(record + 8), buffer.getInt(record + 12));
+    return GsonProvider.getInstance().fromJson(json, StoredVariable.class);
+  }
+
+  /**
+   * Returns all the keys in this snapshot, in index order.
+   */
+  public List<String> keys() {
+    List<String> keys = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      int record = recordOffset(i);
+      keys.add(readString(buffer.getInt(record), buffer.getInt(record + 4)));
+    }
+    return keys;
+  }
+
+  /**
+   * Decodes the whole snapshot. This defeats the purpose of mapping it, use
+   * {@link com.google.android.libraries.remixer.sync.SnapshotValueSyncing} to only decode the
+   * values of the variables that are added.
+   */
+  public SerializableRemixerContents toContents() {
+    SerializableRemixerContents contents = new SerializableRemixerContents();
+    for (String key : keys()) {
+      contents.addItem(getItem(key));
+    }
+    return contents;
+  }
+
+  /**
+   * Binary searches the index for {@code key}, returns the index of the entry or -1 if it is not
+   * in the snapshot.
+   */
+  private int find(byte[] key) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int record = recordOffset(middle);
+      int comparison = compareKey(buffer.getInt(record), buffer.getInt(record + 4), key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compares the key stored at {@code offset} in the buffer with {@code key}, byte by byte and
+   * without copying it.
+   */
+  private int compareKey(int offset, int length, byte[] key) {
+    int commonLength = Math.min(length, key.length);
+    for (int i = 0; i < commonLength; i++) {
+      int comparison = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return length - key.length;
+  }
+
+  private String readString(int offset, int length) {
+    byte[] bytes = new byte[length];
+    // Absolute reads on a duplicate so concurrent readers don't share a position.
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static int recordOffset(int index) {
+    return HEADER_SIZE + index * INDEX_RECORD_SIZE;
+  }
+
+  /**
+   * Writes {@code contents} into {@code file} as a snapshot that can be read with
+   * {@link #open(File)}.
+   */
+  public static void write(SerializableRemixerContents contents, File file) throws IOException {
+    Gson gson = GsonProvider.getInstance();
+    int size = contents.keySet().size();
+    byte[][] keys = new byte[size][];
+    int i = 0;
+    for (String key : contents.keySet()) {
+      keys[i++] = key.getBytes(UTF_8);
+    }
+    Arrays.sort(keys, new KeyComparator());
+
+    byte[][] values = new byte[size][];
+    int dataSize = 0;
+    for (i = 0; i < size; i++) {
+      String key = new String(keys[i], UTF_8);
+      values[i] = gson.toJson(contents.getItem(key), StoredVariable.class).getBytes(UTF_8);
+      dataSize += keys[i].length + values[i].length;
+    }
+
+    int indexEnd = recordOffset(size);
+    ByteBuffer buffer = ByteBuffer.allocate(indexEnd + dataSize).order(ByteOrder.BIG_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(size);
+    int dataOffset = indexEnd;
+    for (i = 0; i < size; i++) {
+      buffer.putInt(dataOffset).putInt(keys[i].length);
+      dataOffset += keys[i].length;
+      buffer.putInt(dataOffset).putInt(values[i].length);
+      dataOffset += values[i].length;
+    }
+    for (i = 0; i < size; i++) {
+      buffer.put(keys[i]).put(values[i]);
+    }
+
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(buffer.array());
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /**
+   * Orders UTF-8 encoded keys by unsigned byte values, the order used by the snapshot index.
+   */
+  private static class KeyComparator implements Comparator<byte[]> {
+
+    @Override
+    public int compare(byte[] first, byte[] second) {
+      int commonLength = Math.min(first.length, second.length);
+      for (int i = 0; i < commonLength; i++) {
+        int comparison = (first[i] & 0xFF) - (second[i] & 0xFF);
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+      return first.length - second.length;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Decodes large serialized {@link SerializableRemixerContents} by splitting the top-level JSON
+ * object across a {@link ForkJoinPool} and decoding the {@link StoredVariable}s concurrently.
+ *
+ * <p>This is meant for importing snapshots with many thousands of variables (such as generated
+ * design-token sets). The result is the same as deserializing with {@link GsonProvider}: stored
+ * variables are merged in their original order through
+ * {@link SerializableRemixerContents#addItem(StoredVariable)}, so the same compatibility checks
+ * apply.
+ *
+ * <p>All data types (and codecs) must be registered before decoding, since they are read from
+ * several threads. On Android, {@link ForkJoinPool} is only available on API 21+.
+ */
+public class ParallelContentsDecoder {
+
+  /**
+   * Default number of entries under which a chunk is decoded serially instead of being split.
+   */
+  public static final int DEFAULT_THRESHOLD = 256;
+
+  private final ForkJoinPool pool;
+  private final int threshold;
+
+  /**
+   * Creates a decoder that runs on {@code pool} and splits the input into chunks of at most
+   * {@code threshold} entries.
+   */
+  public ParallelContentsDecoder(ForkJoinPool pool, int threshold) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("threshold must be positive");
+    }
+    this.pool = pool;
+    this.threshold = threshold;
+  }
+
+  public ParallelContentsDecoder(ForkJoinPool pool) {
+    this(pool, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Parses the JSON in {@code reader} and decodes it.
+   */
+  public SerializableRemixerContents decode(Reader reader) {
+    return decode(new JsonParser().parse(reader).getAsJsonObject());
+  }
+
+  /**
+   * Decodes all the stored variables in {@code json}, a JSON object mapping keys to serialized
+   * stored variables.
+   *
+   * @throws com.google.gson.JsonParseException if any of the stored variables cannot be parsed.
+   * @throws com.google.android.libraries.remixer.IncompatibleRemixerItemsWithSameKeyException if
+   *     two stored variables have the same key and incompatible configurations.
+   */
+  public SerializableRemixerContents decode(JsonObject json) {
+    List<JsonElement> entries = new ArrayList<>();
+    for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+      entries.add(entry.getValue());
+    }
+    StoredVariable<?>[] decoded = new StoredVariable<?>[entries.size()];
+    pool.invoke(new DecodeTask(entries, decoded, 0, entries.size()));
+    SerializableRemixerContents contents = new SerializableRemixerContents();
+    for (StoredVariable<?> variable : decoded) {
+      contents.addItem(variable);
+    }
+    return contents;
+  }
+
+  /**
+   * Decodes the entries in [{@code start}, {@code end}) into the same positions of
+   * {@code results}, splitting in halves while the range is larger than {@link #threshold}.
+   */
+  private class DecodeTask extends RecursiveTask<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<JsonElement> entries;
+    private final StoredVariable<?>[] results;
+    private final int start;
+    private final int end;
+
+    DecodeTask(List<JsonElement> entries, StoredVariable<?>[] results, int start, int end) {
+      this.entries = entries;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected Void compute() {
+      if (end - start <= threshold) {
+        Gson gson = GsonProvider.getInstance();
+        for (int i = start; i < end; i++) {
+          results[i] = gson.fromJson(entries.get(i), StoredVariable.class);
+        }
+        return null;
+      }
+      int middle = (start + end) >>> 1;
+      DecodeTask left = new DecodeTask(entries, results, start, middle);
+      DecodeTask right = new DecodeTask(entries, results, middle, end);
+      left.fork();
+      right.compute();
+      left.join();
+      return null;
+    }
+  }
+}
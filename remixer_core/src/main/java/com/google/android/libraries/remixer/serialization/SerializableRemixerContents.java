@@ -18,10 +18,13 @@ package com.google.android.libraries.remixer.serialization;
 
 import com.google.android.libraries.remixer.IncompatibleRemixerItemsWithSameKeyException;
 import com.google.android.libraries.remixer.Variable;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * A copy of the Remixer data structure in an easily serializable form.
@@ -29,9 +32,30 @@ import java.util.Set;
  * <p>This representation discards any runtime details (number of variables with the same key,
  * callbacks, etc) to just focus on data. This object will be serialized to Json and back to get the
  * full status of Remixer across the entire app.
+ *
+ * <p>A content hash is maintained incrementally as items are added and values are set. This makes
+ * {@link #hashCode()} constant time and lets {@link #equals(Object)} reject different contents
+ * without walking them. A 64-bit digest is also maintained for each of a fixed number of groups of
+ * keys (buckets), so {@link #getKeysWithDifferentContent(SerializableRemixerContents)} only has to
+ * look at the groups that changed. For this to hold, stored variables must only be modified
+ * through {@link #addItem(StoredVariable)} and {@link #setValue(StoredVariable)}.
+ *
+ * <p>Values are versioned with a Lamport clock. Every value set without a version is stamped with
+ * the next tick of this instance's clock and its origin ID, and the clock moves past every version
+ * it sees. Versioned values only replace values with an older version (see
+ * {@link StoredVariable#isNewerThan(StoredVariable)}), so changes from several sources can be
+ * applied in any order and every instance ends up with the same values.
  */
 public class SerializableRemixerContents {
 
+  /**
+   * Number of groups of keys to keep a content hash for. Must be a power of two.
+   */
+  private static final int BUCKET_COUNT = 32;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
   /**
    * Mapping from variable key to the variable's representation in Serializable format.
    *
@@ -46,8 +70,53 @@ public class SerializableRemixerContents {
    */
   private Map<String, StoredVariable> keyToDataMap;
 
+  /**
+   * Sum of the entry hashes (see {@link #entryHash(String, StoredVariable)}) of all the items. This
+   * is always equal to {@code keyToDataMap.hashCode()}.
+   */
+  private int contentHash;
+
+  /**
+   * Sum of the entry digests (see {@link #entryDigest(StoredVariable)}) of the items in each
+   * bucket, indexed by {@link #bucketFor(String)}.
+   */
+  private final long[] bucketDigests;
+
+  /**
+   * The keys in each bucket, indexed by {@link #bucketFor(String)}.
+   */
+  private final Set<String>[] bucketKeys;
+
+  /**
+   * Identifies this instance in the versions of the values it sets.
+   */
+  private final String originId;
+
+  /**
+   * The Lamport clock, the highest clock of any version set or seen so far.
+   */
+  private long clock;
+
+  /**
+   * Creates an empty instance with a random origin ID.
+   */
   public SerializableRemixerContents() {
+    this(UUID.randomUUID().toString());
+  }
+
+  /**
+   * Creates an empty instance that stamps the values it sets with {@code originId}, which must be
+   * unique among all the instances that exchange values.
+   */
+  @SuppressWarnings("unchecked")
+  public SerializableRemixerContents(String originId) {
+    this.originId = originId;
     keyToDataMap = new HashMap<>();
+    bucketDigests = new long[BUCKET_COUNT];
+    bucketKeys = new Set[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      bucketKeys[i] = new HashSet<>();
+    }
   }
 
   /**
@@ -65,9 +134,13 @@ public class SerializableRemixerContents {
    * <p>It only keeps one per key, as explained in {@link #keyToDataMap}
    */
   public void addItem(StoredVariable item) {
+    clock = Math.max(clock, item.clock);
     StoredVariable existingItem = keyToDataMap.get(item.key);
     if (existingItem == null) {
       keyToDataMap.put(item.key, item);
+      int bucket = bucketFor(item.key);
+      bucketKeys[bucket].add(item.key);
+      updateHash(bucket, entryHash(item.key, item), entryDigest(item));
     } else if (!existingItem.isCompatibleWith(item)) {
       throw new IncompatibleRemixerItemsWithSameKeyException(
           String.format(
@@ -83,13 +156,32 @@ public class SerializableRemixerContents {
   }
 
   public Set<String> keySet() {
-    return keyToDataMap.keySet();
+    return Collections.unmodifiableSet(keyToDataMap.keySet());
   }
 
+  /**
+   * Returns the stored variable for {@code key}, or null if there is none. The returned object is
+   * the one kept in this instance, so it must not be modified, otherwise the content hashes become
+   * stale. Use {@link #setValue(StoredVariable)} to change values.
+   */
   public StoredVariable getItem(String key) {
     return keyToDataMap.get(key);
   }
 
+  /**
+   * Returns the ID this instance stamps the values it sets with.
+   */
+  public String getOriginId() {
+    return originId;
+  }
+
+  /**
+   * Returns the current value of the Lamport clock.
+   */
+  public long getClock() {
+    return clock;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -101,13 +193,55 @@ public class SerializableRemixerContents {
 
     SerializableRemixerContents serializableRemixerContents = (SerializableRemixerContents) obj;
 
+    if (contentHash != serializableRemixerContents.contentHash
+        || keyToDataMap.size() != serializableRemixerContents.keyToDataMap.size()) {
+      return false;
+    }
     return keyToDataMap.equals(serializableRemixerContents.keyToDataMap);
-
   }
 
   @Override
   public int hashCode() {
-    return keyToDataMap.hashCode();
+    return contentHash;
+  }
+
+  /**
+   * Returns the keys whose stored variables differ between this and {@code other}, including keys
+   * that are only present in one of them.
+   *
+   * <p>Only the groups of keys whose digest or size differs are compared, so this is proportional
+   * to the number of changed groups rather than to the total number of keys. A changed group is
+   * only missed if its 64-bit digest collides, which is negligible for accidental changes.
+   */
+  public Set<String> getKeysWithDifferentContent(SerializableRemixerContents other) {
+    Set<String> result = new HashSet<>();
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      if (bucketDigests[bucket] == other.bucketDigests[bucket]
+          && bucketKeys[bucket].size() == other.bucketKeys[bucket].size()) {
+        continue;
+      }
+      addDifferentKeys(bucketKeys[bucket], this, other, result);
+      addDifferentKeys(other.bucketKeys[bucket], other, this, result);
+    }
+    return result;
+  }
+
+  /**
+   * Adds to {@code result} every key in {@code keys} whose stored variable in {@code contents} is
+   * not equal to the one in {@code other}.
+   */
+  private static void addDifferentKeys(
+      Set<String> keys,
+      SerializableRemixerContents contents,
+      SerializableRemixerContents other,
+      Set<String> result) {
+    for (String key : keys) {
+      StoredVariable mine = contents.keyToDataMap.get(key);
+      StoredVariable theirs = other.keyToDataMap.get(key);
+      if (mine == null ? theirs != null : !mine.equals(theirs)) {
+        result.add(key);
+      }
+    }
   }
 
   /**
@@ -125,8 +259,14 @@ public class SerializableRemixerContents {
    * Sets the value for the StoredVariable with key {@code storedVariable.key}. Must be called only
    * after calling {@link #addItem(Variable)} or {@link #addItem(StoredVariable)} for a variable
    * with this key.
+   *
+   * <p>If {@code storedVariable} is not versioned the value is set and stamped with the next clock
+   * tick and this instance's origin ID. Otherwise it is only set if its version is newer than the
+   * current one (last-writer-wins).
+   *
+   * @return whether the value was set.
    */
-  public void setValue(StoredVariable storedVariable) {
+  public boolean setValue(StoredVariable storedVariable) {
     StoredVariable existingStoredVariable = keyToDataMap.get(storedVariable.key);
     if (!existingStoredVariable.isCompatibleWith(storedVariable)) {
       throw new IncompatibleRemixerItemsWithSameKeyException(
@@ -138,6 +278,87 @@ public class SerializableRemixerContents {
               existingStoredVariable.dataType,
               storedVariable.dataType));
     }
+    long newClock;
+    String newOrigin;
+    if (storedVariable.clock == 0) {
+      newClock = ++clock;
+      newOrigin = originId;
+    } else {
+      clock = Math.max(clock, storedVariable.clock);
+      if (!storedVariable.isNewerThan(existingStoredVariable)) {
+        return false;
+      }
+      newClock = storedVariable.clock;
+      newOrigin = storedVariable.origin;
+    }
+    int bucket = bucketFor(existingStoredVariable.key);
+    updateHash(
+        bucket,
+        -entryHash(existingStoredVariable.key, existingStoredVariable),
+        -entryDigest(existingStoredVariable));
     existingStoredVariable.selectedValue = storedVariable.selectedValue;
+    existingStoredVariable.clock = newClock;
+    existingStoredVariable.origin = newOrigin;
+    updateHash(
+        bucket,
+        entryHash(existingStoredVariable.key, existingStoredVariable),
+        entryDigest(existingStoredVariable));
+    return true;
+  }
+
+  private void updateHash(int bucket, int hashDelta, long digestDelta) {
+    bucketDigests[bucket] += digestDelta;
+    contentHash += hashDelta;
+  }
+
+  /**
+   * The hash for a single item, this matches the hash of a {@link Map.Entry} so that
+   * {@link #contentHash} stays the same as the map's hash.
+   */
+  private static int entryHash(String key, StoredVariable variable) {
+    return key.hashCode() ^ variable.hashCode();
+  }
+
+  /**
+   * A 64-bit FNV-1a digest of the fields {@link StoredVariable#equals(Object)} compares, in their
+   * string form. Unlike {@link #entryHash(String, StoredVariable)}, which is built from 32-bit
+   * {@link String#hashCode()}s that are easy to collide, it is wide enough to tell groups of keys
+   * apart.
+   */
+  private static long entryDigest(StoredVariable variable) {
+    long digest = FNV_OFFSET_BASIS;
+    digest = digestString(digest, variable.key);
+    digest = digestString(digest, variable.title);
+    digest = digestString(digest, variable.dataType);
+    digest = digestValue(digest, variable.selectedValue);
+    digest = digestValue(digest, variable.limitedToValues);
+    digest = digestValue(digest, variable.minValue);
+    digest = digestValue(digest, variable.maxValue);
+    return digestValue(digest, variable.increment);
+  }
+
+  private static long digestValue(long digest, Object value) {
+    return digestString(digest, value != null ? value.toString() : null);
+  }
+
+  private static long digestString(long digest, String string) {
+    if (string == null) {
+      return mix(digest, -1);
+    }
+    // The length keeps consecutive fields from running into each other.
+    digest = mix(digest, string.length());
+    for (int i = 0; i < string.length(); i++) {
+      digest = mix(digest, string.charAt(i));
+    }
+    return digest;
+  }
+
+  private static long mix(long digest, int value) {
+    return (digest ^ value) * FNV_PRIME;
+  }
+
+  private static int bucketFor(String key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & (BUCKET_COUNT - 1);
   }
 }
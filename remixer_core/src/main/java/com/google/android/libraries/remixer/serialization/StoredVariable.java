@@ -31,6 +31,16 @@ import java.util.List;
  * <p>This is never used for anything other than storage and syncing and is meant to be converted to
  * a regular {@link com.google.android.libraries.remixer.Variable} as soon as it's completely
  * parsed.
+ *
+ * <p>Each stored variable may carry the version of its selected value: the Lamport clock of the
+ * change that set it and the ID of the Remixer instance (origin) that made it. Concurrent changes
+ * from different instances are resolved with last-writer-wins on (clock, origin), see
+ * {@link #isNewerThan(StoredVariable)}. The version is metadata about the value, it is not part of
+ * {@link #equals(Object)} or {@link #hashCode()}.
+ *
+ * <p>Copies sent to remote controllers may also carry the wall-clock time at which the change was
+ * made, used to trace how long changes take to arrive. It is not part of {@link #equals(Object)} or
+ * {@link #hashCode()} either.
  */
 public class StoredVariable<T> {
 
@@ -52,6 +62,12 @@ public class StoredVariable<T> {
    */
   public final static String RANGE_VARIABLE_CONSTRAINT = "__ConstraintTypeRange__";
 
+  /**
+   * The version of the format stored variables are persisted in. Increase it whenever the format
+   * changes, and register a {@link StoredVariableMigration} from the previous version.
+   */
+  public static final int SCHEMA_VERSION = 1;
+
   // Json dictionary keys to serialize this object
   public static final String KEY = "key";
   public static final String TITLE = "title";
@@ -62,6 +78,9 @@ public class StoredVariable<T> {
   public static final String MIN_VALUE = "minValue";
   public static final String MAX_VALUE = "maxValue";
   public static final String INCREMENT = "increment";
+  public static final String CLOCK = "clock";
+  public static final String ORIGIN = "origin";
+  public static final String TIMESTAMP = "timestamp";
 
   /**
    * The RemixerItem's key.
@@ -74,13 +93,18 @@ public class StoredVariable<T> {
   /**
    * The data type this variable represents, it's the string representation of one of the {@link
    * DataType}.
+   *
+   * <p>This is interned when set through {@link #setDataType(String)} or {@link #fromVariable}, so
+   * the same string is shared across all stored variables. It is still compared with
+   * {@code equals}, which is as fast for the same instance.
    */
   String dataType;
   /**
    * The constraintType on this variable.
    *
    * <p>If this is a regular {@link Variable} it's "none", if it's an {@link ItemListVariable} it's
-   * "list", and if it is a {@link RangeVariable} it's "range".
+   * "list", and if it is a {@link RangeVariable} it's "range". Like {@link #dataType}, this is
+   * interned.
    */
   String constraintType;
 
@@ -108,6 +132,22 @@ public class StoredVariable<T> {
    * The increment value for the {@link com.google.android.libraries.remixer.RangeVariable}
    */
   T increment;
+  /**
+   * The Lamport clock of the change that set {@link #selectedValue}, or 0 if the value is not
+   * versioned (for example because it comes from a peer that does not version values).
+   */
+  long clock;
+  /**
+   * The ID of the Remixer instance that set {@link #selectedValue}, used to order changes with the
+   * same clock. Null if the value is not versioned.
+   */
+  String origin;
+  /**
+   * When the change that set {@link #selectedValue} was sent, in milliseconds since the epoch
+   * according to the sender's clock, or 0 if unknown. It is only sent to remote controllers, never
+   * persisted.
+   */
+  long timestamp;
 
   public String getKey() {
     return key;
@@ -130,7 +170,7 @@ public class StoredVariable<T> {
   }
 
   public void setConstraintType(String constraintType) {
-    this.constraintType = constraintType;
+    this.constraintType = intern(constraintType);
   }
 
   public String getDataType() {
@@ -138,7 +178,7 @@ public class StoredVariable<T> {
   }
 
   public void setDataType(String dataType) {
-    this.dataType = dataType;
+    this.dataType = intern(dataType);
   }
 
   public T getSelectedValue() {
@@ -181,6 +221,45 @@ public class StoredVariable<T> {
     this.increment = increment;
   }
 
+  public long getClock() {
+    return clock;
+  }
+
+  public void setClock(long clock) {
+    this.clock = clock;
+  }
+
+  public String getOrigin() {
+    return origin;
+  }
+
+  public void setOrigin(String origin) {
+    this.origin = origin;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Returns whether the change that set this variable's value wins over the one that set
+   * {@code other}'s under last-writer-wins: it has a greater clock, or the same clock and a greater
+   * origin. A versioned value always wins over one that is not versioned.
+   */
+  public boolean isNewerThan(StoredVariable<?> other) {
+    if (clock != other.clock) {
+      return clock > other.clock;
+    }
+    if (origin == null || other.origin == null) {
+      return origin != null;
+    }
+    return origin.compareTo(other.origin) > 0;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -213,7 +292,7 @@ public class StoredVariable<T> {
     if (!key.equals(variable.key)) {
       return false;
     }
-    if (!dataType.equals(variable.dataType)) {
+    if (dataType != null ? !dataType.equals(variable.dataType) : variable.dataType != null) {
       return false;
     }
     if (limitedToValues != null
@@ -229,6 +308,23 @@ public class StoredVariable<T> {
     return increment != null ? increment.equals(variable.increment) : variable.increment == null;
   }
 
+  /**
+   * Checks whether this stored variable is defined exactly like the argument: same configuration
+   * and same title and constraint type. Two stored variables with the same definition only differ
+   * in their value and its version, so a sync backend that already sent one only has to send the
+   * value of the other.
+   */
+  public boolean hasSameDefinitionAs(StoredVariable<?> variable) {
+    if (!isCompatibleWith(variable)) {
+      return false;
+    }
+    if (title != null ? !title.equals(variable.title) : variable.title != null) {
+      return false;
+    }
+    return constraintType != null
+        ? constraintType.equals(variable.constraintType) : variable.constraintType == null;
+  }
+
   @Override
   public int hashCode() {
     int result = key.hashCode();
@@ -262,7 +358,14 @@ public class StoredVariable<T> {
     }
     storedVariable.key = item.getKey();
     storedVariable.title = item.getTitle();
-    storedVariable.constraintType = item.getSerializableConstraints();
+    storedVariable.constraintType = intern(item.getSerializableConstraints());
     return storedVariable;
   }
+
+  /**
+   * Returns the canonical representation of {@code string}, or null if it is null.
+   */
+  private static String intern(String string) {
+    return string != null ? string.intern() : null;
+  }
 }
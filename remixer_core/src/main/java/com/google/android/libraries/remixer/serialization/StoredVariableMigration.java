@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Upgrades the JSON representation of a single stored variable from one schema version to the
+ * next one. Register implementations with
+ * {@link StoredVariableMigrations#registerMigration(StoredVariableMigration)}.
+ */
+public interface StoredVariableMigration {
+
+  /**
+   * Returns the schema version this migration upgrades from. It produces records of the version
+   * right after it.
+   */
+  int getFromVersion();
+
+  /**
+   * Returns {@code storedVariable}, stored under {@code key}, upgraded to the next schema version,
+   * or null if it cannot be upgraded and has to be dropped. May modify {@code storedVariable}.
+   */
+  JsonObject migrate(String key, JsonObject storedVariable);
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.gson.JsonObject;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link StoredVariableMigration}s used to upgrade persisted stored variables to
+ * {@link StoredVariable#SCHEMA_VERSION}.
+ *
+ * <p>Migrations run once per record when persisted state written with an older schema version is
+ * loaded, so that regular deserialization only ever has to deal with the current format.
+ */
+public final class StoredVariableMigrations {
+
+  /**
+   * Migrations keyed by the schema version they upgrade from.
+   */
+  private static final Map<Integer, StoredVariableMigration> migrations =
+      new ConcurrentHashMap<>();
+
+  private StoredVariableMigrations() {}
+
+  /**
+   * Registers a migration. There can only be one migration from each schema version.
+   */
+  public static void registerMigration(StoredVariableMigration migration) {
+    if (migrations.containsKey(migration.getFromVersion())) {
+      throw new IllegalStateException(
+          "There already is a migration from schema version " + migration.getFromVersion());
+    }
+    migrations.put(migration.getFromVersion(), migration);
+  }
+
+  /**
+   * Upgrades {@code storedVariable}, stored under {@code key} with schema version
+   * {@code fromVersion}, to the current schema version. Returns null if one of the migrations
+   * dropped it.
+   *
+   * @throws IllegalStateException if there is no migration for any of the versions in between.
+   */
+  public static JsonObject migrate(String key, JsonObject storedVariable, int fromVersion) {
+    JsonObject result = storedVariable;
+    for (int version = fromVersion; version < StoredVariable.SCHEMA_VERSION && result != null;
+        version++) {
+      StoredVariableMigration migration = migrations.get(version);
+      if (migration == null) {
+        throw new IllegalStateException(String.format(
+            Locale.getDefault(),
+            "No migration registered from schema version %d, cannot upgrade to %d",
+            version,
+            StoredVariable.SCHEMA_VERSION));
+      }
+      result = migration.migrate(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Visible only for testing. Do not use.
+   */
+  public static void clearMigrations() {
+    migrations.clear();
+  }
+}
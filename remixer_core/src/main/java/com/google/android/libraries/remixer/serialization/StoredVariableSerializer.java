@@ -34,6 +34,9 @@ import java.lang.reflect.Type;
  * {@link StoredVariable} acts as an intermediate format for serialization between a regular Remixer
  * Item and Json. Having this serializer and deserializer in the middle allows the same class to
  * work for serializing several data types, having a converter for special cases (like Color).
+ *
+ * <p>The converter for the variable's data type handles its contents. The version of the value
+ * (clock and origin) and its timestamp are handled here, and only written when they are set.
  */
 class StoredVariableSerializer
     implements JsonSerializer<StoredVariable>, JsonDeserializer<StoredVariable> {
@@ -43,36 +46,52 @@ class StoredVariableSerializer
       JsonElement json, Type typeOfT, JsonDeserializationContext context)
       throws JsonParseException {
     JsonObject object = json.getAsJsonObject();
-    JsonPrimitive jsonDataType = object.getAsJsonPrimitive(StoredVariable.DATA_TYPE);
-    String dataType = jsonDataType.getAsString();
-    StoredVariable variable = null;
-    for (DataType type : Remixer.getInstance().getRegisteredDataTypes()) {
-      if (dataType.equals(type.getName())) {
-        variable = type.getConverter().deserialize(json);
-        break;
-      }
+    StoredVariable variable = deserializeContents(object);
+    JsonPrimitive jsonClock = object.getAsJsonPrimitive(StoredVariable.CLOCK);
+    if (jsonClock != null) {
+      variable.clock = jsonClock.getAsLong();
+      JsonPrimitive jsonOrigin = object.getAsJsonPrimitive(StoredVariable.ORIGIN);
+      variable.origin = jsonOrigin != null ? jsonOrigin.getAsString() : null;
+    }
+    JsonPrimitive jsonTimestamp = object.getAsJsonPrimitive(StoredVariable.TIMESTAMP);
+    if (jsonTimestamp != null) {
+      variable.timestamp = jsonTimestamp.getAsLong();
     }
-    if (variable == null) {
+    return variable;
+  }
+
+  private StoredVariable deserializeContents(JsonObject object) {
+    JsonPrimitive jsonDataType = object.getAsJsonPrimitive(StoredVariable.DATA_TYPE);
+    DataType type = Remixer.getDataType(jsonDataType.getAsString());
+    if (type == null) {
       // Unknown data type! Throw an exception!
       throw new JsonParseException("Unknown data type for variable, cannot parse.");
     }
-    return variable;
+    return type.getConverter().deserialize(object);
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public JsonElement serialize(
       StoredVariable src, Type typeOfSrc, JsonSerializationContext context) {
-    ValueConverter converter = null;
-    for (DataType type : Remixer.getInstance().getRegisteredDataTypes()) {
-      if (src.dataType.equals(type.getName())) {
-        converter = type.getConverter();
-        break;
+    JsonElement element = serializeContents(src);
+    if (src.clock != 0 && element.isJsonObject()) {
+      element.getAsJsonObject().addProperty(StoredVariable.CLOCK, src.clock);
+      if (src.origin != null) {
+        element.getAsJsonObject().addProperty(StoredVariable.ORIGIN, src.origin);
       }
     }
-    if (converter == null) {
+    if (src.timestamp != 0 && element.isJsonObject()) {
+      element.getAsJsonObject().addProperty(StoredVariable.TIMESTAMP, src.timestamp);
+    }
+    return element;
+  }
+
+  @SuppressWarnings("unchecked")
+  private JsonElement serializeContents(StoredVariable src) {
+    DataType type = Remixer.getDataType(src.dataType);
+    if (type == null) {
       throw new UnsupportedOperationException("unknown data type " + src.dataType);
     }
-    return converter.serialize(src);
+    return type.getConverter().serialize(src);
   }
 }
@@ -34,12 +34,13 @@ import java.util.ArrayList;
 public abstract class ValueConverter<RuntimeType, SerializableType> {
 
   /**
-   * The data type this converter is used for.
+   * The data type this converter is used for, interned so that all the stored variables it creates
+   * share it.
    */
   protected String dataType;
 
   public ValueConverter(String dataType) {
-    this.dataType = dataType;
+    this.dataType = dataType.intern();
   }
 
   /**
@@ -76,7 +77,7 @@ public abstract class ValueConverter<RuntimeType, SerializableType> {
     StoredVariable<SerializableType> result = new StoredVariable<>();
     JsonObject object = json.getAsJsonObject();
     result.selectedValue = parseValue(object.get(StoredVariable.SELECTED_VALUE));
-    result.constraintType = object.get(StoredVariable.CONSTRAINT_TYPE).getAsString();
+    result.constraintType = object.get(StoredVariable.CONSTRAINT_TYPE).getAsString().intern();
 
     if (StoredVariable.ITEM_LIST_VARIABLE_CONSTRAINT.equals(result.constraintType)) {
       deserializeLimitedToValues(result, object.get(StoredVariable.LIMITED_TO_VALUES));
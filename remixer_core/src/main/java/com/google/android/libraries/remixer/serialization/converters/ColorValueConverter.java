@@ -16,28 +16,56 @@
 
 package com.google.android.libraries.remixer.serialization.converters;
 
-import com.google.android.libraries.remixer.serialization.GsonProvider;
 import com.google.android.libraries.remixer.serialization.SerializedColor;
 import com.google.android.libraries.remixer.serialization.ValueConverter;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 /**
  * A value converter for color values.
+ *
+ * <p>Colors are read and written component by component instead of going through Gson's
+ * reflection-based serialization of {@link SerializedColor}.
  */
 public class ColorValueConverter extends ValueConverter<Integer, SerializedColor> {
 
+  // Json dictionary keys for each of the color components.
+  private static final String ALPHA = "a";
+  private static final String RED = "r";
+  private static final String GREEN = "g";
+  private static final String BLUE = "b";
+
   public ColorValueConverter(String dataType) {
     super(dataType);
   }
 
   @Override
   public SerializedColor parseValue(JsonElement element) {
-    return GsonProvider.getInstance().fromJson(element, SerializedColor.class);
+    JsonObject object = element.getAsJsonObject();
+    SerializedColor color = new SerializedColor();
+    color.setA(getComponent(object, ALPHA));
+    color.setR(getComponent(object, RED));
+    color.setG(getComponent(object, GREEN));
+    color.setB(getComponent(object, BLUE));
+    return color;
   }
 
   @Override
   public JsonElement valueToJson(SerializedColor value) {
-    return GsonProvider.getInstance().toJsonTree(value);
+    JsonObject object = new JsonObject();
+    object.addProperty(ALPHA, value.getA());
+    object.addProperty(RED, value.getR());
+    object.addProperty(GREEN, value.getG());
+    object.addProperty(BLUE, value.getB());
+    return object;
+  }
+
+  /**
+   * Returns the color component named {@code name} in {@code object}, or 0 if it's missing.
+   */
+  private static int getComponent(JsonObject object, String name) {
+    JsonElement component = object.get(name);
+    return component == null ? 0 : component.getAsInt();
   }
 
   @Override
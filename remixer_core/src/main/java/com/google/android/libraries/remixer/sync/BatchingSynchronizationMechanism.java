@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.Remixer;
+
+/**
+ * A {@link SynchronizationMechanism} that can commit the changes made during a batch (see
+ * {@link Remixer#beginBatch()}) as one group. Remixer only notifies mechanisms that implement this
+ * interface of batches, all others get every change as it happens.
+ */
+public interface BatchingSynchronizationMechanism extends SynchronizationMechanism {
+
+  /**
+   * Called when a batch of changes starts, see {@link Remixer#beginBatch()}.
+   *
+   * <p>Until {@link #onBatchFinished()} is called, implementations may hold on to the changes they
+   * would otherwise persist or sync right away, so that they can be committed together.
+   */
+  void onBatchStarted();
+
+  /**
+   * Called when a batch of changes is finished, see {@link Remixer#endBatch()}. All the changes
+   * made during the batch should be persisted or synced as one group.
+   */
+  void onBatchFinished();
+}
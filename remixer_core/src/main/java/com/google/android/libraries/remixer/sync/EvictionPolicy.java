@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which persisted values a {@link KeyValueStoreSyncing} should drop when loading, because
+ * no variable has been added with their key for a long time (for example because the key was
+ * renamed or removed from the code).
+ *
+ * <p>Every time an instance is created counts as a launch. For each persisted key, the launch
+ * number and the time at which a variable with that key was last added are kept in a separate
+ * metadata store. A value is evicted once no variable has been added with its key for more than
+ * {@code maxUnusedLaunches} launches <em>and</em> for more than {@code maxUnusedMillis}
+ * milliseconds. Requiring both keeps values for screens that are rarely opened from being evicted
+ * just because the app is launched often. Either limit can be set to 0 to only use the other one.
+ *
+ * <p>Values that were persisted before eviction was enabled start counting from the first launch
+ * that uses it.
+ */
+public class EvictionPolicy {
+
+  /**
+   * Metadata key under which the launch count is stored. It cannot clash with the metadata for
+   * variables since those keys are prefixed with {@link #KEY_PREFIX}.
+   */
+  private static final String LAUNCH_COUNT_KEY = "launchCount";
+  private static final String KEY_PREFIX = "key:";
+  private static final String SEPARATOR = ",";
+
+  private final KeyValueStore metadataStore;
+  private final int maxUnusedLaunches;
+  private final long maxUnusedMillis;
+  private final int launch;
+  private final long launchTimeMillis;
+
+  /**
+   * Launch in which each persisted key was last used, keyed by variable key.
+   */
+  private final Map<String, Integer> lastUsedLaunches = new HashMap<>();
+
+  /**
+   * Keys of all the variables added during this launch.
+   */
+  private final Set<String> usedKeys = new HashSet<>();
+
+  /**
+   * Creates an eviction policy that keeps its metadata in {@code metadataStore}, which must not be
+   * the same store the values are persisted to, and counts a new launch.
+   */
+  public EvictionPolicy(KeyValueStore metadataStore, int maxUnusedLaunches, long maxUnusedMillis) {
+    this(metadataStore, maxUnusedLaunches, maxUnusedMillis, System.currentTimeMillis());
+  }
+
+  /**
+   * Visible only for testing, use {@link #EvictionPolicy(KeyValueStore, int, long)}.
+   */
+  EvictionPolicy(
+      KeyValueStore metadataStore, int maxUnusedLaunches, long maxUnusedMillis, long nowMillis) {
+    if (maxUnusedLaunches < 0 || maxUnusedMillis < 0) {
+      throw new IllegalArgumentException("Eviction limits cannot be negative");
+    }
+    this.metadataStore = metadataStore;
+    this.maxUnusedLaunches = maxUnusedLaunches;
+    this.maxUnusedMillis = maxUnusedMillis;
+    this.launchTimeMillis = nowMillis;
+    String launchCount = metadataStore.get(LAUNCH_COUNT_KEY);
+    launch = launchCount != null ? Integer.parseInt(launchCount) + 1 : 0;
+    metadataStore.putAll(Collections.singletonMap(LAUNCH_COUNT_KEY, Integer.toString(launch)));
+  }
+
+  /**
+   * Returns which of {@code storedKeys} have to be evicted, and forgets about them. Also drops the
+   * metadata for keys that are no longer stored.
+   */
+  synchronized Set<String> selectEvictedKeys(Collection<String> storedKeys) {
+    Map<String, String> metadata = metadataStore.getAll();
+    metadata.remove(LAUNCH_COUNT_KEY);
+    Set<String> evictedKeys = new HashSet<>();
+    Map<String, String> updatedMetadata = new HashMap<>();
+    for (String key : storedKeys) {
+      String entry = metadata.remove(KEY_PREFIX + key);
+      if (entry == null || usedKeys.contains(key)) {
+        // Either it was persisted before eviction was enabled or it is already in use.
+        updatedMetadata.put(KEY_PREFIX + key, encodeEntry());
+        lastUsedLaunches.put(key, launch);
+        continue;
+      }
+      String[] parts = entry.split(SEPARATOR);
+      int lastUsedLaunch = Integer.parseInt(parts[0]);
+      long lastUsedMillis = Long.parseLong(parts[1]);
+      if (launch - lastUsedLaunch > maxUnusedLaunches
+          && launchTimeMillis - lastUsedMillis > maxUnusedMillis) {
+        evictedKeys.add(key);
+        metadata.put(KEY_PREFIX + key, entry);
+      } else {
+        lastUsedLaunches.put(key, lastUsedLaunch);
+      }
+    }
+    if (!updatedMetadata.isEmpty()) {
+      metadataStore.putAll(updatedMetadata);
+    }
+    // Whatever is left is either evicted or metadata for keys that are no longer stored.
+    if (!metadata.isEmpty()) {
+      metadataStore.removeAll(metadata.keySet());
+    }
+    return evictedKeys;
+  }
+
+  /**
+   * Records that a variable with {@code key} was added during this launch.
+   */
+  synchronized void onRegistered(String key) {
+    usedKeys.add(key);
+    Integer lastUsedLaunch = lastUsedLaunches.get(key);
+    if (lastUsedLaunch != null && lastUsedLaunch != launch) {
+      lastUsedLaunches.put(key, launch);
+      metadataStore.putAll(Collections.singletonMap(KEY_PREFIX + key, encodeEntry()));
+    }
+  }
+
+  /**
+   * Records that values for {@code keys} were persisted.
+   */
+  synchronized void onPersisted(Collection<String> keys) {
+    Map<String, String> updatedMetadata = new HashMap<>();
+    for (String key : keys) {
+      Integer lastUsedLaunch = lastUsedLaunches.put(key, launch);
+      if (lastUsedLaunch == null || lastUsedLaunch != launch) {
+        updatedMetadata.put(KEY_PREFIX + key, encodeEntry());
+      }
+    }
+    if (!updatedMetadata.isEmpty()) {
+      metadataStore.putAll(updatedMetadata);
+    }
+  }
+
+  /**
+   * Records that the values for {@code keys} were removed from the store.
+   */
+  synchronized void onRemoved(Collection<String> keys) {
+    Set<String> metadataKeys = new HashSet<>();
+    for (String key : keys) {
+      lastUsedLaunches.remove(key);
+      metadataKeys.add(KEY_PREFIX + key);
+    }
+    metadataStore.removeAll(metadataKeys);
+  }
+
+  private String encodeEntry() {
+    return launch + SEPARATOR + launchTimeMillis;
+  }
+}
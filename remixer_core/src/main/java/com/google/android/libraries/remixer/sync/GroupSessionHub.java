@@ -0,0 +1,471 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.SerializableRemixerContents;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.gson.Gson;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a group session, in which one remote controller drives the variables of many devices at
+ * once. Every device and the controller connect to the hub over their own {@link RemoteTransport},
+ * and the hub keeps the session's values and fans changes out to all of them.
+ *
+ * <p>The session's values are resolved last-writer-wins on their version (see
+ * {@link SerializableRemixerContents#setValue(StoredVariable)}), so a change from the controller or
+ * from any device only goes out if it is newer than what the session has. Changes are coalesced
+ * per key and sent once per flush delay, as a single send per device, and each device only gets
+ * the values it does not have yet. The values sent in a flush are copied once and shared by all
+ * the devices.
+ *
+ * <p>Devices acknowledge the values they apply by sending them back, see
+ * {@link RemoteValueSyncing#setAcknowledgesRemoteChanges(boolean)}. A value a device sends that is
+ * not newer than the session's is taken as an acknowledgement, and the time from sending a value to
+ * its acknowledgement is recorded in the device's {@link DeviceStats}. All methods are thread
+ * safe.
+ *
+ * <p>The hub only relays between transports. Neither {@code FirebaseRemoteControllerSyncer} nor
+ * {@link LanRemoteControlServer} starts a group session by themselves: whatever hosts the session
+ * creates the hub and adds a transport for the controller and one for each device.
+ */
+public class GroupSessionHub {
+
+  private static final List<String> NO_KEYS = Collections.emptyList();
+
+  private final RemoteTransport controllerTransport;
+  private final RemoteWriteBuffer.Scheduler scheduler;
+  private final long flushDelayMs;
+  private final Gson gson = GsonProvider.getInstance();
+
+  /**
+   * The session's values, stamping the changes that come without a version.
+   */
+  private final SerializableRemixerContents session = new SerializableRemixerContents();
+  private final Map<String, Device> devices = new LinkedHashMap<>();
+  /**
+   * Keys changed since the last flush, which may have to be sent to the devices.
+   */
+  private final Set<String> changedKeys = new HashSet<>();
+  /**
+   * Keys changed by devices since the last flush, which have to be sent to the controller.
+   */
+  private final Set<String> controllerKeys = new HashSet<>();
+  private boolean flushScheduled;
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  private final RemoteTransport.Listener controllerListener = new RemoteTransport.Listener() {
+    @Override
+    public void onRemoteVariableAdded(StoredVariable variable) {
+      onControllerVariable(variable);
+    }
+
+    @Override
+    public void onRemoteVariableChanged(StoredVariable variable) {
+      onControllerVariable(variable);
+    }
+  };
+
+  /**
+   * Creates a hub for the controller connected through {@code controllerTransport}, that sends
+   * changes {@code flushDelayMs} milliseconds after the first one since the last flush, on
+   * {@code scheduler}.
+   */
+  public GroupSessionHub(
+      RemoteTransport controllerTransport,
+      RemoteWriteBuffer.Scheduler scheduler,
+      long flushDelayMs) {
+    if (flushDelayMs < 0) {
+      throw new IllegalArgumentException("The flush delay cannot be negative");
+    }
+    this.controllerTransport = controllerTransport;
+    this.scheduler = scheduler;
+    this.flushDelayMs = flushDelayMs;
+    controllerTransport.setListener(controllerListener);
+  }
+
+  /**
+   * Adds a device to the session. It gets all the session's values on the next flush.
+   *
+   * @throws IllegalArgumentException if there already is a device with {@code deviceId}.
+   */
+  public synchronized void addDevice(String deviceId, RemoteTransport transport) {
+    if (devices.containsKey(deviceId)) {
+      throw new IllegalArgumentException(
+          String.format(Locale.getDefault(), "Device %s is already in the session", deviceId));
+    }
+    Device device = new Device(deviceId, transport);
+    devices.put(deviceId, device);
+    transport.setListener(device);
+    if (!session.keySet().isEmpty()) {
+      changedKeys.addAll(session.keySet());
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Removes a device from the session and stops listening to it.
+   */
+  public synchronized void removeDevice(String deviceId) {
+    Device device = devices.remove(deviceId);
+    if (device != null) {
+      device.transport.setListener(null);
+    }
+  }
+
+  /**
+   * Returns the IDs of the devices in the session.
+   */
+  public synchronized Set<String> getDeviceIds() {
+    return new HashSet<>(devices.keySet());
+  }
+
+  /**
+   * Returns the stats for the device with {@code deviceId}, or null if it is not in the session.
+   */
+  public synchronized DeviceStats getDeviceStats(String deviceId) {
+    Device device = devices.get(deviceId);
+    return device != null ? device.stats : null;
+  }
+
+  /**
+   * Sends all the changes since the last flush right away.
+   *
+   * <p>The changed keys are taken before sending anything, since a transport may call its listener
+   * from {@code send}, and the changes that come in that way are sent on the next flush.
+   */
+  public synchronized void flush() {
+    scheduler.cancel(flushRunnable);
+    flushScheduled = false;
+    if (changedKeys.isEmpty()) {
+      return;
+    }
+    Map<String, StoredVariable> changes = new HashMap<>();
+    for (String key : changedKeys) {
+      // Copy the values so that transports never see them change after they are sent.
+      changes.put(key, gson.fromJson(gson.toJson(session.getItem(key)), StoredVariable.class));
+    }
+    Map<String, StoredVariable> controllerChanges = new HashMap<>();
+    for (String key : controllerKeys) {
+      controllerChanges.put(key, changes.get(key));
+    }
+    changedKeys.clear();
+    controllerKeys.clear();
+    long nowNanos = System.nanoTime();
+    // Copied too, a device may be removed from the session while it is being sent to.
+    for (Device device : new ArrayList<>(devices.values())) {
+      device.send(changes, nowNanos);
+    }
+    if (!controllerChanges.isEmpty()) {
+      controllerTransport.send(controllerChanges, NO_KEYS);
+    }
+  }
+
+  /**
+   * Stops listening to the controller and all the devices, and drops the changes that were not
+   * sent yet.
+   */
+  public synchronized void close() {
+    scheduler.cancel(flushRunnable);
+    flushScheduled = false;
+    changedKeys.clear();
+    controllerKeys.clear();
+    controllerTransport.setListener(null);
+    for (Device device : devices.values()) {
+      device.transport.setListener(null);
+    }
+  }
+
+  /**
+   * Writes a human-readable summary of the session and the stats of every device to
+   * {@code writer}, each line starting with {@code prefix}.
+   */
+  public synchronized void dump(PrintWriter writer, String prefix) {
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%sgroup session: %d devices, %d variables",
+        prefix,
+        devices.size(),
+        session.keySet().size()));
+    for (Device device : devices.values()) {
+      device.stats.dump(writer, prefix + "  ");
+    }
+  }
+
+  private synchronized void onControllerVariable(StoredVariable variable) {
+    if (merge(variable)) {
+      changedKeys.add(variable.getKey());
+      scheduleFlush();
+    }
+  }
+
+  private synchronized void onDeviceVariable(Device device, StoredVariable variable) {
+    if (devices.get(device.deviceId) != device) {
+      // Removed from the session while this was on its way.
+      return;
+    }
+    String key = variable.getKey();
+    boolean changed;
+    if (variable.getClock() == 0 && session.keySet().contains(key)) {
+      // Devices version all their changes, so this is the initial value of a variable the session
+      // already has, and the session's value takes precedence.
+      changed = false;
+    } else {
+      changed = merge(variable);
+    }
+    boolean outdated =
+        device.onReceived(variable, versionOf(session.getItem(key)), System.nanoTime());
+    if (changed) {
+      controllerKeys.add(key);
+    }
+    if (changed || outdated) {
+      changedKeys.add(key);
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Merges {@code variable} into the session, and returns whether it changed the session. Values
+   * without a version get one, so that everything sent to the devices is versioned.
+   */
+  private boolean merge(StoredVariable variable) {
+    if (!session.keySet().contains(variable.getKey())) {
+      session.addItem(variable);
+      if (variable.getClock() == 0) {
+        session.setValue(variable);
+      }
+      return true;
+    }
+    return session.setValue(variable);
+  }
+
+  private void scheduleFlush() {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      scheduler.schedule(flushRunnable, flushDelayMs);
+    }
+  }
+
+  /**
+   * Returns a variable that only holds the version of {@code variable}.
+   */
+  private static StoredVariable versionOf(StoredVariable variable) {
+    StoredVariable version = new StoredVariable();
+    version.setClock(variable.getClock());
+    version.setOrigin(variable.getOrigin());
+    return version;
+  }
+
+  /**
+   * A device in the session. All accesses must be synchronized on the hub.
+   */
+  private class Device implements RemoteTransport.Listener {
+
+    private final String deviceId;
+    private final RemoteTransport transport;
+    private final DeviceStats stats;
+
+    /**
+     * Version of the latest value of each key that the device has or was sent, keyed by variable
+     * key.
+     */
+    private final Map<String, StoredVariable> versions = new HashMap<>();
+    /**
+     * When the values that were sent and not acknowledged yet were sent, keyed by variable key.
+     */
+    private final Map<String, Long> pendingSince = new HashMap<>();
+
+    Device(String deviceId, RemoteTransport transport) {
+      this.deviceId = deviceId;
+      this.transport = transport;
+      this.stats = new DeviceStats(deviceId);
+    }
+
+    /**
+     * Sends the values in {@code changes} that the device does not have yet.
+     */
+    void send(Map<String, StoredVariable> changes, long nowNanos) {
+      Map<String, StoredVariable> toSend = new HashMap<>();
+      for (StoredVariable variable : changes.values()) {
+        StoredVariable known = versions.get(variable.getKey());
+        if (known == null || variable.isNewerThan(known)) {
+          toSend.put(variable.getKey(), variable);
+          versions.put(variable.getKey(), versionOf(variable));
+          pendingSince.put(variable.getKey(), nowNanos);
+        }
+      }
+      if (!toSend.isEmpty()) {
+        stats.recordSend(toSend.size(), pendingSince.size());
+        transport.send(toSend, NO_KEYS);
+      }
+    }
+
+    /**
+     * Records that the device has {@code variable}, and that the session now has a value with
+     * {@code sessionVersion} for its key, which either came from the device or wins over it.
+     *
+     * @return whether the device has to be sent the session's value, because it has an older one
+     *     and the session's value is not on its way already.
+     */
+    boolean onReceived(StoredVariable variable, StoredVariable sessionVersion, long nowNanos) {
+      String key = variable.getKey();
+      Long sentNanos = pendingSince.get(key);
+      if (sentNanos != null && !versions.get(key).isNewerThan(variable)) {
+        pendingSince.remove(key);
+        stats.recordAcknowledgement(nowNanos - sentNanos, pendingSince.size());
+        sentNanos = null;
+      }
+      if (!sessionVersion.isNewerThan(variable)) {
+        // The device has the session's value, so it does not need it back.
+        versions.put(key, sessionVersion);
+        return false;
+      }
+      if (sentNanos == null) {
+        versions.remove(key);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void onRemoteVariableAdded(StoredVariable variable) {
+      onDeviceVariable(this, variable);
+    }
+
+    @Override
+    public void onRemoteVariableChanged(StoredVariable variable) {
+      onDeviceVariable(this, variable);
+    }
+  }
+
+  /**
+   * Counters for one device in a group session: how many values were sent to it, how many it
+   * acknowledged and how long that took.
+   *
+   * <p>Acknowledgement latencies are kept in a histogram with power-of-two buckets (in
+   * microseconds), so percentiles are the upper bound of the bucket the percentile falls in.
+   */
+  public static class DeviceStats {
+
+    private final String deviceId;
+    private long sendCount;
+    private long sentValueCount;
+    private long acknowledgedCount;
+    private int pendingCount;
+    private final LatencyHistogram acknowledgementLatencies = new LatencyHistogram();
+
+    DeviceStats(String deviceId) {
+      this.deviceId = deviceId;
+    }
+
+    synchronized void recordSend(int valueCount, int pendingCount) {
+      sendCount++;
+      sentValueCount += valueCount;
+      this.pendingCount = pendingCount;
+    }
+
+    synchronized void recordAcknowledgement(long nanos, int pendingCount) {
+      acknowledgedCount++;
+      this.pendingCount = pendingCount;
+      acknowledgementLatencies.record(nanos);
+    }
+
+    public String getDeviceId() {
+      return deviceId;
+    }
+
+    /**
+     * Returns how many times values were sent to the device.
+     */
+    public synchronized long getSendCount() {
+      return sendCount;
+    }
+
+    /**
+     * Returns how many values were sent to the device, over all sends.
+     */
+    public synchronized long getSentValueCount() {
+      return sentValueCount;
+    }
+
+    /**
+     * Returns how many of the values sent to the device it acknowledged. Values that were replaced
+     * by newer ones before being acknowledged are not counted.
+     */
+    public synchronized long getAcknowledgedCount() {
+      return acknowledgedCount;
+    }
+
+    /**
+     * Returns how many keys have values that were sent to the device and not acknowledged yet.
+     */
+    public synchronized int getPendingCount() {
+      return pendingCount;
+    }
+
+    /**
+     * Returns the longest time it took the device to acknowledge a value, in microseconds.
+     */
+    public synchronized long getMaxAcknowledgementLatencyMicros() {
+      return acknowledgementLatencies.getMaxMicros();
+    }
+
+    /**
+     * Returns an upper bound of the acknowledgement latency at {@code percentile} (between 0 and
+     * 100), in microseconds, or 0 if nothing was acknowledged.
+     */
+    public synchronized long getAcknowledgementLatencyPercentileMicros(double percentile) {
+      return acknowledgementLatencies.getPercentileMicros(percentile);
+    }
+
+    /**
+     * Writes a human-readable summary of these stats to {@code writer}, each line starting with
+     * {@code prefix}.
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+      writer.println(String.format(
+          Locale.getDefault(),
+          "%s%s: sends: %d, values sent: %d, acknowledged: %d, pending: %d, "
+              + "ack latency: p50 <%d us, p99 <%d us, max %d us",
+          prefix,
+          deviceId,
+          sendCount,
+          sentValueCount,
+          acknowledgedCount,
+          pendingCount,
+          getAcknowledgementLatencyPercentileMicros(50),
+          getAcknowledgementLatencyPercentileMicros(99),
+          getMaxAcknowledgementLatencyMicros()));
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link KeyValueStore} that keeps values in memory only. Useful for tests and as a baseline to
+ * compare other backends against.
+ */
+public class InMemoryKeyValueStore implements KeyValueStore {
+
+  private final Map<String, String> values = new HashMap<>();
+
+  @Override
+  public synchronized Map<String, String> getAll() {
+    return new HashMap<>(values);
+  }
+
+  @Override
+  public synchronized String get(String key) {
+    return values.get(key);
+  }
+
+  @Override
+  public synchronized void putAll(Map<String, String> newValues) {
+    values.putAll(newValues);
+  }
+
+  @Override
+  public synchronized void removeAll(Collection<String> keys) {
+    for (String key : keys) {
+      values.remove(key);
+    }
+  }
+
+  @Override
+  public synchronized void commit(Map<String, String> newValues, Collection<String> removedKeys) {
+    putAll(newValues);
+    removeAll(removedKeys);
+  }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * A file-based {@link KeyValueStore} that appends every change to a journal instead of rewriting
+ * all the values.
+ *
+ * <p>All values are kept in memory and rebuilt by replaying the journal when the store is opened.
+ * Each call to {@link #putAll(Map)}, {@link #removeAll(Collection)} or
+ * {@link #commit(Map, Collection)} appends a single record with a checksum, so a record that was
+ * only partially written (because the process died mid-write) is detected and dropped on the next
+ * load, together with anything after it.
+ *
+ * <p>Once the journal is larger than {@code compactionRatio} times the size of the live values, it
+ * is compacted on {@code compactionExecutor}: the live values are written to a temporary file,
+ * which is synced to disk and then atomically renamed over the journal. Until the rename happens
+ * the old journal is left untouched, so a crash during compaction never loses the last good state.
+ * New journals are created the same way, so a crash never leaves a journal with a partial header.
+ *
+ * <p>Appended records are handed to the operating system before {@link #commit(Map, Collection)}
+ * returns, but they are not synced to disk. Committed changes survive the process dying, but the
+ * latest records may be lost, each as a whole, if the device loses power or the kernel crashes.
+ * Compacted and new journals are synced, and so is their directory once they are renamed into
+ * place, where the platform allows it.
+ *
+ * <p>For example, to use it with Android's LocalStorage:
+ * <pre>{@code
+ * KeyValueStore store = new JournalKeyValueStore(
+ *     new File(context.getFilesDir(), "remixer_journal"), Executors.newSingleThreadExecutor());
+ * }</pre>
+ */
+public class JournalKeyValueStore implements KeyValueStore, Closeable {
+
+  /**
+   * Default ratio of journal size to live data size above which the journal is compacted.
+   */
+  public static final int DEFAULT_COMPACTION_RATIO = 2;
+
+  /**
+   * Default journal size, in bytes, under which the journal is never compacted.
+   */
+  public static final long DEFAULT_MIN_COMPACTION_BYTES = 16 * 1024;
+
+  /**
+   * Magic number at the start of every journal file, "RMXJ" in ASCII.
+   */
+  private static final int MAGIC = 0x524D584A;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 2 * 4;
+  /**
+   * Every record starts with its payload length and the CRC32 of its payload.
+   */
+  static final int RECORD_HEADER_SIZE = 2 * 4;
+  static final byte OPERATION_PUT = 1;
+  static final byte OPERATION_REMOVE = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final File compactionFile;
+  private final Executor compactionExecutor;
+  private final int compactionRatio;
+  private final long minCompactionBytes;
+
+  private final Map<String, String> values = new HashMap<>();
+  private FileOutputStream output;
+  /**
+   * Current size of the journal file, in bytes.
+   */
+  private long journalBytes;
+  /**
+   * Approximate size the journal would have if compacted, in bytes.
+   */
+  private long liveBytes;
+  /**
+   * Records appended since the current compaction started, or null if not compacting. These have
+   * to be copied to the compacted journal before it replaces the current one.
+   */
+  private List<byte[]> recordsDuringCompaction;
+  private boolean closed;
+
+  /**
+   * Opens the journal in {@code file}, creating it if it does not exist.
+   *
+   * @throws IOException if the journal cannot be read or created.
+   */
+  public JournalKeyValueStore(File file, Executor compactionExecutor) throws IOException {
+    this(file, compactionExecutor, DEFAULT_COMPACTION_RATIO, DEFAULT_MIN_COMPACTION_BYTES);
+  }
+
+  /**
+   * Opens the journal in {@code file}, creating it if it does not exist, and compacts it on
+   * {@code compactionExecutor} once it is larger than {@code minCompactionBytes} and
+   * {@code compactionRatio} times larger than the live values.
+   *
+   * @throws IOException if the journal cannot be read or created.
+   */
+  public JournalKeyValueStore(
+      File file, Executor compactionExecutor, int compactionRatio, long minCompactionBytes)
+      throws IOException {
+    if (compactionRatio < 1) {
+      throw new IllegalArgumentException("The compaction ratio must be at least 1");
+    }
+    this.file = file;
+    this.compactionFile = new File(file.getPath() + ".compact");
+    this.compactionExecutor = compactionExecutor;
+    this.compactionRatio = compactionRatio;
+    this.minCompactionBytes = minCompactionBytes;
+    load();
+  }
+
+  @Override
+  public synchronized Map<String, String> getAll() {
+    return new HashMap<>(values);
+  }
+
+  @Override
+  public synchronized String get(String key) {
+    return values.get(key);
+  }
+
+  @Override
+  public void putAll(Map<String, String> newValues) {
+    commit(newValues, Collections.<String>emptyList());
+  }
+
+  @Override
+  public void removeAll(Collection<String> keys) {
+    commit(Collections.<String, String>emptyMap(), keys);
+  }
+
+  /**
+   * Appends all the changes as a single record, so they are either all replayed on the next load
+   * or, if the record was torn, none of them are.
+   */
+  @Override
+  public synchronized void commit(Map<String, String> newValues, Collection<String> removedKeys) {
+    if (newValues.isEmpty() && removedKeys.isEmpty()) {
+      return;
+    }
+    append(encodeRecord(newValues, removedKeys));
+    for (Map.Entry<String, String> entry : newValues.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+    for (String key : removedKeys) {
+      remove(key);
+    }
+    maybeCompact();
+  }
+
+  /**
+   * Returns the current size of the journal file, in bytes.
+   */
+  public synchronized long getJournalSize() {
+    return journalBytes;
+  }
+
+  /**
+   * Closes the journal. Any compaction still in progress is discarded.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      output.close();
+    }
+  }
+
+  private void put(String key, String value) {
+    String oldValue = values.put(key, value);
+    if (oldValue != null) {
+      liveBytes -= estimateSize(key, oldValue);
+    }
+    liveBytes += estimateSize(key, value);
+  }
+
+  private void remove(String key) {
+    String oldValue = values.remove(key);
+    if (oldValue != null) {
+      liveBytes -= estimateSize(key, oldValue);
+    }
+  }
+
+  /**
+   * Estimates the size of the record for a single key and value, it is exact for ASCII strings.
+   */
+  private static long estimateSize(String key, String value) {
+    return RECORD_HEADER_SIZE + 4 + 1 + 4 + key.length() + 4 + value.length();
+  }
+
+  private void append(byte[] record) {
+    if (closed) {
+      throw new IllegalStateException("The journal is already closed");
+    }
+    try {
+      output.write(record);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not append to the journal " + file, e);
+    }
+    journalBytes += record.length;
+    if (recordsDuringCompaction != null) {
+      recordsDuringCompaction.add(record);
+    }
+  }
+
+  private void maybeCompact() {
+    if (recordsDuringCompaction != null
+        || journalBytes <= minCompactionBytes
+        || journalBytes <= compactionRatio * liveBytes) {
+      return;
+    }
+    recordsDuringCompaction = new ArrayList<>();
+    final Map<String, String> snapshot = new HashMap<>(values);
+    compactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        compact(snapshot);
+      }
+    });
+  }
+
+  /**
+   * Writes {@code snapshot} and any records appended since it was taken to a new journal, and
+   * replaces the current journal with it.
+   */
+  private void compact(Map<String, String> snapshot) {
+    try {
+      FileOutputStream fileOutput = new FileOutputStream(compactionFile);
+      try {
+        BufferedOutputStream compactedOutput = new BufferedOutputStream(fileOutput);
+        long compactedBytes = writeHeader(compactedOutput);
+        for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+          byte[] record = encodeRecord(
+              Collections.singletonMap(entry.getKey(), entry.getValue()),
+              Collections.<String>emptyList());
+          compactedOutput.write(record);
+          compactedBytes += record.length;
+        }
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+          for (byte[] record : recordsDuringCompaction) {
+            compactedOutput.write(record);
+            compactedBytes += record.length;
+          }
+          compactedOutput.flush();
+          fileOutput.getFD().sync();
+          fileOutput.close();
+          if (!compactionFile.renameTo(file)) {
+            throw new IOException("Could not replace the journal " + file);
+          }
+          syncDirectory();
+          output.close();
+          output = new FileOutputStream(file, true);
+          journalBytes = compactedBytes;
+        }
+      } finally {
+        fileOutput.close();
+      }
+    } catch (IOException e) {
+      // The current journal is still valid, it will be compacted again later.
+    } finally {
+      synchronized (this) {
+        recordsDuringCompaction = null;
+      }
+      if (compactionFile.exists()) {
+        compactionFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Replays the journal into {@link #values}. Drops anything after the last valid record.
+   */
+  private void load() throws IOException {
+    // A leftover compaction file means a compaction did not finish, the journal is still valid.
+    if (compactionFile.exists()) {
+      compactionFile.delete();
+    }
+    if (!file.exists() || file.length() == 0) {
+      createJournal();
+      output = new FileOutputStream(file, true);
+      return;
+    }
+
+    long fileLength = file.length();
+    long validLength = HEADER_SIZE;
+    DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (fileLength < HEADER_SIZE || input.readInt() != MAGIC) {
+        throw new IOException("Not a Remixer journal: " + file);
+      }
+      int version = input.readInt();
+      if (version != VERSION) {
+        throw new IOException(String.format(
+            Locale.getDefault(), "Unsupported journal version %d, expected %d", version, VERSION));
+      }
+      byte[] payload;
+      while ((payload = readRecord(input, fileLength - validLength)) != null) {
+        applyRecord(payload);
+        validLength += RECORD_HEADER_SIZE + payload.length;
+      }
+    } finally {
+      input.close();
+    }
+
+    if (validLength < fileLength) {
+      // The last record was not completely written, drop it.
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(validLength);
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+    journalBytes = validLength;
+    output = new FileOutputStream(file, true);
+  }
+
+  /**
+   * Writes an empty journal to the compaction file and renames it over {@link #file}, so that the
+   * journal only ever appears with a complete header.
+   */
+  private void createJournal() throws IOException {
+    FileOutputStream newJournal = new FileOutputStream(compactionFile);
+    try {
+      journalBytes = writeHeader(newJournal);
+      newJournal.getFD().sync();
+    } finally {
+      newJournal.close();
+    }
+    if (!compactionFile.renameTo(file)) {
+      compactionFile.delete();
+      throw new IOException("Could not create the journal " + file);
+    }
+    syncDirectory();
+  }
+
+  /**
+   * Syncs the directory of {@link #file} to disk, so that a journal renamed into it is not lost
+   * with the power. This is best effort: where directories cannot be opened, as on Windows or on
+   * Android before API level 26, which has no {@code java.nio.file}, the rename is only as durable
+   * as the file system makes it.
+   */
+  private void syncDirectory() {
+    File directory = file.getAbsoluteFile().getParentFile();
+    try {
+      FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException | LinkageError e) {
+      // Not supported here, the journal itself was synced already.
+    }
+  }
+
+  /**
+   * Reads the payload of the next record, returns null if there are no more complete and valid
+   * records.
+   */
+  static byte[] readRecord(DataInputStream input, long remainingBytes) throws IOException {
+    try {
+      int length = input.readInt();
+      int checksum = input.readInt();
+      if (length < 0 || length > remainingBytes - RECORD_HEADER_SIZE) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      input.readFully(payload);
+      return checksum(payload) == checksum ? payload : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private void applyRecord(byte[] payload) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+    int count = input.readInt();
+    for (int i = 0; i < count; i++) {
+      byte operation = input.readByte();
+      String key = readString(input);
+      if (operation == OPERATION_PUT) {
+        put(key, readString(input));
+      } else if (operation == OPERATION_REMOVE) {
+        remove(key);
+      } else {
+        throw new IOException("Unknown journal operation " + operation);
+      }
+    }
+  }
+
+  /**
+   * Encodes all the puts and removals in a single record. {@link MultiProcessKeyValueStore} uses
+   * the same record format.
+   */
+  static byte[] encodeRecord(Map<String, String> puts, Collection<String> removals) {
+    try {
+      ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+      DataOutputStream payload = new DataOutputStream(payloadBytes);
+      payload.writeInt(puts.size() + removals.size());
+      for (Map.Entry<String, String> entry : puts.entrySet()) {
+        payload.writeByte(OPERATION_PUT);
+        writeString(payload, entry.getKey());
+        writeString(payload, entry.getValue());
+      }
+      for (String key : removals) {
+        payload.writeByte(OPERATION_REMOVE);
+        writeString(payload, key);
+      }
+      payload.flush();
+      byte[] payloadArray = payloadBytes.toByteArray();
+
+      ByteArrayOutputStream recordBytes =
+          new ByteArrayOutputStream(RECORD_HEADER_SIZE + payloadArray.length);
+      DataOutputStream record = new DataOutputStream(recordBytes);
+      record.writeInt(payloadArray.length);
+      record.writeInt(checksum(payloadArray));
+      record.write(payloadArray);
+      record.flush();
+      return recordBytes.toByteArray();
+    } catch (IOException e) {
+      // This cannot happen when writing to memory.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static long writeHeader(OutputStream outputStream) throws IOException {
+    DataOutputStream header = new DataOutputStream(outputStream);
+    header.writeInt(MAGIC);
+    header.writeInt(VERSION);
+    header.flush();
+    return HEADER_SIZE;
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+
+  private static void writeString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  static String readString(DataInputStream input) throws IOException {
+    byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
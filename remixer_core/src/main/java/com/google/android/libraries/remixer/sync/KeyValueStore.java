@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A persistent store of string values keyed by string, used by {@link KeyValueStoreSyncing} to
+ * persist the serialized form of Remixer variables.
+ *
+ * <p>This abstracts away the storage backend (such as Android's SharedPreferences) so different
+ * backends can be plugged in and compared on the JVM.
+ */
+public interface KeyValueStore {
+
+  /**
+   * Returns a copy of all the entries in the store.
+   */
+  Map<String, String> getAll();
+
+  /**
+   * Returns the value stored for {@code key}, or null if there is none.
+   */
+  String get(String key);
+
+  /**
+   * Stores all the entries in {@code values}, replacing existing values for the same keys.
+   *
+   * <p>Implementations should write all the entries in a single operation where the backend allows
+   * it, callers use this to batch several changes together.
+   */
+  void putAll(Map<String, String> values);
+
+  /**
+   * Removes the values for all of {@code keys}, if they are stored.
+   */
+  void removeAll(Collection<String> keys);
+
+  /**
+   * Stores all the entries in {@code values} and removes the values for all of {@code removedKeys}
+   * as a single atomic group: if the process dies while committing, the store is left either with
+   * all of the changes or with none of them.
+   *
+   * <p>Changes that touch several keys at once (for example applying a preset) should use this
+   * instead of separate calls to {@link #putAll(Map)} and {@link #removeAll(Collection)}.
+   */
+  void commit(Map<String, String> values, Collection<String> removedKeys);
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.SerializableRemixerContents;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.android.libraries.remixer.serialization.StoredVariableMigrations;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link SynchronizationMechanism} that persists values to a {@link KeyValueStore}, as the JSON
+ * representation of each variable keyed by the variable's key.
+ *
+ * <p>Only values that differ from the initial value of their variable are persisted, so the size of
+ * the store grows with the number of values that were changed rather than with the number of
+ * variables. Adding a variable never writes to the store, and a value that is changed back to its
+ * initial value is removed from the store.
+ *
+ * <p>All the values in the store are loaded when this is created, either right away or in the
+ * background, and every change is written to the store right away. An {@link EvictionPolicy} can
+ * be used to drop values whose keys have not been used for a while when loading. Subclasses may
+ * defer writes by overriding {@link #writeVariable(String)} and later calling
+ * {@link #writeVariables(Collection)}.
+ *
+ * <p>When loading in the background, variables added before loading finishes start with their
+ * initial values and nothing is written to the store for them. Once loading finishes, the stored
+ * values are applied to all of them at once. A stored value is ignored if the variable's value was
+ * changed while loading or if it is incompatible with the variable that was added, in both cases
+ * the variable's value is written to the store instead.
+ */
+public class KeyValueStoreSyncing extends LocalValueSyncing
+    implements BatchingSynchronizationMechanism {
+
+  /**
+   * The key under which the schema version of the stored values is kept in the store.
+   */
+  public static final String SCHEMA_VERSION_KEY = "__RemixerSchemaVersion__";
+
+  /**
+   * The schema version of stores that do not have {@link #SCHEMA_VERSION_KEY}. Stores at this
+   * version don't need the key, which keeps them exactly as they were before versioning.
+   */
+  private static final int IMPLICIT_SCHEMA_VERSION = 1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  protected final KeyValueStore store;
+  private final Gson gson;
+
+  /**
+   * Decides which stored values to drop when loading, may be null.
+   */
+  private final EvictionPolicy evictionPolicy;
+
+  /**
+   * The initial value of each variable that was added, in its serializable form, keyed by variable
+   * key. When several variables share a key, the first one added defines the initial value.
+   */
+  private final Map<String, Object> initialValues = new HashMap<>();
+
+  /**
+   * Keys that currently have a value in the store.
+   */
+  private final Set<String> persistedKeys = new HashSet<>();
+
+  /**
+   * Whether the store is known to have the current schema version.
+   */
+  private boolean schemaVersionWritten =
+      StoredVariable.SCHEMA_VERSION == IMPLICIT_SCHEMA_VERSION;
+
+  /**
+   * Whether the stored values are still being loaded in the background.
+   */
+  private boolean loading;
+
+  /**
+   * Keys of variables added while loading.
+   */
+  private final Set<String> keysAddedWhileLoading = new HashSet<>();
+
+  /**
+   * Keys of variables whose value changed while loading.
+   */
+  private final Set<String> keysChangedWhileLoading = new HashSet<>();
+
+  /**
+   * Whether a batch of changes is in progress, see {@link Remixer#beginBatch()}.
+   */
+  private boolean batching;
+
+  /**
+   * Keys of variables whose value changed during the current batch, in the order they changed.
+   */
+  private final Set<String> keysChangedInBatch = new LinkedHashSet<>();
+
+  private final StorageStats stats = new StorageStats();
+
+  /**
+   * Creates a KeyValueStoreSyncing and loads all the values in {@code store} right away.
+   *
+   * <p>Loading happens on the calling thread, and so does upgrading the stored values if they were
+   * written by an older schema version, which rewrites all of them to {@code store}. Use
+   * {@link #KeyValueStoreSyncing(KeyValueStore, Executor, Executor)} to keep both off the main
+   * thread.
+   */
+  public KeyValueStoreSyncing(KeyValueStore store) {
+    this(store, (EvictionPolicy) null);
+  }
+
+  /**
+   * Creates a KeyValueStoreSyncing and loads all the values in {@code store} right away, except
+   * for those that {@code evictionPolicy} evicts. As with
+   * {@link #KeyValueStoreSyncing(KeyValueStore)}, loading, evicting and upgrading the stored
+   * values all happen on the calling thread.
+   */
+  public KeyValueStoreSyncing(KeyValueStore store, EvictionPolicy evictionPolicy) {
+    this.store = store;
+    this.evictionPolicy = evictionPolicy;
+    gson = GsonProvider.getInstance();
+    serializableRemixerContents = readStore(store, evictionPolicy, stats);
+    persistedKeys.addAll(serializableRemixerContents.keySet());
+  }
+
+  /**
+   * Creates a KeyValueStoreSyncing that loads the values in {@code store} on
+   * {@code loadExecutor} and returns immediately.
+   *
+   * <p>The loaded values are applied on {@code callbackExecutor}, which must run tasks on the same
+   * thread Remixer is used from (the main thread on Android).
+   */
+  public KeyValueStoreSyncing(
+      KeyValueStore store, Executor loadExecutor, Executor callbackExecutor) {
+    this(store, null, loadExecutor, callbackExecutor);
+  }
+
+  /**
+   * Creates a KeyValueStoreSyncing that loads the values in {@code store} on
+   * {@code loadExecutor}, except for those that {@code evictionPolicy} evicts, and returns
+   * immediately. See {@link #KeyValueStoreSyncing(KeyValueStore, Executor, Executor)}.
+   */
+  public KeyValueStoreSyncing(
+      final KeyValueStore store,
+      final EvictionPolicy evictionPolicy,
+      Executor loadExecutor,
+      final Executor callbackExecutor) {
+    this.store = store;
+    this.evictionPolicy = evictionPolicy;
+    gson = GsonProvider.getInstance();
+    loading = true;
+    loadExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final SerializableRemixerContents loadedContents =
+            readStore(store, evictionPolicy, stats);
+        callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            onLoaded(loadedContents);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Returns whether all the stored values have been loaded.
+   */
+  public boolean isLoaded() {
+    return !loading;
+  }
+
+  /**
+   * Returns the number of keys that have a value in the store.
+   */
+  public int getPersistedKeyCount() {
+    return persistedKeys.size();
+  }
+
+  /**
+   * Returns the number of distinct keys of the variables that have been added.
+   */
+  public int getRegisteredKeyCount() {
+    return initialValues.size();
+  }
+
+  /**
+   * Returns the stats on the cost of persisting values.
+   */
+  public StorageStats getStorageStats() {
+    return stats;
+  }
+
+  /**
+   * Writes a human-readable summary of the stored values and the cost of persisting them to
+   * {@code writer}. This reads all the values in the store to measure their size, so it is meant
+   * for debugging, such as from {@code Activity#dump}.
+   */
+  public void dump(PrintWriter writer) {
+    long bytes = 0;
+    Map<String, String> storedValues = store.getAll();
+    for (Map.Entry<String, String> entry : storedValues.entrySet()) {
+      bytes += entry.getKey().getBytes(UTF_8).length + entry.getValue().getBytes(UTF_8).length;
+    }
+    writer.println(getClass().getSimpleName() + ":");
+    writer.println(String.format(
+        Locale.getDefault(),
+        "  store: %s, %d entries, %d bytes, %d persisted of %d registered keys",
+        store.getClass().getSimpleName(),
+        storedValues.size(),
+        bytes,
+        persistedKeys.size(),
+        initialValues.size()));
+    stats.dump(writer, "  ");
+  }
+
+  /**
+   * Reads and parses all the values in {@code store}, upgrading them to the current schema
+   * version first. Evicted values are removed from the store without being parsed. The time it
+   * takes is recorded in {@code stats}.
+   *
+   * <p>This runs on the load executor when there is one, and otherwise on the thread creating
+   * this.
+   */
+  private static SerializableRemixerContents readStore(
+      KeyValueStore store, EvictionPolicy evictionPolicy, StorageStats stats) {
+    long startNanos = System.nanoTime();
+    Gson gson = GsonProvider.getInstance();
+    Map<String, String> storedValues = store.getAll();
+    upgradeSchema(store, storedValues);
+    if (evictionPolicy != null) {
+      Set<String> evictedKeys = evictionPolicy.selectEvictedKeys(storedValues.keySet());
+      if (!evictedKeys.isEmpty()) {
+        store.removeAll(evictedKeys);
+        storedValues.keySet().removeAll(evictedKeys);
+      }
+    }
+    SerializableRemixerContents contents = new SerializableRemixerContents();
+    for (String json : storedValues.values()) {
+      StoredVariable<?> variable = gson.fromJson(json, StoredVariable.class);
+      contents.addItem(variable);
+    }
+    stats.recordLoad(storedValues.size(), System.nanoTime() - startNanos);
+    return contents;
+  }
+
+  /**
+   * Upgrades all of {@code storedValues} to the current schema version if they are older, both in
+   * the map and in {@code store}, and removes the schema version from the map. Values written by a
+   * newer schema version cannot be read, so they are dropped.
+   */
+  private static void upgradeSchema(KeyValueStore store, Map<String, String> storedValues) {
+    String versionString = storedValues.remove(SCHEMA_VERSION_KEY);
+    int version =
+        versionString != null ? Integer.parseInt(versionString) : IMPLICIT_SCHEMA_VERSION;
+    if (version == StoredVariable.SCHEMA_VERSION) {
+      return;
+    }
+    Map<String, String> upgradedValues = new HashMap<>();
+    List<String> droppedKeys = new ArrayList<>();
+    if (version > StoredVariable.SCHEMA_VERSION) {
+      droppedKeys.addAll(storedValues.keySet());
+      storedValues.clear();
+    } else {
+      JsonParser parser = new JsonParser();
+      Iterator<Map.Entry<String, String>> iterator = storedValues.entrySet().iterator();
+      while (iterator.hasNext()) {
+        // Migrate one record at a time so only one of them is held as a JSON tree at any time.
+        Map.Entry<String, String> entry = iterator.next();
+        JsonObject upgraded = StoredVariableMigrations.migrate(
+            entry.getKey(), parser.parse(entry.getValue()).getAsJsonObject(), version);
+        if (upgraded == null) {
+          droppedKeys.add(entry.getKey());
+          iterator.remove();
+        } else {
+          entry.setValue(upgraded.toString());
+          upgradedValues.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    // Commit the upgraded values together with the version so they are never out of sync.
+    upgradedValues.put(SCHEMA_VERSION_KEY, Integer.toString(StoredVariable.SCHEMA_VERSION));
+    store.commit(upgradedValues, droppedKeys);
+  }
+
+  /**
+   * Merges the values loaded in the background into the variables added while loading, and writes
+   * the values that the store did not have or that take precedence over the stored ones.
+   */
+  @SuppressWarnings("unchecked")
+  private void onLoaded(SerializableRemixerContents loadedContents) {
+    loading = false;
+    persistedKeys.addAll(loadedContents.keySet());
+    Set<String> keysToWrite = new HashSet<>(keysAddedWhileLoading);
+    keysToWrite.addAll(keysChangedWhileLoading);
+    for (String key : loadedContents.keySet()) {
+      StoredVariable storedVariable = loadedContents.getItem(key);
+      StoredVariable currentVariable = serializableRemixerContents.getItem(key);
+      if (currentVariable == null) {
+        serializableRemixerContents.addItem(storedVariable);
+      } else if (!keysChangedWhileLoading.contains(key)
+          && currentVariable.isCompatibleWith(storedVariable)) {
+        keysToWrite.remove(key);
+        if (serializableRemixerContents.setValue(storedVariable)) {
+          applyToVariables(storedVariable);
+        }
+      }
+    }
+    keysAddedWhileLoading.clear();
+    keysChangedWhileLoading.clear();
+    if (!keysToWrite.isEmpty()) {
+      writeVariables(keysToWrite);
+    }
+  }
+
+  /**
+   * Sets the value of all the variables with the same key as {@code storedVariable} to its selected
+   * value, without notifying this synchronization mechanism.
+   */
+  @SuppressWarnings("unchecked")
+  private void applyToVariables(StoredVariable<?> storedVariable) {
+    Remixer remixer = getRemixer();
+    List<Variable> variables =
+        remixer != null ? remixer.getVariablesWithKey(storedVariable.getKey()) : null;
+    if (variables != null) {
+      Object value = Remixer.getDataType(storedVariable.getDataType())
+          .getConverter().toRuntimeType(storedVariable.getSelectedValue());
+      for (Variable variable : variables) {
+        variable.setValueWithoutNotifyingOthers(value);
+      }
+    }
+  }
+
+  /**
+   * Reloads the values for {@code keys} from the store, because someone else (such as another
+   * process sharing a {@link MultiProcessKeyValueStore}) changed them, and applies them to the
+   * variables with those keys. Keys whose values were removed go back to their initial value.
+   *
+   * <p>Must be called on the thread Remixer is used from. Changes made locally and not yet written
+   * take precedence once they are written.
+   */
+  @SuppressWarnings("unchecked")
+  public void onStoreChanged(Collection<String> keys) {
+    if (loading) {
+      // The values being loaded already reflect these changes or will be reloaded anyway.
+      return;
+    }
+    for (String key : keys) {
+      if (SCHEMA_VERSION_KEY.equals(key)) {
+        continue;
+      }
+      String json = store.get(key);
+      StoredVariable storedVariable =
+          json != null ? gson.fromJson(json, StoredVariable.class) : null;
+      if (storedVariable != null) {
+        persistedKeys.add(key);
+      } else {
+        persistedKeys.remove(key);
+      }
+      StoredVariable currentVariable = serializableRemixerContents.getItem(key);
+      if (currentVariable == null) {
+        if (storedVariable != null) {
+          serializableRemixerContents.addItem(storedVariable);
+        }
+        continue;
+      }
+      if (storedVariable == null) {
+        if (!initialValues.containsKey(key)) {
+          continue;
+        }
+        storedVariable = gson.fromJson(gson.toJson(currentVariable), StoredVariable.class);
+        storedVariable.setSelectedValue(initialValues.get(key));
+        // Going back to the initial value is a new local change.
+        storedVariable.setClock(0);
+        storedVariable.setOrigin(null);
+      } else if (!currentVariable.isCompatibleWith(storedVariable)) {
+        continue;
+      }
+      if (serializableRemixerContents.setValue(storedVariable)) {
+        applyToVariables(storedVariable);
+      }
+    }
+  }
+
+  /**
+   * Serializes {@code variable} for the store, without its timestamp. The timestamp only tells
+   * remote controllers when a change was made, so it must not outlive the change.
+   */
+  private String toStoredJson(StoredVariable<?> variable) {
+    JsonObject object = gson.toJsonTree(variable, StoredVariable.class).getAsJsonObject();
+    object.remove(StoredVariable.TIMESTAMP);
+    return gson.toJson(object);
+  }
+
+  /**
+   * Called whenever the stored value for {@code key} has to be updated. Writes it to the store
+   * right away.
+   */
+  protected void writeVariable(String key) {
+    writeVariables(Collections.singletonList(key));
+  }
+
+  /**
+   * Writes the current values for all of {@code keys} to the store, and removes the ones that are
+   * set to their initial value, in a single {@link KeyValueStore#commit(Map, Collection)}.
+   */
+  protected void writeVariables(Collection<String> keys) {
+    Map<String, String> values = new HashMap<>();
+    List<String> removedKeys = new ArrayList<>();
+    for (String key : keys) {
+      StoredVariable<?> variable = serializableRemixerContents.getItem(key);
+      if (hasInitialValue(variable)) {
+        if (persistedKeys.remove(key)) {
+          removedKeys.add(key);
+        }
+      } else {
+        values.put(key, toStoredJson(variable));
+        persistedKeys.add(key);
+      }
+    }
+    int keyCount = values.size() + removedKeys.size();
+    if (keyCount == 0) {
+      return;
+    }
+    if (evictionPolicy != null) {
+      if (!values.isEmpty()) {
+        evictionPolicy.onPersisted(values.keySet());
+      }
+      if (!removedKeys.isEmpty()) {
+        evictionPolicy.onRemoved(removedKeys);
+      }
+    }
+    if (!values.isEmpty() && !schemaVersionWritten) {
+      values.put(SCHEMA_VERSION_KEY, Integer.toString(StoredVariable.SCHEMA_VERSION));
+      schemaVersionWritten = true;
+    }
+    long startNanos = System.nanoTime();
+    store.commit(values, removedKeys);
+    stats.recordCommit(keyCount, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns whether {@code variable} is set to the initial value of the variables with its key.
+   * Values for keys without any variables added are not considered initial values.
+   */
+  private boolean hasInitialValue(StoredVariable<?> variable) {
+    if (!initialValues.containsKey(variable.getKey())) {
+      return false;
+    }
+    Object initialValue = initialValues.get(variable.getKey());
+    return initialValue != null
+        ? initialValue.equals(variable.getSelectedValue()) : variable.getSelectedValue() == null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void onAddingVariable(Variable variable) {
+    if (!initialValues.containsKey(variable.getKey())) {
+      initialValues.put(
+          variable.getKey(),
+          variable.getDataType().getConverter().fromRuntimeType(variable.getSelectedValue()));
+      if (evictionPolicy != null) {
+        evictionPolicy.onRegistered(variable.getKey());
+      }
+    }
+    super.onAddingVariable(variable);
+    // Newly added variables either have their initial value or the one already stored, so there is
+    // nothing to write unless this happens while loading.
+    if (loading) {
+      keysAddedWhileLoading.add(variable.getKey());
+    }
+  }
+
+  @Override
+  public void onValueChanged(Variable variable) {
+    super.onValueChanged(variable);
+    stats.recordChange();
+    if (loading) {
+      keysChangedWhileLoading.add(variable.getKey());
+    } else if (batching) {
+      keysChangedInBatch.add(variable.getKey());
+    } else {
+      writeVariable(variable.getKey());
+    }
+  }
+
+  @Override
+  public void onBatchStarted() {
+    batching = true;
+  }
+
+  /**
+   * Commits all the values changed during the batch at once, without waiting for any pending
+   * writes.
+   */
+  @Override
+  public void onBatchFinished() {
+    batching = false;
+    if (!keysChangedInBatch.isEmpty()) {
+      List<String> keys = new ArrayList<>(keysChangedInBatch);
+      keysChangedInBatch.clear();
+      writeVariables(keys);
+    }
+  }
+}
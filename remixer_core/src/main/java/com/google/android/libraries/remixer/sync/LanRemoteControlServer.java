@@ -0,0 +1,1172 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link RemoteTransport} that runs a small HTTP and WebSocket server on the device, so that a
+ * remote controller on the same network can connect to it directly instead of going through a
+ * hosted backend. Changes travel over a single TCP connection each way, which keeps the latency
+ * well under a frame on a local network and works without internet access.
+ *
+ * <p>The server handles two requests:
+ * <ul>
+ *   <li>{@code GET /variables} returns a JSON object with the latest copy of every variable sent
+ *   through this transport, under {@code "variables"}.
+ *   <li>{@code GET /sync} upgrades the connection to a WebSocket. The server first sends a
+ *   {@code "snapshot"} message with all the variables and then an {@code "update"} message with the
+ *   variables in each call to {@link #send(Map, Collection)}, and the keys of the
+ *   removed ones under {@code "removed"}. When the transport is cleared it sends an empty
+ *   snapshot. Clients send {@code "update"} messages with the variables they change, which are
+ *   passed on to the listener and forwarded to all other clients. Messages the server cannot
+ *   understand are answered with an {@code "error"} message with a description under
+ *   {@code "message"}.
+ * </ul>
+ *
+ * <p>Messages are JSON objects with a {@code "type"} and a {@code "variables"} array, each variable
+ * in the same format as the rest of Remixer's serialization.
+ *
+ * <p>Clients that connect to {@code /sync?format=compact} get every variable definition once per
+ * session instead: each variable is sent in full, with a short numeric {@code "id"}, the first
+ * time and whenever its definition changes, and otherwise only its value is sent, under
+ * {@code "values"}, as {@code {"id": 3, "selectedValue": ..., "clock": ..., "origin": ...}} plus
+ * the {@code "timestamp"} of the change if there is one. They can send their changes the same
+ * way. Adding {@code compression=gzip} makes the server send large snapshots as binary messages
+ * with gzip-compressed JSON, and {@code GET /variables} is compressed for clients that accept
+ * gzip. {@link #dump(PrintWriter, String)} reports how many bytes each format takes per value.
+ *
+ * <p>{@link #sendTrace(SyncLatencyTracker.Trace)} sends clients {@code "trace"} messages with how
+ * long it took to apply their changes.
+ *
+ * <p>This server is meant for debugging only and must not be enabled in release builds. By default
+ * it only listens on the loopback interface, reachable from a computer with
+ * {@code adb forward tcp:<port> tcp:<port>}; pass a different address to
+ * {@link #LanRemoteControlServer(InetAddress, int)} to let other hosts connect. Either way every
+ * request must carry the random token of this server session, see {@link #getToken()}, as a
+ * {@code token} query parameter, and requests with an {@code Origin} header (that is, from web
+ * pages) are only accepted from the origins added with {@link #addAllowedOrigin(String)}. Those
+ * are also the only origins {@code GET /variables} allows cross-origin reads from.
+ *
+ * <p>Every connection is served by its own threads, the listener is called from them. Writes to
+ * clients are queued so a slow client never blocks {@link #send(Map, Collection)}; a client that
+ * falls too far behind is disconnected. Only {@link #MAX_CONNECTIONS} connections are served at
+ * a time, a request must send its headers within {@link #HANDSHAKE_TIMEOUT_MS} and in at most
+ * {@link #MAX_HEADER_LINES} lines, and WebSocket clients are pinged while idle and dropped if they
+ * stop answering.
+ */
+public class LanRemoteControlServer implements RemoteTransport, Closeable {
+
+  public static final String VARIABLES_PATH = "/variables";
+  public static final String SYNC_PATH = "/sync";
+
+  static final String TYPE_SNAPSHOT = "snapshot";
+  static final String TYPE_UPDATE = "update";
+  static final String TYPE_TRACE = "trace";
+  static final String TYPE_ERROR = "error";
+  static final String FIELD_TYPE = "type";
+  static final String FIELD_VARIABLES = "variables";
+  static final String FIELD_REMOVED = "removed";
+  static final String FIELD_VALUES = "values";
+  static final String FIELD_ID = "id";
+  static final String FIELD_KEY = "key";
+  static final String FIELD_TIMESTAMP = "timestamp";
+  static final String FIELD_STAGES = "stages";
+  static final String FIELD_MESSAGE = "message";
+  static final String PARAMETER_FORMAT = "format";
+  static final String FORMAT_COMPACT = "compact";
+  static final String PARAMETER_COMPRESSION = "compression";
+  static final String COMPRESSION_GZIP = "gzip";
+  static final String PARAMETER_TOKEN = "token";
+
+  /**
+   * Messages larger than this are compressed for the clients that accept it.
+   */
+  static final int COMPRESSION_THRESHOLD_BYTES = 1024;
+
+  /**
+   * The fields of a serialized variable that value-only entries carry.
+   */
+  private static final String[] VALUE_FIELDS =
+      {StoredVariable.SELECTED_VALUE,
+          StoredVariable.CLOCK,
+          StoredVariable.ORIGIN,
+          StoredVariable.TIMESTAMP};
+
+  private static final Collection<String> NO_KEYS = Collections.emptyList();
+  private static final List<StoredVariable> NO_VARIABLES = Collections.emptyList();
+
+  /**
+   * How many messages can be waiting to be written to a client before it is disconnected.
+   */
+  private static final int MAX_QUEUED_MESSAGES = 1024;
+
+  /**
+   * How long a client has to send its whole request, in milliseconds.
+   */
+  static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+  /**
+   * How often WebSocket clients are pinged, in milliseconds.
+   */
+  static final long PING_INTERVAL_MS = 30000;
+
+  /**
+   * How long a WebSocket client can go without sending anything, in milliseconds. Live clients
+   * answer the pings sent every {@link #PING_INTERVAL_MS}, so only dead ones are disconnected.
+   */
+  static final int IDLE_TIMEOUT_MS = 3 * (int) PING_INTERVAL_MS;
+
+  /**
+   * How many connections, WebSocket or not, are served at the same time. Further ones are closed
+   * right away.
+   */
+  static final int MAX_CONNECTIONS = 16;
+
+  /**
+   * How many header lines a request can have.
+   */
+  static final int MAX_HEADER_LINES = 64;
+
+  /**
+   * How many random bytes session tokens have.
+   */
+  private static final int TOKEN_BYTES = 16;
+
+  /**
+   * Queued to a client's writer to make it stop.
+   */
+  private static final byte[] END_OF_STREAM = new byte[0];
+
+  private final ServerSocket serverSocket;
+  private final String token;
+  private final Gson gson = GsonProvider.getInstance();
+
+  /**
+   * Web page origins allowed to connect. All accesses must be synchronized.
+   */
+  private final Set<String> allowedOrigins = new HashSet<>();
+
+  /**
+   * Latest copy of every variable, keyed by variable key. All accesses must be synchronized.
+   */
+  private final Map<String, StoredVariable> variables = new LinkedHashMap<>();
+
+  /**
+   * WebSocket clients currently connected. All accesses must be synchronized.
+   */
+  private final Set<Connection> connections = new HashSet<>();
+
+  /**
+   * Sockets being served, WebSocket or not. All accesses must be synchronized.
+   */
+  private int activeSocketCount;
+
+  /**
+   * Short ID of every key ever sent in the compact format, and the key for each ID. IDs are never
+   * reused during the life of the server. All accesses must be synchronized.
+   */
+  private final Map<String, Integer> keyIds = new HashMap<>();
+  private final List<String> idKeys = new ArrayList<>();
+
+  /**
+   * Bytes and values queued to clients in each format. All accesses must be synchronized.
+   */
+  private long fullBytes;
+  private long fullValueCount;
+  private long compactBytes;
+  private long compactValueCount;
+
+  private Listener listener;
+  private volatile SyncLatencyTracker latencyTracker;
+  private volatile boolean closed;
+
+  /**
+   * Creates a server that listens on {@code port} on the loopback interface, or on any free port if
+   * it is 0. Call {@link #start()} to start accepting connections.
+   */
+  public LanRemoteControlServer(int port) throws IOException {
+    this(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}), port);
+  }
+
+  /**
+   * Creates a server that listens on {@code port} on {@code bindAddress}, or on any free port if
+   * {@code port} is 0. Any host that can reach that address and knows the token can read and change
+   * every variable, so only use an address other than loopback on a trusted network.
+   */
+  public LanRemoteControlServer(InetAddress bindAddress, int port) throws IOException {
+    this(new ServerSocket(port, 0, bindAddress));
+  }
+
+  /**
+   * Creates a server that accepts connections on an already bound {@code serverSocket}.
+   */
+  public LanRemoteControlServer(ServerSocket serverSocket) {
+    this.serverSocket = serverSocket;
+    byte[] tokenBytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(tokenBytes);
+    StringBuilder builder = new StringBuilder();
+    for (byte tokenByte : tokenBytes) {
+      builder.append(String.format(Locale.US, "%02x", tokenByte));
+    }
+    token = builder.toString();
+  }
+
+  /**
+   * Starts accepting connections on a background thread.
+   */
+  public void start() {
+    startThread("RemixerLanServer", new Runnable() {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    });
+  }
+
+  /**
+   * Returns the port the server is listening on.
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the address the server is listening on.
+   */
+  public InetAddress getAddress() {
+    return serverSocket.getInetAddress();
+  }
+
+  /**
+   * Returns the token clients must send as the {@code token} query parameter of every request. It
+   * is random and changes every time a server is created, so it has to be shared with remote
+   * controllers out of band, for example by logging it or showing it on screen.
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Allows web pages from {@code origin} (such as {@code "http://localhost:3000"}) to connect,
+   * which they still need the token for.
+   */
+  public synchronized void addAllowedOrigin(String origin) {
+    allowedOrigins.add(origin);
+  }
+
+  /**
+   * Returns how many WebSocket clients are connected.
+   */
+  public synchronized int getClientCount() {
+    return connections.size();
+  }
+
+  /**
+   * Returns how many bytes of messages were sent to clients, over all connections.
+   */
+  public synchronized long getSentBytes() {
+    return fullBytes + compactBytes;
+  }
+
+  /**
+   * Returns how many variables or values were sent to clients, over all connections.
+   */
+  public synchronized long getSentValueCount() {
+    return fullValueCount + compactValueCount;
+  }
+
+  /**
+   * Writes a human-readable summary of the clients and of the bytes sent per value in each format
+   * to {@code writer}, each line starting with {@code prefix}.
+   */
+  public synchronized void dump(PrintWriter writer, String prefix) {
+    int compactClients = 0;
+    for (Connection connection : connections) {
+      if (connection.compact) {
+        compactClients++;
+      }
+    }
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%sclients: %d (%d compact)",
+        prefix,
+        connections.size(),
+        compactClients));
+    dumpFormat(writer, prefix, "full", fullBytes, fullValueCount);
+    dumpFormat(writer, prefix, "compact", compactBytes, compactValueCount);
+  }
+
+  /**
+   * Stops accepting connections and disconnects all clients.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    serverSocket.close();
+    List<Connection> currentConnections;
+    synchronized (this) {
+      currentConnections = new ArrayList<>(connections);
+      connections.clear();
+    }
+    for (Connection connection : currentConnections) {
+      connection.close();
+    }
+  }
+
+  @Override
+  public synchronized void send(
+      Map<String, StoredVariable> changedVariables, Collection<String> removedKeys) {
+    variables.keySet().removeAll(removedKeys);
+    List<StoredVariable> definitions = new ArrayList<>();
+    List<StoredVariable> values = new ArrayList<>();
+    storeVariables(changedVariables.values(), definitions, values);
+    broadcast(TYPE_UPDATE, definitions, values, removedKeys, null);
+  }
+
+  @Override
+  public synchronized void clear() {
+    variables.clear();
+    broadcast(TYPE_SNAPSHOT, NO_VARIABLES, NO_VARIABLES, NO_KEYS, null);
+  }
+
+  @Override
+  public synchronized void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the tracker to report the variables received from clients to, or null to stop reporting
+   * them.
+   */
+  public void setLatencyTracker(SyncLatencyTracker latencyTracker) {
+    this.latencyTracker = latencyTracker;
+  }
+
+  /**
+   * Sends {@code trace} to every client as a {@code "trace"} message with the variable's
+   * {@code "key"}, the {@code "timestamp"} the client put on the value, and the microseconds each
+   * known stage took under {@code "stages"}, keyed by stage name. Traces are not counted in the
+   * bytes sent per value.
+   */
+  public synchronized void sendTrace(SyncLatencyTracker.Trace trace) {
+    JsonObject message = new JsonObject();
+    message.addProperty(FIELD_TYPE, TYPE_TRACE);
+    message.addProperty(FIELD_KEY, trace.getKey());
+    message.addProperty(FIELD_TIMESTAMP, trace.getTimestampMillis());
+    JsonObject stages = new JsonObject();
+    for (int i = 0; i < SyncLatencyTracker.STAGE_COUNT; i++) {
+      long micros = trace.getStageMicros(i);
+      if (micros >= 0) {
+        stages.addProperty(SyncLatencyTracker.getStageName(i), micros);
+      }
+    }
+    message.add(FIELD_STAGES, stages);
+    byte[] bytes = message.toString().getBytes(WebSocketFrames.UTF_8);
+    for (Connection connection : connections) {
+      // Clients that fall behind are disconnected on the next update.
+      connection.enqueue(WebSocketFrames.OPCODE_TEXT, bytes);
+    }
+  }
+
+  private void acceptConnections() {
+    while (!closed) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        // Either the server was closed or accepting failed, in which case there is nothing else
+        // this server can do.
+        return;
+      }
+      synchronized (this) {
+        if (activeSocketCount >= MAX_CONNECTIONS) {
+          closeQuietly(socket);
+          continue;
+        }
+        activeSocketCount++;
+      }
+      startThread("RemixerLanConnection", new Runnable() {
+        @Override
+        public void run() {
+          handleConnection(socket);
+        }
+      });
+    }
+  }
+
+  private void handleConnection(Socket socket) {
+    boolean upgraded = false;
+    try {
+      socket.setTcpNoDelay(true);
+      // Unauthenticated clients cannot hold on to this thread for longer than this.
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+      InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+      OutputStream outputStream = socket.getOutputStream();
+      String requestLine = WebSocketFrames.readHttpLine(inputStream);
+      Map<String, String> headers = readHeaders(inputStream);
+      String[] requestParts = requestLine != null ? requestLine.split(" ") : new String[0];
+      if (requestParts.length != 3 || !"GET".equals(requestParts[0])) {
+        writeResponse(outputStream, "405 Method Not Allowed", null, false, null);
+        return;
+      }
+      String path = requestParts[1];
+      Map<String, String> parameters = Collections.emptyMap();
+      int queryStart = path.indexOf('?');
+      if (queryStart >= 0) {
+        parameters = parseQuery(path.substring(queryStart + 1));
+        path = path.substring(0, queryStart);
+      }
+      String origin = headers.get("origin");
+      if (!isValidToken(parameters.get(PARAMETER_TOKEN)) || !isAllowedOrigin(origin)) {
+        writeResponse(outputStream, "403 Forbidden", null, false, null);
+        return;
+      }
+      String acceptEncoding = headers.get("accept-encoding");
+      if (VARIABLES_PATH.equals(path)) {
+        writeResponse(
+            outputStream,
+            "200 OK",
+            getVariablesJson(),
+            acceptEncoding != null && acceptEncoding.contains(COMPRESSION_GZIP),
+            origin);
+      } else if (SYNC_PATH.equals(path)
+          && "websocket".equalsIgnoreCase(headers.get("upgrade"))
+          && headers.containsKey("sec-websocket-key")) {
+        upgraded = true;
+        Connection connection = new Connection(
+            socket,
+            outputStream,
+            FORMAT_COMPACT.equals(parameters.get(PARAMETER_FORMAT)),
+            COMPRESSION_GZIP.equals(parameters.get(PARAMETER_COMPRESSION)));
+        serveWebSocket(connection, inputStream, headers.get("sec-websocket-key"));
+      } else {
+        writeResponse(outputStream, "404 Not Found", null, false, null);
+      }
+    } catch (IOException e) {
+      // The client went away or sent something invalid, either way just drop the connection.
+    } finally {
+      if (!upgraded) {
+        closeQuietly(socket);
+      }
+      synchronized (this) {
+        activeSocketCount--;
+      }
+    }
+  }
+
+  /**
+   * Returns whether {@code candidate} is this session's token, comparing them in constant time.
+   */
+  private boolean isValidToken(String candidate) {
+    return candidate != null && MessageDigest.isEqual(
+        token.getBytes(WebSocketFrames.UTF_8), candidate.getBytes(WebSocketFrames.UTF_8));
+  }
+
+  /**
+   * Returns whether a request with {@code origin} as its {@code Origin} header is allowed. Requests
+   * without one do not come from web pages, so only the token matters for them.
+   */
+  private synchronized boolean isAllowedOrigin(String origin) {
+    return origin == null || allowedOrigins.contains(origin);
+  }
+
+  /**
+   * Completes the opening handshake and serves a WebSocket client until it disconnects.
+   */
+  private void serveWebSocket(
+      final Connection connection, InputStream inputStream, String clientKey) throws IOException {
+    OutputStream outputStream = connection.outputStream;
+    outputStream.write(String.format(Locale.US,
+        "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: %s\r\n\r\n",
+        WebSocketFrames.computeAcceptKey(clientKey)).getBytes(WebSocketFrames.UTF_8));
+    outputStream.flush();
+    connection.socket.setSoTimeout(IDLE_TIMEOUT_MS);
+    synchronized (this) {
+      if (closed) {
+        closeQuietly(connection.socket);
+        return;
+      }
+      // Queued while holding the lock so no update can get in front of the snapshot.
+      List<StoredVariable> snapshot = new ArrayList<>(variables.values());
+      enqueue(
+          connection,
+          TYPE_SNAPSHOT,
+          encodeMessage(TYPE_SNAPSHOT, snapshot, NO_VARIABLES, NO_KEYS, connection.compact),
+          snapshot.size());
+      connections.add(connection);
+    }
+    startThread("RemixerLanWriter", new Runnable() {
+      @Override
+      public void run() {
+        connection.writeQueuedMessages();
+      }
+    });
+    boolean closedByClient = false;
+    try {
+      while (!closedByClient) {
+        WebSocketFrames.Message message = WebSocketFrames.readMessage(inputStream);
+        if (message.opcode == WebSocketFrames.OPCODE_CLOSE) {
+          connection.enqueueControl(WebSocketFrames.OPCODE_CLOSE, message.payload);
+          closedByClient = true;
+        } else if (message.opcode == WebSocketFrames.OPCODE_PING) {
+          connection.enqueueControl(WebSocketFrames.OPCODE_PONG, message.payload);
+        } else if (message.opcode == WebSocketFrames.OPCODE_TEXT) {
+          handleClientMessage(connection, message.getText());
+        }
+      }
+    } finally {
+      synchronized (this) {
+        connections.remove(connection);
+      }
+      if (closedByClient) {
+        // Let the writer send the close reply, it closes the socket afterwards.
+        connection.finish();
+      } else {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Applies an update sent by a client and forwards it to all the other clients.
+   */
+  private void handleClientMessage(Connection sender, String text) {
+    long startNanos = System.nanoTime();
+    List<StoredVariable> receivedVariables = new ArrayList<>();
+    JsonArray valueEntries;
+    try {
+      JsonObject message = parseObject(text);
+      String type = getString(message, FIELD_TYPE);
+      if (type == null) {
+        throw new ProtocolException("Messages must have a type");
+      } else if (!TYPE_UPDATE.equals(type)) {
+        return;
+      }
+      JsonArray variableEntries = getArray(message, FIELD_VARIABLES);
+      if (variableEntries != null) {
+        for (JsonElement element : variableEntries) {
+          receivedVariables.add(decodeVariable(element));
+        }
+      }
+      valueEntries = getArray(message, FIELD_VALUES);
+    } catch (ProtocolException e) {
+      sendError(sender, e.getMessage());
+      return;
+    }
+    Listener currentListener;
+    Map<String, StoredVariable> changedVariables = new LinkedHashMap<>();
+    Set<String> addedKeys = new HashSet<>();
+    long receivedNanos;
+    synchronized (this) {
+      currentListener = listener;
+      if (valueEntries != null) {
+        try {
+          for (JsonElement element : valueEntries) {
+            StoredVariable variable = decodeValue(element);
+            if (variable != null) {
+              receivedVariables.add(variable);
+            }
+          }
+        } catch (ProtocolException e) {
+          sendError(sender, e.getMessage());
+          return;
+        }
+      }
+      receivedNanos = System.nanoTime();
+      for (StoredVariable variable : receivedVariables) {
+        if (!variables.containsKey(variable.getKey())) {
+          addedKeys.add(variable.getKey());
+        }
+        changedVariables.put(variable.getKey(), variable);
+      }
+      List<StoredVariable> definitions = new ArrayList<>();
+      List<StoredVariable> values = new ArrayList<>();
+      storeVariables(changedVariables.values(), definitions, values);
+      broadcast(TYPE_UPDATE, definitions, values, NO_KEYS, sender);
+      if (sender.compact && !definitions.isEmpty()) {
+        // The sender needs the IDs of the variables it defined to understand later values.
+        enqueue(
+            sender,
+            TYPE_UPDATE,
+            encodeMessage(TYPE_UPDATE, definitions, NO_VARIABLES, NO_KEYS, true),
+            definitions.size());
+      }
+    }
+    if (currentListener == null) {
+      return;
+    }
+    SyncLatencyTracker currentTracker = latencyTracker;
+    if (currentTracker != null) {
+      // Variables are decoded together, so each one is charged for decoding the whole message.
+      for (StoredVariable variable : changedVariables.values()) {
+        currentTracker.recordReceived(variable, receivedNanos, receivedNanos - startNanos);
+      }
+    }
+    for (StoredVariable variable : changedVariables.values()) {
+      if (addedKeys.contains(variable.getKey())) {
+        currentListener.onRemoteVariableAdded(variable);
+      } else {
+        currentListener.onRemoteVariableChanged(variable);
+      }
+    }
+  }
+
+  /**
+   * Stores {@code changedVariables} as the latest copies, and splits them into the ones whose
+   * definition clients do not have yet, added to {@code definitions}, and the ones of which only
+   * the value changed, added to {@code values}. Must be called while holding the lock.
+   */
+  private void storeVariables(
+      Collection<StoredVariable> changedVariables,
+      List<StoredVariable> definitions,
+      List<StoredVariable> values) {
+    for (StoredVariable variable : changedVariables) {
+      StoredVariable previous = variables.put(variable.getKey(), variable);
+      if (previous != null && previous.hasSameDefinitionAs(variable)) {
+        values.add(variable);
+      } else {
+        definitions.add(variable);
+      }
+    }
+  }
+
+  /**
+   * Queues a message to every client but {@code except}, encoding it once per format. Must be
+   * called while holding the lock.
+   */
+  private void broadcast(
+      String type,
+      List<StoredVariable> definitions,
+      List<StoredVariable> values,
+      Collection<String> removedKeys,
+      Connection except) {
+    byte[] fullMessage = null;
+    byte[] compactMessage = null;
+    int valueCount = definitions.size() + values.size();
+    List<Connection> slowConnections = null;
+    for (Connection connection : connections) {
+      if (connection == except) {
+        continue;
+      }
+      byte[] message;
+      if (connection.compact) {
+        if (compactMessage == null) {
+          compactMessage = encodeMessage(type, definitions, values, removedKeys, true);
+        }
+        message = compactMessage;
+      } else {
+        if (fullMessage == null) {
+          fullMessage = encodeMessage(type, definitions, values, removedKeys, false);
+        }
+        message = fullMessage;
+      }
+      if (!enqueue(connection, type, message, valueCount)) {
+        if (slowConnections == null) {
+          slowConnections = new ArrayList<>();
+        }
+        slowConnections.add(connection);
+      }
+    }
+    if (slowConnections != null) {
+      for (Connection connection : slowConnections) {
+        connections.remove(connection);
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Queues {@code message} to {@code connection}, compressing it if it is a large snapshot and the
+   * client accepts it, and counts what it costs. Returns false if too many messages are already
+   * queued. Must be called while holding the lock.
+   */
+  private boolean enqueue(Connection connection, String type, byte[] message, int valueCount) {
+    int opcode = WebSocketFrames.OPCODE_TEXT;
+    if (connection.gzip
+        && TYPE_SNAPSHOT.equals(type)
+        && message.length > COMPRESSION_THRESHOLD_BYTES) {
+      message = gzip(message);
+      opcode = WebSocketFrames.OPCODE_BINARY;
+    }
+    if (!connection.enqueue(opcode, message)) {
+      return false;
+    }
+    if (connection.compact) {
+      compactBytes += message.length;
+      compactValueCount += valueCount;
+    } else {
+      fullBytes += message.length;
+      fullValueCount += valueCount;
+    }
+    return true;
+  }
+
+  private synchronized String getVariablesJson() {
+    JsonObject response = new JsonObject();
+    JsonArray array = new JsonArray();
+    for (StoredVariable variable : variables.values()) {
+      array.add(encodeVariable(variable, false));
+    }
+    response.add(FIELD_VARIABLES, array);
+    return response.toString();
+  }
+
+  /**
+   * Encodes a message with the full {@code definitions} and the {@code values}. In the compact
+   * format only the values of the latter are included. Must be called while holding the lock.
+   */
+  private byte[] encodeMessage(
+      String type,
+      List<StoredVariable> definitions,
+      List<StoredVariable> values,
+      Collection<String> removedKeys,
+      boolean compact) {
+    JsonObject message = new JsonObject();
+    message.addProperty(FIELD_TYPE, type);
+    JsonArray variablesArray = new JsonArray();
+    for (StoredVariable variable : definitions) {
+      variablesArray.add(encodeVariable(variable, compact));
+    }
+    if (!compact || !definitions.isEmpty() || TYPE_SNAPSHOT.equals(type)) {
+      // Compact updates leave it out when there are only values.
+      message.add(FIELD_VARIABLES, variablesArray);
+    }
+    if (compact) {
+      if (!values.isEmpty()) {
+        JsonArray valuesArray = new JsonArray();
+        for (StoredVariable variable : values) {
+          valuesArray.add(encodeValue(variable));
+        }
+        message.add(FIELD_VALUES, valuesArray);
+      }
+    } else {
+      for (StoredVariable variable : values) {
+        variablesArray.add(encodeVariable(variable, false));
+      }
+    }
+    if (!removedKeys.isEmpty()) {
+      JsonArray removed = new JsonArray();
+      for (String key : removedKeys) {
+        removed.add(key);
+      }
+      message.add(FIELD_REMOVED, removed);
+    }
+    return message.toString().getBytes(WebSocketFrames.UTF_8);
+  }
+
+  /**
+   * Encodes a full variable, along with its ID in the compact format. Must be called while
+   * holding the lock.
+   */
+  private JsonObject encodeVariable(StoredVariable variable, boolean compact) {
+    JsonObject object = gson.toJsonTree(variable, StoredVariable.class).getAsJsonObject();
+    if (compact) {
+      object.addProperty(FIELD_ID, getId(variable.getKey()));
+    }
+    return object;
+  }
+
+  /**
+   * Encodes the ID and value of a variable. Must be called while holding the lock.
+   */
+  private JsonObject encodeValue(StoredVariable variable) {
+    JsonObject object = gson.toJsonTree(variable, StoredVariable.class).getAsJsonObject();
+    JsonObject value = new JsonObject();
+    value.addProperty(FIELD_ID, getId(variable.getKey()));
+    for (String field : VALUE_FIELDS) {
+      JsonElement element = object.get(field);
+      if (element != null) {
+        value.add(field, element);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Decodes a variable sent by a client in full.
+   */
+  private StoredVariable decodeVariable(JsonElement element) throws ProtocolException {
+    if (!element.isJsonObject()) {
+      throw new ProtocolException("Variables must be JSON objects");
+    }
+    JsonObject object = element.getAsJsonObject();
+    if (getString(object, StoredVariable.KEY) == null
+        || getString(object, StoredVariable.DATA_TYPE) == null) {
+      throw new ProtocolException("Variables must have a key and a data type");
+    }
+    return deserialize(object);
+  }
+
+  /**
+   * Decodes a value sent by a client in the compact format into a full variable, or returns null
+   * if the ID is unknown. Must be called while holding the lock.
+   */
+  private StoredVariable decodeValue(JsonElement element) throws ProtocolException {
+    if (!element.isJsonObject()) {
+      throw new ProtocolException("Values must be JSON objects");
+    }
+    JsonObject value = element.getAsJsonObject();
+    JsonElement idElement = value.get(FIELD_ID);
+    if (idElement == null
+        || !idElement.isJsonPrimitive()
+        || !idElement.getAsJsonPrimitive().isNumber()) {
+      throw new ProtocolException("Values must have a numeric id");
+    }
+    int id = idElement.getAsInt();
+    StoredVariable current =
+        id >= 0 && id < idKeys.size() ? variables.get(idKeys.get(id)) : null;
+    if (current == null) {
+      return null;
+    }
+    JsonObject object = gson.toJsonTree(current, StoredVariable.class).getAsJsonObject();
+    object.remove(StoredVariable.CLOCK);
+    object.remove(StoredVariable.ORIGIN);
+    object.remove(StoredVariable.TIMESTAMP);
+    for (String field : VALUE_FIELDS) {
+      JsonElement fieldElement = value.get(field);
+      if (fieldElement != null) {
+        object.add(field, fieldElement);
+      }
+    }
+    return deserialize(object);
+  }
+
+  /**
+   * Deserializes a variable whose key and data type are known to be there.
+   */
+  private StoredVariable deserialize(JsonObject object) throws ProtocolException {
+    try {
+      return gson.fromJson(object, StoredVariable.class);
+    } catch (JsonParseException | IllegalStateException | ClassCastException
+        | NumberFormatException e) {
+      // The fields have the wrong types for the variable's data type.
+      throw new ProtocolException("Invalid variable " + getString(object, StoredVariable.KEY));
+    }
+  }
+
+  /**
+   * Queues an error message to {@code connection}.
+   */
+  private synchronized void sendError(Connection connection, String description) {
+    JsonObject message = new JsonObject();
+    message.addProperty(FIELD_TYPE, TYPE_ERROR);
+    message.addProperty(FIELD_MESSAGE, description);
+    connection.enqueue(
+        WebSocketFrames.OPCODE_TEXT, message.toString().getBytes(WebSocketFrames.UTF_8));
+  }
+
+  /**
+   * Returns the ID of {@code key}, assigning one if it has none yet. Must be called while holding
+   * the lock.
+   */
+  private int getId(String key) {
+    Integer id = keyIds.get(key);
+    if (id == null) {
+      id = idKeys.size();
+      keyIds.put(key, id);
+      idKeys.add(key);
+    }
+    return id;
+  }
+
+  private static void dumpFormat(
+      PrintWriter writer, String prefix, String format, long bytes, long valueCount) {
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%s%s format: %d bytes for %d values (%.1f bytes/value)",
+        prefix,
+        format,
+        bytes,
+        valueCount,
+        valueCount == 0 ? 0 : (double) bytes / valueCount));
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> parameters = new HashMap<>();
+    for (String parameter : query.split("&")) {
+      int separator = parameter.indexOf('=');
+      if (separator > 0) {
+        parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+      }
+    }
+    return parameters;
+  }
+
+  private static byte[] gzip(byte[] data) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4);
+    try {
+      GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+      gzipStream.write(data);
+      gzipStream.close();
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to memory cannot fail", e);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static JsonObject parseObject(String text) throws ProtocolException {
+    JsonElement element;
+    try {
+      element = new JsonParser().parse(text);
+    } catch (JsonParseException e) {
+      throw new ProtocolException("Messages must be JSON");
+    }
+    if (!element.isJsonObject()) {
+      throw new ProtocolException("Messages must be JSON objects");
+    }
+    return element.getAsJsonObject();
+  }
+
+  /**
+   * Returns the string in {@code field}, or null if it is missing.
+   *
+   * @throws ProtocolException if it is not a string.
+   */
+  private static String getString(JsonObject object, String field) throws ProtocolException {
+    JsonElement element = object.get(field);
+    if (element == null || element.isJsonNull()) {
+      return null;
+    }
+    if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString()) {
+      throw new ProtocolException(field + " must be a string");
+    }
+    return element.getAsString();
+  }
+
+  /**
+   * Returns the array in {@code field}, or null if it is missing.
+   *
+   * @throws ProtocolException if it is not an array.
+   */
+  private static JsonArray getArray(JsonObject object, String field) throws ProtocolException {
+    JsonElement element = object.get(field);
+    if (element == null || element.isJsonNull()) {
+      return null;
+    }
+    if (!element.isJsonArray()) {
+      throw new ProtocolException(field + " must be an array");
+    }
+    return element.getAsJsonArray();
+  }
+
+  private static Map<String, String> readHeaders(InputStream inputStream) throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    String line;
+    int lineCount = 0;
+    while ((line = WebSocketFrames.readHttpLine(inputStream)) != null && !line.isEmpty()) {
+      if (++lineCount > MAX_HEADER_LINES) {
+        throw new IOException("Too many HTTP header lines");
+      }
+      int separator = line.indexOf(':');
+      if (separator > 0) {
+        headers.put(
+            line.substring(0, separator).trim().toLowerCase(Locale.US),
+            line.substring(separator + 1).trim());
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Writes a response with {@code body}, compressed if the client accepts gzip and it is large.
+   * If {@code allowedOrigin} is not null, the response can be read by web pages from that origin.
+   */
+  private static void writeResponse(
+      OutputStream outputStream,
+      String status,
+      String body,
+      boolean acceptsGzip,
+      String allowedOrigin)
+      throws IOException {
+    byte[] bodyBytes = body != null ? body.getBytes(WebSocketFrames.UTF_8) : new byte[0];
+    String contentEncoding = "";
+    if (acceptsGzip && bodyBytes.length > COMPRESSION_THRESHOLD_BYTES) {
+      bodyBytes = gzip(bodyBytes);
+      contentEncoding = "Content-Encoding: gzip\r\n";
+    }
+    String allowOrigin = allowedOrigin != null
+        ? "Access-Control-Allow-Origin: " + allowedOrigin + "\r\nVary: Origin\r\n"
+        : "";
+    outputStream.write(String.format(Locale.US,
+        "HTTP/1.1 %s\r\n"
+            + "Content-Type: application/json; charset=utf-8\r\n"
+            + "%s"
+            + "Content-Length: %d\r\n"
+            + "%s"
+            + "Connection: close\r\n\r\n",
+        status,
+        contentEncoding,
+        bodyBytes.length,
+        allowOrigin).getBytes(WebSocketFrames.UTF_8));
+    outputStream.write(bodyBytes);
+    outputStream.flush();
+  }
+
+  private static void startThread(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing else to do.
+    }
+  }
+
+  /**
+   * Thrown when a client sends a message that does not follow the protocol.
+   */
+  private static class ProtocolException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    ProtocolException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A connected WebSocket client and the messages waiting to be written to it.
+   */
+  private static class Connection {
+
+    private final Socket socket;
+    private final OutputStream outputStream;
+    /**
+     * Whether the client asked for the compact format.
+     */
+    private final boolean compact;
+    /**
+     * Whether the client accepts compressed snapshots.
+     */
+    private final boolean gzip;
+    /**
+     * Frames to write, already encoded, with {@link #END_OF_STREAM} as the last one.
+     */
+    private final BlockingQueue<byte[]> outgoingFrames =
+        new LinkedBlockingQueue<>(MAX_QUEUED_MESSAGES);
+
+    Connection(Socket socket, OutputStream outputStream, boolean compact, boolean gzip) {
+      this.socket = socket;
+      this.outputStream = outputStream;
+      this.compact = compact;
+      this.gzip = gzip;
+    }
+
+    /**
+     * Queues a text or binary message, returns false if too many are already queued.
+     */
+    boolean enqueue(int opcode, byte[] message) {
+      return outgoingFrames.offer(encodeFrame(opcode, message));
+    }
+
+    void enqueueControl(int opcode, byte[] payload) {
+      outgoingFrames.offer(encodeFrame(opcode, payload));
+    }
+
+    void writeQueuedMessages() {
+      try {
+        while (true) {
+          byte[] frame = outgoingFrames.poll(PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+          if (frame == null) {
+            // Nothing to send for a while, make sure the client is still there.
+            frame = encodeFrame(WebSocketFrames.OPCODE_PING, new byte[0]);
+          } else if (frame == END_OF_STREAM) {
+            return;
+          }
+          outputStream.write(frame);
+          outputStream.flush();
+        }
+      } catch (IOException | InterruptedException e) {
+        // The client went away, the reader will notice as well.
+      } finally {
+        closeQuietly(socket);
+      }
+    }
+
+    /**
+     * Stops the writer once it has written all the queued frames.
+     */
+    void finish() {
+      try {
+        outgoingFrames.put(END_OF_STREAM);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+      }
+    }
+
+    /**
+     * Disconnects right away, dropping the queued frames.
+     */
+    void close() {
+      outgoingFrames.clear();
+      outgoingFrames.offer(END_OF_STREAM);
+      closeQuietly(socket);
+    }
+
+    private static byte[] encodeFrame(int opcode, byte[] payload) {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 10);
+      try {
+        WebSocketFrames.writeFrame(frame, opcode, payload, null);
+      } catch (IOException e) {
+        throw new IllegalStateException("Writing to memory cannot fail", e);
+      }
+      return frame.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts latencies in power-of-two buckets (in microseconds), so recording is cheap and takes
+ * constant memory, and percentiles are approximate: they are the upper bound of the bucket the
+ * percentile falls in. Not thread safe, callers synchronize.
+ */
+class LatencyHistogram {
+
+  /**
+   * Bucket {@code i} counts latencies under {@code 2^i} microseconds and not in an earlier bucket.
+   */
+  private static final int BUCKETS = 32;
+
+  private final long[] buckets = new long[BUCKETS];
+  private long count;
+  private long maxNanos;
+
+  /**
+   * Records a latency of {@code nanos}.
+   */
+  void record(long nanos) {
+    count++;
+    maxNanos = Math.max(maxNanos, nanos);
+    long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    buckets[Math.min(bucket, BUCKETS - 1)]++;
+  }
+
+  /**
+   * Returns how many latencies were recorded.
+   */
+  long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the longest latency recorded, in microseconds.
+   */
+  long getMaxMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxNanos);
+  }
+
+  /**
+   * Returns an upper bound of the latency at {@code percentile} (between 0 and 100), in
+   * microseconds, or 0 if nothing was recorded.
+   */
+  long getPercentileMicros(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentiles must be between 0 and 100");
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100 * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) {
+        return 1L << i;
+      }
+    }
+    return 1L << (BUCKETS - 1);
+  }
+}
@@ -30,6 +30,7 @@ public class LocalValueSyncing implements SynchronizationMechanism {
 
   protected SerializableRemixerContents serializableRemixerContents =
       new SerializableRemixerContents();
+  private final SyncLatencyTracker latencyTracker = new SyncLatencyTracker();
   private Remixer remixer;
 
   @Override
@@ -37,6 +38,21 @@ public class LocalValueSyncing implements SynchronizationMechanism {
     this.remixer = remixer;
   }
 
+  /**
+   * Returns the Remixer instance this synchronization mechanism is attached to, if any.
+   */
+  protected Remixer getRemixer() {
+    return remixer;
+  }
+
+  /**
+   * Returns the tracker for the latency of the remote changes applied by this synchronization
+   * mechanism, which transports report received values to.
+   */
+  public SyncLatencyTracker getLatencyTracker() {
+    return latencyTracker;
+  }
+
   @Override
   @SuppressWarnings("unchecked")
   public void onAddingVariable(Variable variable) {
@@ -60,6 +76,71 @@ public class LocalValueSyncing implements SynchronizationMechanism {
     }
   }
 
+  /**
+   * Adds a variable that a remote controller has. If there already is one with the same key the
+   * newer value wins, and unversioned remote values never override the local one.
+   */
+  protected void addRemoteVariable(StoredVariable storedVariable) {
+    if (!serializableRemixerContents.keySet().contains(storedVariable.getKey())) {
+      serializableRemixerContents.addItem(storedVariable);
+    } else if (storedVariable.getClock() != 0) {
+      applyRemoteValue(storedVariable);
+      return;
+    }
+    latencyTracker.discard(storedVariable.getKey());
+  }
+
+  /**
+   * Applies a value that was changed in a remote controller to all the variables with its key,
+   * without notifying this synchronization mechanism of the change. Values older than the current
+   * one are ignored.
+   */
+  @SuppressWarnings("unchecked")
+  protected void applyRemoteValue(StoredVariable storedVariable) {
+    if (!serializableRemixerContents.keySet().contains(storedVariable.getKey())) {
+      serializableRemixerContents.addItem(storedVariable);
+      latencyTracker.discard(storedVariable.getKey());
+      return;
+    }
+    long startNanos = System.nanoTime();
+    if (!serializableRemixerContents.setValue(storedVariable)) {
+      latencyTracker.discard(storedVariable.getKey());
+      return;
+    }
+    long fanOutNanos = System.nanoTime();
+    List<Variable> variables =
+        remixer != null ? remixer.getVariablesWithKey(storedVariable.getKey()) : null;
+    Object value = null;
+    if (variables != null) {
+      value = Remixer.getDataType(storedVariable.getDataType())
+          .getConverter().toRuntimeType(storedVariable.getSelectedValue());
+    }
+    long callbacksNanos = System.nanoTime();
+    if (variables != null) {
+      // Setting the value runs the variable's callback.
+      for (Variable variable : variables) {
+        variable.setValueWithoutNotifyingOthers(value);
+      }
+    }
+    latencyTracker.recordApplied(
+        storedVariable.getKey(), startNanos, fanOutNanos, callbacksNanos, System.nanoTime());
+  }
+
+  /**
+   * Returns a copy of {@code variable}'s current value, stamped with the version it has in the
+   * local contents and the current time, to send to remote controllers.
+   */
+  protected StoredVariable createStoredCopy(Variable variable) {
+    StoredVariable storedVariable = StoredVariable.fromVariable(variable);
+    storedVariable.setTimestamp(System.currentTimeMillis());
+    StoredVariable current = serializableRemixerContents.getItem(variable.getKey());
+    if (current != null) {
+      storedVariable.setClock(current.getClock());
+      storedVariable.setOrigin(current.getOrigin());
+    }
+    return storedVariable;
+  }
+
   @Override
   public void onContextChanged(Object currentContext) {
     // Nothing to do here, this class does not care which is the current context.
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory {@link RemoteTransport} that connects two endpoints in the same process, one
+ * standing in for the device and the other for the remote controller. It is meant for tests and
+ * for benchmarking synchronization mechanisms without a live backend.
+ *
+ * <p>What one endpoint sends is delivered to the listener of the other after a fixed latency, on
+ * the given executor. Each send is lost as a whole with the given probability, like a message on an
+ * unreliable network. Variables are copied through their JSON form so both ends never share
+ * objects, which also makes the cost of serialization part of the measurements.
+ *
+ * <p>A received variable is reported as added if the receiving endpoint has not sent or received
+ * its key before, and as changed otherwise, like a backend that keeps the values both ends write.
+ *
+ * <p>Deliveries happen in the order they were sent as long as the executor has a single thread.
+ */
+public class LoopbackRemoteTransport implements RemoteTransport {
+
+  private final ScheduledExecutorService executor;
+  private final long latencyMicros;
+  private final double lossRate;
+  private final Random random;
+  private final Gson gson = GsonProvider.getInstance();
+
+  private LoopbackRemoteTransport peer;
+  private Listener listener;
+  private volatile SyncLatencyTracker latencyTracker;
+
+  /**
+   * Keys this endpoint has sent or received, to tell added variables apart from changed ones. Only
+   * accessed from the executor.
+   */
+  private final Set<String> knownKeys = new HashSet<>();
+
+  private long sentCount;
+  private long lostCount;
+
+  /**
+   * Creates an endpoint that delivers to its peer after {@code latencyMicros} microseconds and
+   * loses each send with probability {@code lossRate}, decided by {@code random}. Connect it to its
+   * peer with {@link #connect(LoopbackRemoteTransport, LoopbackRemoteTransport)}.
+   */
+  public LoopbackRemoteTransport(
+      ScheduledExecutorService executor, long latencyMicros, double lossRate, Random random) {
+    if (latencyMicros < 0 || lossRate < 0 || lossRate > 1) {
+      throw new IllegalArgumentException(
+          "The latency must not be negative and the loss rate must be between 0 and 1");
+    }
+    this.executor = executor;
+    this.latencyMicros = latencyMicros;
+    this.lossRate = lossRate;
+    this.random = random;
+  }
+
+  /**
+   * Connects two endpoints to each other.
+   */
+  public static void connect(LoopbackRemoteTransport first, LoopbackRemoteTransport second) {
+    synchronized (first) {
+      first.peer = second;
+    }
+    synchronized (second) {
+      second.peer = first;
+    }
+  }
+
+  @Override
+  public void send(Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+    final LoopbackRemoteTransport target;
+    synchronized (this) {
+      sentCount++;
+      if (peer == null || random.nextDouble() < lossRate) {
+        lostCount++;
+        return;
+      }
+      target = peer;
+    }
+    final Set<String> sentKeys = new HashSet<>(variables.keySet());
+    final Set<String> sentRemovedKeys = new HashSet<>(removedKeys);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        knownKeys.addAll(sentKeys);
+        knownKeys.removeAll(sentRemovedKeys);
+      }
+    });
+    final List<String> serializedVariables = new ArrayList<>(variables.size());
+    for (StoredVariable variable : variables.values()) {
+      serializedVariables.add(gson.toJson(variable, StoredVariable.class));
+    }
+    deliver(new Runnable() {
+      @Override
+      public void run() {
+        target.receive(serializedVariables, sentRemovedKeys);
+      }
+    });
+  }
+
+  @Override
+  public void clear() {
+    final LoopbackRemoteTransport target;
+    synchronized (this) {
+      target = peer;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        knownKeys.clear();
+      }
+    });
+    if (target != null) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          target.knownKeys.clear();
+        }
+      });
+    }
+  }
+
+  @Override
+  public synchronized void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the tracker to report received variables to, or null to stop reporting them.
+   */
+  public void setLatencyTracker(SyncLatencyTracker latencyTracker) {
+    this.latencyTracker = latencyTracker;
+  }
+
+  /**
+   * Returns how many times {@link #send(Map, Collection)} was called.
+   */
+  public synchronized long getSentCount() {
+    return sentCount;
+  }
+
+  /**
+   * Returns how many of the sends were lost.
+   */
+  public synchronized long getLostCount() {
+    return lostCount;
+  }
+
+  private void deliver(Runnable delivery) {
+    if (latencyMicros == 0) {
+      executor.execute(delivery);
+    } else {
+      executor.schedule(delivery, latencyMicros, TimeUnit.MICROSECONDS);
+    }
+  }
+
+  private void receive(List<String> serializedVariables, Set<String> removedKeys) {
+    knownKeys.removeAll(removedKeys);
+    Listener currentListener;
+    synchronized (this) {
+      currentListener = listener;
+    }
+    SyncLatencyTracker currentTracker = latencyTracker;
+    for (String json : serializedVariables) {
+      long startNanos = System.nanoTime();
+      StoredVariable variable = gson.fromJson(json, StoredVariable.class);
+      if (currentTracker != null && currentListener != null) {
+        long receivedNanos = System.nanoTime();
+        currentTracker.recordReceived(variable, receivedNanos, receivedNanos - startNanos);
+      }
+      boolean added = knownKeys.add(variable.getKey());
+      if (currentListener == null) {
+        continue;
+      }
+      if (added) {
+        currentListener.onRemoteVariableAdded(variable);
+      } else {
+        currentListener.onRemoteVariableChanged(variable);
+      }
+    }
+  }
+}
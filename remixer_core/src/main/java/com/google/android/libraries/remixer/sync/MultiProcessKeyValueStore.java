@@ -0,0 +1,444 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A file-based {@link KeyValueStore} that several processes of the same app can share, for apps
+ * that use Remixer from more than one process.
+ *
+ * <p>Every change is appended to a journal file, in the same record format as
+ * {@link JournalKeyValueStore}, while holding an exclusive lock on a separate lock file. The
+ * position up to which a process has read the journal is its change sequence number: before every
+ * change, and whenever {@link #checkForChanges()} is called, only the records other processes
+ * appended after that position are read and applied to the in-memory copy of the values. The keys
+ * they touched are reported to the {@link Listener}, so only those values have to be reloaded.
+ *
+ * <p>Once the journal is larger than {@code compactionRatio} times the size of the live values, it
+ * is compacted while holding the lock: the live values are written to a new file with a higher
+ * generation number, which is synced to disk and renamed over the journal. A process that finds a
+ * different generation than the one it last read reloads all the values once.
+ *
+ * <p>Nothing tells this store when other processes write to the journal, call
+ * {@link #checkForChanges()} when the file changes (for example from an Android FileObserver) or
+ * periodically. Only one instance should be created for each file in each process, file locks are
+ * held on behalf of the whole process.
+ */
+public class MultiProcessKeyValueStore implements KeyValueStore, Closeable {
+
+  /**
+   * Magic number at the start of every journal file, "RMXP" in ASCII.
+   */
+  private static final int MAGIC = 0x524D5850;
+  private static final int VERSION = 1;
+  /**
+   * The header is the magic number, the version and the generation, which is a long.
+   */
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+
+  private final File file;
+  private final File compactionFile;
+  private final int compactionRatio;
+  private final long minCompactionBytes;
+  private final RandomAccessFile lockFile;
+
+  private final Map<String, String> values = new HashMap<>();
+  /**
+   * Generation of the journal file that was last read, -1 before reading it.
+   */
+  private long generation = -1;
+  /**
+   * Position up to which the journal has been read and applied to {@link #values}.
+   */
+  private long readOffset;
+  /**
+   * Approximate size the journal would have if compacted, in bytes.
+   */
+  private long liveBytes;
+  private Listener listener;
+  private boolean closed;
+
+  /**
+   * Opens the journal in {@code file}, creating it if it does not exist.
+   *
+   * @throws IOException if the journal cannot be read or created.
+   */
+  public MultiProcessKeyValueStore(File file) throws IOException {
+    this(
+        file,
+        JournalKeyValueStore.DEFAULT_COMPACTION_RATIO,
+        JournalKeyValueStore.DEFAULT_MIN_COMPACTION_BYTES);
+  }
+
+  /**
+   * Opens the journal in {@code file}, creating it if it does not exist, and compacts it once it is
+   * larger than {@code minCompactionBytes} and {@code compactionRatio} times larger than the live
+   * values.
+   *
+   * @throws IOException if the journal cannot be read or created.
+   */
+  public MultiProcessKeyValueStore(File file, int compactionRatio, long minCompactionBytes)
+      throws IOException {
+    if (compactionRatio < 1) {
+      throw new IllegalArgumentException("The compaction ratio must be at least 1");
+    }
+    this.file = file;
+    this.compactionFile = new File(file.getPath() + ".compact");
+    this.compactionRatio = compactionRatio;
+    this.minCompactionBytes = minCompactionBytes;
+    lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+    FileLock lock = lockFile.getChannel().lock();
+    try {
+      if (!file.exists() || file.length() == 0) {
+        writeJournal(0, Collections.<String, String>emptyMap());
+      }
+      refresh();
+    } finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Returns the journal file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Sets the object to notify when other processes change values, or null to stop notifying.
+   */
+  public synchronized void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public synchronized Map<String, String> getAll() {
+    return new HashMap<>(values);
+  }
+
+  @Override
+  public synchronized String get(String key) {
+    return values.get(key);
+  }
+
+  @Override
+  public void putAll(Map<String, String> newValues) {
+    commit(newValues, Collections.<String>emptyList());
+  }
+
+  @Override
+  public void removeAll(Collection<String> keys) {
+    commit(Collections.<String, String>emptyMap(), keys);
+  }
+
+  /**
+   * Appends all the changes as a single record, after applying whatever other processes appended
+   * since the last time this process read the journal.
+   */
+  @Override
+  public void commit(Map<String, String> newValues, Collection<String> removedKeys) {
+    if (newValues.isEmpty() && removedKeys.isEmpty()) {
+      return;
+    }
+    Set<String> changedKeys;
+    synchronized (this) {
+      checkNotClosed();
+      try {
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+          changedKeys = refresh();
+          append(JournalKeyValueStore.encodeRecord(newValues, removedKeys));
+          for (Map.Entry<String, String> entry : newValues.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+          }
+          for (String key : removedKeys) {
+            remove(key);
+          }
+          if (readOffset > minCompactionBytes && readOffset > compactionRatio * liveBytes) {
+            readOffset = writeJournal(generation + 1, values);
+            generation++;
+          }
+        } finally {
+          lock.release();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not write to the journal " + file, e);
+      }
+      // These values were just overwritten by this process.
+      changedKeys.removeAll(newValues.keySet());
+      changedKeys.removeAll(removedKeys);
+    }
+    notifyListener(changedKeys);
+  }
+
+  /**
+   * Reads the changes other processes made since the last time this process read the journal.
+   * Returns the keys whose values changed, which are also reported to the {@link Listener}.
+   *
+   * <p>If the journal is exactly as this process left it, for example because the call comes from
+   * noticing this process's own append, this returns right away without taking the lock.
+   */
+  public Set<String> checkForChanges() {
+    Set<String> changedKeys;
+    synchronized (this) {
+      checkNotClosed();
+      try {
+        if (!isChangedSinceLastRead()) {
+          return Collections.emptySet();
+        }
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+          changedKeys = refresh();
+        } finally {
+          lock.release();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read the journal " + file, e);
+      }
+    }
+    notifyListener(changedKeys);
+    return changedKeys;
+  }
+
+  /**
+   * Closes the store. Values written by other processes are no longer read.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      lockFile.close();
+    }
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("The store is already closed");
+    }
+  }
+
+  private void notifyListener(Set<String> changedKeys) {
+    Listener currentListener;
+    synchronized (this) {
+      currentListener = listener;
+    }
+    if (currentListener != null && !changedKeys.isEmpty()) {
+      currentListener.onKeysChanged(Collections.unmodifiableSet(changedKeys));
+    }
+  }
+
+  /**
+   * Returns whether the journal was appended to or replaced since this process last read or wrote
+   * it, by only looking at its length and generation. Does not need the lock: appends only make it
+   * longer and compaction replaces it atomically.
+   */
+  private boolean isChangedSinceLastRead() throws IOException {
+    if (file.length() != readOffset) {
+      return true;
+    }
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      input.readInt();
+      input.readInt();
+      return input.readLong() != generation;
+    } catch (EOFException e) {
+      return true;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Applies the records appended to the journal since it was last read and returns the keys they
+   * changed. Must be called while holding the lock.
+   */
+  private Set<String> refresh() throws IOException {
+    long fileLength = file.length();
+    FileInputStream fileInput = new FileInputStream(file);
+    Map<String, String> oldValues = null;
+    Set<String> changedKeys = new HashSet<>();
+    try {
+      DataInputStream header = new DataInputStream(fileInput);
+      if (fileLength < HEADER_SIZE || header.readInt() != MAGIC) {
+        throw new IOException("Not a Remixer multi-process journal: " + file);
+      }
+      int version = header.readInt();
+      if (version != VERSION) {
+        throw new IOException(String.format(
+            Locale.getDefault(), "Unsupported journal version %d, expected %d", version, VERSION));
+      }
+      long fileGeneration = header.readLong();
+      if (fileGeneration != generation || fileLength < readOffset) {
+        // The journal was compacted (or never read), the position is meaningless: reload it all.
+        oldValues = new HashMap<>(values);
+        values.clear();
+        liveBytes = 0;
+        generation = fileGeneration;
+        readOffset = HEADER_SIZE;
+      } else {
+        fileInput.getChannel().position(readOffset);
+      }
+      DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+      byte[] payload;
+      while ((payload = JournalKeyValueStore.readRecord(input, fileLength - readOffset)) != null) {
+        applyRecord(payload, changedKeys);
+        readOffset += JournalKeyValueStore.RECORD_HEADER_SIZE + payload.length;
+      }
+    } finally {
+      fileInput.close();
+    }
+
+    if (readOffset < fileLength) {
+      // A process died while appending its last record, drop it. No one else can be writing since
+      // this process holds the lock.
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(readOffset);
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+    if (oldValues != null) {
+      changedKeys.clear();
+      for (Map.Entry<String, String> entry : oldValues.entrySet()) {
+        if (!entry.getValue().equals(values.get(entry.getKey()))) {
+          changedKeys.add(entry.getKey());
+        }
+      }
+      for (String key : values.keySet()) {
+        if (!oldValues.containsKey(key)) {
+          changedKeys.add(key);
+        }
+      }
+    }
+    return changedKeys;
+  }
+
+  private void applyRecord(byte[] payload, Set<String> changedKeys) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+    int count = input.readInt();
+    for (int i = 0; i < count; i++) {
+      byte operation = input.readByte();
+      String key = JournalKeyValueStore.readString(input);
+      if (operation == JournalKeyValueStore.OPERATION_PUT) {
+        put(key, JournalKeyValueStore.readString(input));
+      } else if (operation == JournalKeyValueStore.OPERATION_REMOVE) {
+        remove(key);
+      } else {
+        throw new IOException("Unknown journal operation " + operation);
+      }
+      changedKeys.add(key);
+    }
+  }
+
+  /**
+   * Appends {@code record} at the end of the journal. Must be called while holding the lock, after
+   * {@link #refresh()}.
+   */
+  private void append(byte[] record) throws IOException {
+    RandomAccessFile journal = new RandomAccessFile(file, "rw");
+    try {
+      journal.seek(readOffset);
+      journal.write(record);
+    } finally {
+      journal.close();
+    }
+    readOffset += record.length;
+  }
+
+  /**
+   * Replaces the journal with a new one of generation {@code newGeneration} that only contains
+   * {@code liveValues}, and returns its size. Must be called while holding the lock.
+   */
+  private long writeJournal(long newGeneration, Map<String, String> liveValues)
+      throws IOException {
+    byte[] record = JournalKeyValueStore.encodeRecord(liveValues, Collections.<String>emptyList());
+    FileOutputStream fileOutput = new FileOutputStream(compactionFile);
+    try {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(newGeneration);
+      output.write(record);
+      output.flush();
+      fileOutput.getFD().sync();
+    } finally {
+      fileOutput.close();
+    }
+    if (!compactionFile.renameTo(file)) {
+      compactionFile.delete();
+      throw new IOException("Could not replace the journal " + file);
+    }
+    return HEADER_SIZE + record.length;
+  }
+
+  private void put(String key, String value) {
+    String oldValue = values.put(key, value);
+    if (oldValue != null) {
+      liveBytes -= estimateSize(key, oldValue);
+    }
+    liveBytes += estimateSize(key, value);
+  }
+
+  private void remove(String key) {
+    String oldValue = values.remove(key);
+    if (oldValue != null) {
+      liveBytes -= estimateSize(key, oldValue);
+    }
+  }
+
+  /**
+   * Estimates the size a single key and value take in a compacted journal, it is exact for ASCII
+   * strings.
+   */
+  private static long estimateSize(String key, String value) {
+    return 1 + 4 + key.length() + 4 + value.length();
+  }
+
+  /**
+   * Gets notified of the values other processes change.
+   */
+  public interface Listener {
+
+    /**
+     * Called with the keys whose values were changed or removed by another process. This is called
+     * on the thread that found the changes, which is not necessarily the main thread.
+     */
+    void onKeysChanged(Set<String> keys);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link RemoteTransport} that holds changes in a {@link RemoteOutbox} while the remote
+ * controller cannot be reached, and replays them in order once it can.
+ *
+ * <p>Whoever knows about connectivity (for example a Firebase {@code .info/connected} listener)
+ * reports it through {@link #setConnected(boolean)}. Transports start out disconnected. Changes
+ * handed to the underlying transport before connectivity drops are left to it; only those sent
+ * while disconnected are queued.
+ */
+public class OutboxRemoteTransport implements RemoteTransport {
+
+  private final RemoteTransport delegate;
+  private final RemoteOutbox outbox;
+  private boolean connected;
+
+  public OutboxRemoteTransport(RemoteTransport delegate, RemoteOutbox outbox) {
+    this.delegate = delegate;
+    this.outbox = outbox;
+  }
+
+  /**
+   * Records whether the remote controller can be reached. When it becomes reachable the pending
+   * changes are replayed.
+   *
+   * @return whether changes had to be dropped while disconnected, in which case the caller should
+   *     send everything again.
+   */
+  public synchronized boolean setConnected(boolean connected) {
+    boolean wasConnected = this.connected;
+    this.connected = connected;
+    return connected && !wasConnected && outbox.replay(delegate);
+  }
+
+  public synchronized boolean isConnected() {
+    return connected;
+  }
+
+  public RemoteOutbox getOutbox() {
+    return outbox;
+  }
+
+  @Override
+  public synchronized void send(
+      Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+    if (connected) {
+      delegate.send(variables, removedKeys);
+    } else {
+      outbox.add(variables, removedKeys);
+    }
+  }
+
+  /**
+   * Clears the remote controller and drops the pending changes, which would be stale. If it cannot
+   * be reached, clearing is left to the underlying transport.
+   */
+  @Override
+  public synchronized void clear() {
+    outbox.clear();
+    delegate.clear();
+  }
+
+  @Override
+  public void setListener(Listener listener) {
+    delegate.setListener(listener);
+  }
+}
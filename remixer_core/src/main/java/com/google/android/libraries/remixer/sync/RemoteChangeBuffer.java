@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Buffers the variables received from a {@link RemoteTransport}, keeping only the newest copy of
+ * each, and passes them all on to another listener in one go once the apply delay has passed since
+ * the first buffered change.
+ *
+ * <p>A remote controller pushing many changes (for example while a slider is dragged) then results
+ * in a single pass over the variables per tick instead of one per change, so the UI is laid out
+ * once. With a scheduler that runs tasks right before the next frame and an apply delay of 0, that
+ * is once per frame.
+ *
+ * <p>Copies are compared by version (see {@link StoredVariable#isNewerThan(StoredVariable)}), so a
+ * versioned copy that arrives after a newer one in the same tick is dropped, just as it would be
+ * if each were applied in its own tick. Unversioned copies always replace the buffered one.
+ *
+ * <p>A variable is passed on as added if any of the buffered copies was added. The target listener
+ * is called from the scheduler, all other methods are thread safe.
+ */
+public class RemoteChangeBuffer implements RemoteTransport.Listener {
+
+  private final RemoteTransport.Listener target;
+  private final RemoteWriteBuffer.Scheduler scheduler;
+  private final long applyDelayMs;
+
+  /**
+   * Newest copy of each received variable, keyed by variable key. All accesses must be
+   * synchronized.
+   */
+  private final Map<String, StoredVariable> pendingChanges = new LinkedHashMap<>();
+  /**
+   * Keys of the buffered variables that were added. All accesses must be synchronized.
+   */
+  private final Set<String> addedKeys = new HashSet<>();
+
+  private final Runnable applyRunnable = new Runnable() {
+    @Override
+    public void run() {
+      apply();
+    }
+  };
+
+  public RemoteChangeBuffer(
+      RemoteTransport.Listener target, RemoteWriteBuffer.Scheduler scheduler, long applyDelayMs) {
+    if (applyDelayMs < 0) {
+      throw new IllegalArgumentException("The apply delay cannot be negative");
+    }
+    this.target = target;
+    this.scheduler = scheduler;
+    this.applyDelayMs = applyDelayMs;
+  }
+
+  @Override
+  public synchronized void onRemoteVariableAdded(StoredVariable variable) {
+    buffer(variable);
+    addedKeys.add(variable.getKey());
+  }
+
+  @Override
+  public synchronized void onRemoteVariableChanged(StoredVariable variable) {
+    buffer(variable);
+  }
+
+  /**
+   * Passes all the buffered variables on to the target listener right away. This must be called
+   * from the thread the scheduler runs tasks on.
+   */
+  public void apply() {
+    List<StoredVariable> variables;
+    Set<String> added;
+    synchronized (this) {
+      scheduler.cancel(applyRunnable);
+      if (pendingChanges.isEmpty()) {
+        return;
+      }
+      variables = new ArrayList<>(pendingChanges.values());
+      added = new HashSet<>(addedKeys);
+      pendingChanges.clear();
+      addedKeys.clear();
+    }
+    // Called without holding the lock so that the target can take its own locks.
+    for (StoredVariable variable : variables) {
+      if (added.contains(variable.getKey())) {
+        target.onRemoteVariableAdded(variable);
+      } else {
+        target.onRemoteVariableChanged(variable);
+      }
+    }
+  }
+
+  /**
+   * Drops all the buffered variables without passing them on, for example because sharing
+   * stopped.
+   */
+  public synchronized void discard() {
+    scheduler.cancel(applyRunnable);
+    pendingChanges.clear();
+    addedKeys.clear();
+  }
+
+  private void buffer(StoredVariable variable) {
+    if (pendingChanges.isEmpty()) {
+      scheduler.schedule(applyRunnable, applyDelayMs);
+    }
+    StoredVariable buffered = pendingChanges.get(variable.getKey());
+    if (buffered != null && variable.getClock() != 0 && buffered.isNewerThan(variable)) {
+      // The copy arrived out of order, applying it after the buffered one would not change a thing.
+      return;
+    }
+    // Removed first so that the key moves to the end and variables are applied in the order their
+    // latest copy arrived.
+    pendingChanges.remove(variable.getKey());
+    pendingChanges.put(variable.getKey(), variable);
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes waiting to be sent to a remote controller while it cannot be reached, kept in memory.
+ *
+ * <p>The outbox is compacted per key: it only keeps the latest change to each variable, whether
+ * that is a new value or its removal, ordered by when it was last made so changes are replayed in
+ * that order. It holds at most {@code maxEntries} keys; when it is full the oldest entries are
+ * dropped and the next {@link #replay(RemoteTransport)} reports it, so that the caller can send
+ * everything again instead.
+ *
+ * <p>It also keeps a few metrics, how deep the outbox got and how long replays took, which
+ * {@link #dump(PrintWriter, String)} prints. All methods are thread safe.
+ */
+public class RemoteOutbox {
+
+  /**
+   * Default maximum number of keys held.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private final int maxEntries;
+
+  /**
+   * Pending changes keyed by variable key, in the order they were last made. A null value means
+   * the variable was removed.
+   */
+  private final LinkedHashMap<String, StoredVariable> entries = new LinkedHashMap<>();
+  private boolean overflowed;
+
+  private int maxDepth;
+  private long droppedCount;
+  private long replayCount;
+  private long replayedEntryCount;
+  private long lastReplayNanos;
+  private long totalReplayNanos;
+
+  /**
+   * Creates an empty outbox that holds at most {@code maxEntries} keys.
+   */
+  public RemoteOutbox(int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("The outbox must be able to hold at least one entry");
+    }
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Records that {@code variables} have to be sent and the variables with {@code removedKeys}
+   * removed, replacing any earlier change to the same keys.
+   */
+  public synchronized void add(
+      Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+    for (StoredVariable variable : variables.values()) {
+      put(variable.getKey(), variable);
+    }
+    for (String key : removedKeys) {
+      put(key, null);
+    }
+    if (entries.size() > maxEntries) {
+      Iterator<String> oldestKeys = entries.keySet().iterator();
+      while (entries.size() > maxEntries) {
+        oldestKeys.next();
+        oldestKeys.remove();
+        droppedCount++;
+      }
+      overflowed = true;
+    }
+    maxDepth = Math.max(maxDepth, entries.size());
+  }
+
+  /**
+   * Sends all the pending changes through {@code transport} in a single operation, in the order
+   * they were last made, and empties the outbox.
+   *
+   * @return whether entries had to be dropped since the last replay, in which case the remote
+   *     controller is missing changes and everything should be sent to it again.
+   */
+  public synchronized boolean replay(RemoteTransport transport) {
+    long start = System.nanoTime();
+    boolean incomplete = overflowed;
+    if (!entries.isEmpty()) {
+      Map<String, StoredVariable> variables = new LinkedHashMap<>();
+      List<String> removedKeys = new ArrayList<>();
+      for (Map.Entry<String, StoredVariable> entry : entries.entrySet()) {
+        if (entry.getValue() != null) {
+          variables.put(entry.getKey(), entry.getValue());
+        } else {
+          removedKeys.add(entry.getKey());
+        }
+      }
+      transport.send(variables, removedKeys);
+      replayedEntryCount += entries.size();
+    }
+    clear();
+    lastReplayNanos = System.nanoTime() - start;
+    totalReplayNanos += lastReplayNanos;
+    replayCount++;
+    return incomplete;
+  }
+
+  /**
+   * Drops all the pending changes, for example because the remote controller is being cleared.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    overflowed = false;
+  }
+
+  /**
+   * Returns how many keys have pending changes.
+   */
+  public synchronized int getDepth() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the most keys that had pending changes at the same time.
+   */
+  public synchronized int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Returns how many entries were dropped because the outbox was full.
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Returns how many times the outbox was replayed.
+   */
+  public synchronized long getReplayCount() {
+    return replayCount;
+  }
+
+  /**
+   * Returns how long the last replay took, in milliseconds.
+   */
+  public synchronized double getLastReplayMillis() {
+    return lastReplayNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * Writes a human-readable summary of the outbox and its metrics to {@code writer}, each line
+   * starting with {@code prefix}.
+   */
+  public synchronized void dump(PrintWriter writer, String prefix) {
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%soutbox depth: %d (max %d, limit %d), dropped: %d",
+        prefix,
+        entries.size(),
+        maxDepth,
+        maxEntries,
+        droppedCount));
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%sreplays: %d, entries replayed: %d, last replay: %.2f ms, total: %.2f ms",
+        prefix,
+        replayCount,
+        replayedEntryCount,
+        getLastReplayMillis(),
+        totalReplayNanos / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+  }
+
+  private void put(String key, StoredVariable variable) {
+    // Removing it first moves it to the end of the order.
+    entries.remove(key);
+    entries.put(key, variable);
+  }
+}
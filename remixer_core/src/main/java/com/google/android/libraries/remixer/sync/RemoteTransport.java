@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The channel a synchronization mechanism uses to exchange variables with a remote controller, such
+ * as a Firebase database or an in-memory loopback for tests and benchmarks.
+ *
+ * <p>Transports only move stored variables around, deciding what to send and how to apply what is
+ * received is up to the synchronization mechanism.
+ */
+public interface RemoteTransport {
+
+  /**
+   * Sends {@code variables}, keyed by variable key, replacing the remote copies of the ones that
+   * already exist, and removes the variables with {@code removedKeys} from the remote controller.
+   * All of it should be sent in a single operation where the backend allows it.
+   */
+  void send(Map<String, StoredVariable> variables, Collection<String> removedKeys);
+
+  /**
+   * Removes all the variables from the remote controller.
+   */
+  void clear();
+
+  /**
+   * Sets the object to notify about variables changed remotely, or null to stop listening.
+   */
+  void setListener(Listener listener);
+
+  /**
+   * Gets notified of variables that the remote controller adds or changes.
+   */
+  interface Listener {
+
+    /**
+     * Called when the remote controller has a variable it did not have before.
+     */
+    void onRemoteVariableAdded(StoredVariable variable);
+
+    /**
+     * Called when the value of a variable changes in the remote controller.
+     */
+    void onRemoteVariableChanged(StoredVariable variable);
+  }
+}
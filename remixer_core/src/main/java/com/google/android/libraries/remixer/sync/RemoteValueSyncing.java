@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.gson.Gson;
+
+/**
+ * A {@link SynchronizationMechanism} that keeps all the variables in sync with a remote controller
+ * over any {@link RemoteTransport}, without persisting them.
+ *
+ * <p>Outgoing changes go through a {@link RemoteWriteBuffer}, so they are coalesced per key and
+ * sent together once per flush delay, or right away when a batch finishes. Incoming changes go
+ * through a {@link RemoteChangeBuffer}, so they are coalesced per key as well and applied together
+ * once per apply delay. Both are run by {@code scheduler}, which must run tasks on the thread
+ * Remixer is used from.
+ *
+ * <p>This is the platform-independent counterpart of the Android Firebase syncer, and can be used
+ * with a {@link LoopbackRemoteTransport} to test and benchmark remote synchronization on the JVM.
+ */
+public class RemoteValueSyncing extends LocalValueSyncing
+    implements RemoteTransport.Listener, BatchingSynchronizationMechanism {
+
+  private final RemoteTransport transport;
+  private final RemoteWriteBuffer writeBuffer;
+  private final RemoteChangeBuffer changeBuffer;
+  private volatile boolean acknowledgesRemoteChanges;
+
+  public RemoteValueSyncing(
+      RemoteTransport transport,
+      RemoteWriteBuffer.Scheduler scheduler,
+      long flushDelayMs,
+      long applyDelayMs) {
+    this.transport = transport;
+    this.writeBuffer = new RemoteWriteBuffer(transport, scheduler, flushDelayMs);
+    this.changeBuffer = new RemoteChangeBuffer(this, scheduler, applyDelayMs);
+    transport.setListener(changeBuffer);
+  }
+
+  /**
+   * Sends all the buffered changes right away.
+   */
+  public void flush() {
+    writeBuffer.flush();
+  }
+
+  /**
+   * Sets whether to send back the value of every variable received from the remote controller
+   * once it is applied, so the remote end knows the device has it. This is what devices in a
+   * {@link GroupSessionHub} session acknowledge values with.
+   */
+  public void setAcknowledgesRemoteChanges(boolean acknowledgesRemoteChanges) {
+    this.acknowledgesRemoteChanges = acknowledgesRemoteChanges;
+  }
+
+  /**
+   * Stops listening to the remote controller and drops the changes that were not sent or applied
+   * yet.
+   */
+  public void close() {
+    transport.setListener(null);
+    writeBuffer.discard();
+    changeBuffer.discard();
+  }
+
+  @Override
+  public void onAddingVariable(Variable variable) {
+    super.onAddingVariable(variable);
+    writeBuffer.write(createStoredCopy(variable));
+  }
+
+  @Override
+  public void onValueChanged(Variable variable) {
+    super.onValueChanged(variable);
+    writeBuffer.write(createStoredCopy(variable));
+  }
+
+  @Override
+  public void onBatchStarted() {
+    // Changes are buffered anyway, the whole batch goes out when it finishes.
+  }
+
+  @Override
+  public void onBatchFinished() {
+    writeBuffer.flush();
+  }
+
+  // Called by the change buffer, on the scheduler's thread.
+  @Override
+  public void onRemoteVariableAdded(StoredVariable variable) {
+    addRemoteVariable(variable);
+    acknowledge(variable.getKey());
+  }
+
+  @Override
+  public void onRemoteVariableChanged(StoredVariable variable) {
+    applyRemoteValue(variable);
+    acknowledge(variable.getKey());
+  }
+
+  /**
+   * Sends back the current value for {@code key}, which has the version of the received value if
+   * it was applied or a newer one if it was not.
+   */
+  private void acknowledge(String key) {
+    if (acknowledgesRemoteChanges) {
+      Gson gson = GsonProvider.getInstance();
+      // Copy it so that later changes do not alter what is buffered.
+      writeBuffer.write(gson.fromJson(
+          gson.toJson(serializableRemixerContents.getItem(key)), StoredVariable.class));
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers the variables to send over a {@link RemoteTransport}, keeping only the latest copy of
+ * each, and the keys to remove from it. They are all sent in a single
+ * {@link RemoteTransport#send(Map, java.util.Collection)} once the flush delay has passed since the
+ * first buffered change.
+ *
+ * <p>This is not a debounce: while changes keep coming (for example while dragging a slider), they
+ * are still sent once per flush delay. All methods are thread safe.
+ */
+public class RemoteWriteBuffer {
+
+  private final RemoteTransport transport;
+  private final Scheduler scheduler;
+  private final long flushDelayMs;
+
+  /**
+   * Latest copy of each variable that has to be sent, keyed by variable key, or null for keys that
+   * have to be removed. All accesses must be synchronized.
+   */
+  private final Map<String, StoredVariable> pendingWrites = new LinkedHashMap<>();
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public RemoteWriteBuffer(RemoteTransport transport, Scheduler scheduler, long flushDelayMs) {
+    if (flushDelayMs < 0) {
+      throw new IllegalArgumentException("The flush delay cannot be negative");
+    }
+    this.transport = transport;
+    this.scheduler = scheduler;
+    this.flushDelayMs = flushDelayMs;
+  }
+
+  /**
+   * Buffers {@code variable}, replacing any buffered copy with the same key, and schedules a flush
+   * if none is scheduled yet.
+   */
+  public synchronized void write(StoredVariable variable) {
+    buffer(variable.getKey(), variable);
+  }
+
+  /**
+   * Buffers the removal of the variable with {@code key}, replacing any buffered copy of it, and
+   * schedules a flush if none is scheduled yet.
+   */
+  public synchronized void remove(String key) {
+    buffer(key, null);
+  }
+
+  /**
+   * Sends all the buffered variables and removals right away, in a single operation.
+   */
+  public synchronized void flush() {
+    scheduler.cancel(flushRunnable);
+    if (pendingWrites.isEmpty()) {
+      return;
+    }
+    Map<String, StoredVariable> variables = new HashMap<>();
+    List<String> removedKeys = new ArrayList<>();
+    for (Map.Entry<String, StoredVariable> entry : pendingWrites.entrySet()) {
+      if (entry.getValue() != null) {
+        variables.put(entry.getKey(), entry.getValue());
+      } else {
+        removedKeys.add(entry.getKey());
+      }
+    }
+    pendingWrites.clear();
+    // Sent while holding the lock so that concurrent flushes cannot reorder updates.
+    transport.send(variables, removedKeys);
+  }
+
+  private void buffer(String key, StoredVariable variable) {
+    if (pendingWrites.isEmpty()) {
+      scheduler.schedule(flushRunnable, flushDelayMs);
+    }
+    pendingWrites.put(key, variable);
+  }
+
+  /**
+   * Drops all the buffered variables and removals without sending them, for example because the
+   * remote controller is being cleared and they would be stale.
+   */
+  public synchronized void discard() {
+    scheduler.cancel(flushRunnable);
+    pendingWrites.clear();
+  }
+
+  /**
+   * Runs tasks after a delay. On Android this is usually backed by a Handler.
+   */
+  public interface Scheduler {
+
+    /**
+     * Runs {@code task} after {@code delayMs} milliseconds.
+     */
+    void schedule(Runnable task, long delayMs);
+
+    /**
+     * Cancels any scheduled runs of {@code task} that have not started yet.
+     */
+    void cancel(Runnable task);
+  }
+
+  /**
+   * A {@link Scheduler} that runs tasks on a {@link ScheduledExecutorService}.
+   */
+  public static class ExecutorScheduler implements Scheduler {
+
+    private final ScheduledExecutorService executor;
+    private final Map<Runnable, ScheduledFuture<?>> scheduledTasks = new HashMap<>();
+
+    public ExecutorScheduler(ScheduledExecutorService executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public synchronized void schedule(Runnable task, long delayMs) {
+      scheduledTasks.put(task, executor.schedule(task, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+      ScheduledFuture<?> future = scheduledTasks.remove(task);
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+  }
+}
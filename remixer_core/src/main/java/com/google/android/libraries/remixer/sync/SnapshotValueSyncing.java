@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.MappedSnapshot;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.gson.JsonParseException;
+
+/**
+ * A {@link LocalValueSyncing} that starts variables with the values in a {@link MappedSnapshot},
+ * for example a large configuration that is baked into the build.
+ *
+ * <p>Values are looked up in the snapshot as variables are added, so only the values of the
+ * variables that are actually used are decoded. A value in the snapshot is ignored if it is
+ * incompatible with the variable that is added or cannot be parsed, in both cases the variable
+ * starts with its initial value. Values changed at runtime are not written to the snapshot.
+ */
+public class SnapshotValueSyncing extends LocalValueSyncing {
+
+  private final MappedSnapshot snapshot;
+
+  public SnapshotValueSyncing(MappedSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  @Override
+  public void onAddingVariable(Variable variable) {
+    if (!serializableRemixerContents.keySet().contains(variable.getKey())) {
+      StoredVariable snapshotVariable = getSnapshotVariable(variable.getKey());
+      if (snapshotVariable != null
+          && StoredVariable.fromVariable(variable).isCompatibleWith(snapshotVariable)) {
+        serializableRemixerContents.addItem(snapshotVariable);
+      }
+    }
+    super.onAddingVariable(variable);
+  }
+
+  private StoredVariable getSnapshotVariable(String key) {
+    try {
+      return snapshot.getItem(key);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+}
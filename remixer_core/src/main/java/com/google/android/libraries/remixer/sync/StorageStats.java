@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters that describe the cost of persisting values with a {@link KeyValueStoreSyncing}: how
+ * long loading took, how many value changes there were, and how many commits to the store they
+ * turned into and how long the calls to commit took.
+ *
+ * <p>Commit call times only measure how long {@link KeyValueStore#commit} blocked the caller, not
+ * how long it takes for the values to reach the disk. Stores that write asynchronously, such as
+ * SharedPreferences with {@code apply()}, return as soon as the change is queued in memory.
+ *
+ * <p>Commit call times are kept in a histogram with power-of-two buckets (in microseconds), so
+ * percentiles are approximate, they are the upper bound of the bucket the percentile falls in.
+ * Recording is cheap and takes constant memory, so it is always on. All methods are thread safe.
+ */
+public class StorageStats {
+
+  private final long createdNanos;
+  private long loadNanos = -1;
+  private long loadedEntryCount;
+  private long changeCount;
+  private long commitCount;
+  private long committedKeyCount;
+  private final LatencyHistogram commitCallTimes = new LatencyHistogram();
+
+  public StorageStats() {
+    this(System.nanoTime());
+  }
+
+  /**
+   * Visible only for testing, use {@link #StorageStats()}.
+   */
+  StorageStats(long createdNanos) {
+    this.createdNanos = createdNanos;
+  }
+
+  /**
+   * Records that loading {@code entryCount} entries from the store took {@code nanos}.
+   */
+  synchronized void recordLoad(int entryCount, long nanos) {
+    loadedEntryCount = entryCount;
+    loadNanos = nanos;
+  }
+
+  /**
+   * Records a value change that has to be persisted.
+   */
+  synchronized void recordChange() {
+    changeCount++;
+  }
+
+  /**
+   * Records a commit to the store that wrote or removed {@code keyCount} keys, and whose call took
+   * {@code nanos}.
+   */
+  synchronized void recordCommit(int keyCount, long nanos) {
+    commitCount++;
+    committedKeyCount += keyCount;
+    commitCallTimes.record(nanos);
+  }
+
+  /**
+   * Returns how long loading the stored values took, in milliseconds, or -1 if they are not loaded
+   * yet.
+   */
+  public synchronized long getLoadTimeMillis() {
+    return loadNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(loadNanos);
+  }
+
+  /**
+   * Returns how many entries were in the store when it was loaded.
+   */
+  public synchronized long getLoadedEntryCount() {
+    return loadedEntryCount;
+  }
+
+  /**
+   * Returns how many value changes had to be persisted.
+   */
+  public synchronized long getChangeCount() {
+    return changeCount;
+  }
+
+  /**
+   * Returns how many commits were issued to the store.
+   */
+  public synchronized long getCommitCount() {
+    return commitCount;
+  }
+
+  /**
+   * Returns how many keys were written or removed, over all commits.
+   */
+  public synchronized long getCommittedKeyCount() {
+    return committedKeyCount;
+  }
+
+  /**
+   * Returns how many value changes were persisted per commit on average, or 0 if there were no
+   * commits. Higher is better, 1 means changes are not coalesced at all.
+   */
+  public synchronized double getCoalescingRatio() {
+    return commitCount == 0 ? 0 : (double) changeCount / commitCount;
+  }
+
+  /**
+   * Returns the average number of commits per minute since these stats were created.
+   */
+  public double getCommitsPerMinute() {
+    return getCommitsPerMinute(System.nanoTime());
+  }
+
+  /**
+   * Visible only for testing, use {@link #getCommitsPerMinute()}.
+   */
+  synchronized double getCommitsPerMinute(long nowNanos) {
+    double minutes = (double) (nowNanos - createdNanos) / TimeUnit.MINUTES.toNanos(1);
+    return minutes <= 0 ? 0 : commitCount / minutes;
+  }
+
+  /**
+   * Returns an upper bound of the commit call time at {@code percentile} (between 0 and 100), in
+   * microseconds, or 0 if there were no commits. This is how long the caller was blocked, see the
+   * class documentation.
+   */
+  public synchronized long getCommitCallPercentileMicros(double percentile) {
+    return commitCallTimes.getPercentileMicros(percentile);
+  }
+
+  /**
+   * Writes a human-readable summary of these stats to {@code writer}, each line starting with
+   * {@code prefix}.
+   */
+  public synchronized void dump(PrintWriter writer, String prefix) {
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%sload: %d ms, %d entries",
+        prefix,
+        getLoadTimeMillis(),
+        loadedEntryCount));
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%schanges: %d, commits: %d (%.1f/min), keys committed: %d, coalescing ratio: %.2f",
+        prefix,
+        changeCount,
+        commitCount,
+        getCommitsPerMinute(),
+        committedKeyCount,
+        getCoalescingRatio()));
+    writer.println(String.format(
+        Locale.getDefault(),
+        "%scommit call time (not disk write latency): p50 <%d us, p90 <%d us, p99 <%d us",
+        prefix,
+        getCommitCallPercentileMicros(50),
+        getCommitCallPercentileMicros(90),
+        getCommitCallPercentileMicros(99)));
+  }
+}
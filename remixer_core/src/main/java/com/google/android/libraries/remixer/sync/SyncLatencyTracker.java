@@ -0,0 +1,266 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traces the values changed by a remote controller from the moment they are sent until the
+ * callbacks of the variables that use them have run, and keeps a latency histogram per stage:
+ * <ul>
+ *   <li>{@link #STAGE_NETWORK}: from the time the sender stamped on the value (see
+ *   {@link StoredVariable#getTimestamp()}) until the transport got it. This compares two
+ *   different clocks, so it is only as accurate as they are in sync, and it is only known for
+ *   senders that stamp their values.
+ *   <li>{@link #STAGE_DESERIALIZATION}: turning what the transport got into a stored variable.
+ *   <li>{@link #STAGE_QUEUE}: waiting to be applied, for example until the next frame.
+ *   <li>{@link #STAGE_SET_VALUE}: resolving the value against the local one in
+ *   {@link com.google.android.libraries.remixer.serialization.SerializableRemixerContents}.
+ *   <li>{@link #STAGE_FAN_OUT}: finding the variables with the value's key and converting it.
+ *   <li>{@link #STAGE_CALLBACKS}: setting the value on those variables, which runs their
+ *   {@link com.google.android.libraries.remixer.Callback}s.
+ *   <li>{@link #STAGE_TOTAL}: all of the above, from the sender's timestamp if there is one or
+ *   from the transport getting the value otherwise.
+ * </ul>
+ *
+ * <p>Transports report when they get each value through
+ * {@link #recordReceived(StoredVariable, long, long)}, and synchronization mechanisms report the
+ * rest when they apply it. Only values reported by a transport are traced. Changes that are
+ * coalesced before being applied are traced from the latest one. Histograms have power-of-two
+ * buckets (in microseconds), so percentiles are the upper bound of the bucket the percentile falls
+ * in. Recording is cheap and its memory does not grow with the number of values, so it is always
+ * on. All methods are thread safe.
+ */
+public class SyncLatencyTracker {
+
+  public static final int STAGE_NETWORK = 0;
+  public static final int STAGE_DESERIALIZATION = 1;
+  public static final int STAGE_QUEUE = 2;
+  public static final int STAGE_SET_VALUE = 3;
+  public static final int STAGE_FAN_OUT = 4;
+  public static final int STAGE_CALLBACKS = 5;
+  public static final int STAGE_TOTAL = 6;
+  public static final int STAGE_COUNT = 7;
+
+  private static final String[] STAGE_NAMES =
+      {"network", "deserialization", "queue", "setValue", "fanOut", "callbacks", "total"};
+
+  private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+
+  /**
+   * What is known about the latest value received for each key that was not applied yet, keyed by
+   * variable key. All accesses must be synchronized.
+   */
+  private final Map<String, Receipt> receipts = new HashMap<>();
+
+  private TraceListener traceListener;
+
+  public SyncLatencyTracker() {
+    for (int i = 0; i < STAGE_COUNT; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Returns the name of {@code stage}, as used in {@link #dump(PrintWriter, String)} and in the
+   * traces echoed to remote controllers.
+   */
+  public static String getStageName(int stage) {
+    return STAGE_NAMES[stage];
+  }
+
+  /**
+   * Sets the object to notify of every traced value, or null to stop notifying.
+   */
+  public synchronized void setTraceListener(TraceListener traceListener) {
+    this.traceListener = traceListener;
+  }
+
+  /**
+   * Records that a transport finished deserializing {@code variable} at {@code receivedNanos}, as
+   * returned by {@link System#nanoTime()}, and that deserializing it took
+   * {@code deserializationNanos}.
+   */
+  public void recordReceived(
+      StoredVariable variable, long receivedNanos, long deserializationNanos) {
+    long networkNanos = -1;
+    if (variable.getTimestamp() != 0) {
+      // When the transport got it, before deserializing, in the sender's time base.
+      long receivedMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(
+          System.nanoTime() - receivedNanos + deserializationNanos);
+      // Clocks that are out of sync can make it negative, which is as good as 0.
+      networkNanos = Math.max(
+          0, TimeUnit.MILLISECONDS.toNanos(receivedMillis - variable.getTimestamp()));
+    }
+    synchronized (this) {
+      receipts.put(variable.getKey(), new Receipt(
+          variable.getTimestamp(), receivedNanos, networkNanos, deserializationNanos));
+    }
+  }
+
+  /**
+   * Forgets the value received for {@code key}, because it was not applied.
+   */
+  synchronized void discard(String key) {
+    receipts.remove(key);
+  }
+
+  /**
+   * Records that the value received for {@code key} was applied, if a transport reported it:
+   * resolving it started at {@code startNanos}, setting it on the variables started at
+   * {@code fanOutNanos} and {@code callbacksNanos}, and it all finished at {@code endNanos}.
+   */
+  void recordApplied(
+      String key, long startNanos, long fanOutNanos, long callbacksNanos, long endNanos) {
+    Trace trace;
+    TraceListener currentListener;
+    synchronized (this) {
+      Receipt receipt = receipts.remove(key);
+      if (receipt == null) {
+        // No transport reported it, so there is nothing to trace it from.
+        return;
+      }
+      long[] stageNanos = new long[STAGE_COUNT];
+      stageNanos[STAGE_NETWORK] = receipt.networkNanos;
+      stageNanos[STAGE_DESERIALIZATION] = receipt.deserializationNanos;
+      stageNanos[STAGE_QUEUE] = startNanos - receipt.receivedNanos;
+      stageNanos[STAGE_SET_VALUE] = fanOutNanos - startNanos;
+      stageNanos[STAGE_FAN_OUT] = callbacksNanos - fanOutNanos;
+      stageNanos[STAGE_CALLBACKS] = endNanos - callbacksNanos;
+      stageNanos[STAGE_TOTAL] = receipt.deserializationNanos + endNanos - receipt.receivedNanos
+          + Math.max(receipt.networkNanos, 0);
+      for (int i = 0; i < STAGE_COUNT; i++) {
+        if (stageNanos[i] >= 0) {
+          histograms[i].record(stageNanos[i]);
+        }
+      }
+      trace = new Trace(key, receipt.timestampMillis, stageNanos);
+      currentListener = traceListener;
+    }
+    if (currentListener != null) {
+      currentListener.onTrace(trace);
+    }
+  }
+
+  /**
+   * Returns how many values were traced through {@code stage}.
+   */
+  public synchronized long getCount(int stage) {
+    return histograms[stage].getCount();
+  }
+
+  /**
+   * Returns an upper bound of the latency of {@code stage} at {@code percentile} (between 0 and
+   * 100), in microseconds, or 0 if no value was traced through it.
+   */
+  public synchronized long getPercentileMicros(int stage, double percentile) {
+    return histograms[stage].getPercentileMicros(percentile);
+  }
+
+  /**
+   * Returns the longest latency of {@code stage}, in microseconds.
+   */
+  public synchronized long getMaxMicros(int stage) {
+    return histograms[stage].getMaxMicros();
+  }
+
+  /**
+   * Writes a human-readable summary of the latency of every stage to {@code writer}, each line
+   * starting with {@code prefix}.
+   */
+  public synchronized void dump(PrintWriter writer, String prefix) {
+    for (int i = 0; i < STAGE_COUNT; i++) {
+      writer.println(String.format(
+          Locale.getDefault(),
+          "%s%s: %d values, p50 <%d us, p90 <%d us, p99 <%d us, max %d us",
+          prefix,
+          STAGE_NAMES[i],
+          histograms[i].getCount(),
+          histograms[i].getPercentileMicros(50),
+          histograms[i].getPercentileMicros(90),
+          histograms[i].getPercentileMicros(99),
+          histograms[i].getMaxMicros()));
+    }
+  }
+
+  /**
+   * Gets notified of every value traced, for example to echo the trace back to the remote
+   * controller. Called from the thread values are applied on, so it must return quickly.
+   */
+  public interface TraceListener {
+
+    void onTrace(Trace trace);
+  }
+
+  /**
+   * How long each stage took for one value.
+   */
+  public static class Trace {
+
+    private final String key;
+    private final long timestampMillis;
+    private final long[] stageNanos;
+
+    Trace(String key, long timestampMillis, long[] stageNanos) {
+      this.key = key;
+      this.timestampMillis = timestampMillis;
+      this.stageNanos = stageNanos;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Returns the timestamp the sender put on the value, or 0 if it did not put one.
+     */
+    public long getTimestampMillis() {
+      return timestampMillis;
+    }
+
+    /**
+     * Returns how long {@code stage} took, in microseconds, or -1 if it is not known.
+     */
+    public long getStageMicros(int stage) {
+      return stageNanos[stage] < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(stageNanos[stage]);
+    }
+  }
+
+  /**
+   * What is known about a value before it is applied.
+   */
+  private static class Receipt {
+
+    final long timestampMillis;
+    final long receivedNanos;
+    final long networkNanos;
+    final long deserializationNanos;
+
+    Receipt(
+        long timestampMillis, long receivedNanos, long networkNanos, long deserializationNanos) {
+      this.timestampMillis = timestampMillis;
+      this.receivedNanos = receivedNanos;
+      this.networkNanos = networkNanos;
+      this.deserializationNanos = deserializationNanos;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Reads and writes WebSocket frames as defined in RFC 6455, just enough of it for
+ * {@link LanRemoteControlServer} and its tests: unfragmented or fragmented text messages, close,
+ * ping and pong. Extensions are not supported.
+ */
+final class WebSocketFrames {
+
+  static final int OPCODE_CONTINUATION = 0x0;
+  static final int OPCODE_TEXT = 0x1;
+  static final int OPCODE_BINARY = 0x2;
+  static final int OPCODE_CLOSE = 0x8;
+  static final int OPCODE_PING = 0x9;
+  static final int OPCODE_PONG = 0xA;
+
+  /**
+   * Largest message accepted, remote controllers only ever send a few variables at a time.
+   */
+  static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Appended to the client key to compute the accept key during the opening handshake.
+   */
+  private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private static final char[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private WebSocketFrames() {}
+
+  /**
+   * A complete message, with any continuation frames already merged in.
+   */
+  static class Message {
+    final int opcode;
+    final byte[] payload;
+
+    Message(int opcode, byte[] payload) {
+      this.opcode = opcode;
+      this.payload = payload;
+    }
+
+    String getText() {
+      return new String(payload, UTF_8);
+    }
+  }
+
+  /**
+   * Returns the value of the {@code Sec-WebSocket-Accept} header for the given
+   * {@code Sec-WebSocket-Key}.
+   */
+  static String computeAcceptKey(String clientKey) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      return encodeBase64(digest.digest((clientKey.trim() + HANDSHAKE_GUID).getBytes(UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+
+  /**
+   * Reads the next message from {@code inputStream}. Control frames that arrive between the
+   * fragments of a message are returned on their own, the fragments read so far are then lost, so
+   * this should only be used with peers that do not interleave them.
+   *
+   * @throws EOFException if the stream ends before a complete message is read.
+   * @throws IOException if the frames are malformed or the message is too large.
+   */
+  static Message readMessage(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream message = null;
+    int messageOpcode = 0;
+    while (true) {
+      int first = readByte(inputStream);
+      int second = readByte(inputStream);
+      boolean fin = (first & 0x80) != 0;
+      int opcode = first & 0x0F;
+      if ((first & 0x70) != 0) {
+        throw new IOException("Unsupported WebSocket extension bits");
+      }
+      boolean masked = (second & 0x80) != 0;
+      long length = second & 0x7F;
+      if (length == 126) {
+        length = (readByte(inputStream) << 8) | readByte(inputStream);
+      } else if (length == 127) {
+        length = 0;
+        for (int i = 0; i < 8; i++) {
+          length = (length << 8) | readByte(inputStream);
+        }
+      }
+      if (length < 0) {
+        // The most significant bit of a 64-bit length must be 0.
+        throw new IOException("Invalid WebSocket frame length");
+      }
+      if (length > MAX_MESSAGE_SIZE
+          || (message != null && message.size() + length > MAX_MESSAGE_SIZE)) {
+        throw new IOException("WebSocket message too large");
+      }
+      byte[] mask = masked ? readFully(inputStream, 4) : null;
+      byte[] payload = readFully(inputStream, (int) length);
+      if (mask != null) {
+        for (int i = 0; i < payload.length; i++) {
+          payload[i] ^= mask[i % 4];
+        }
+      }
+      if (opcode >= OPCODE_CLOSE) {
+        return new Message(opcode, payload);
+      }
+      if (opcode != OPCODE_CONTINUATION) {
+        if (fin) {
+          return new Message(opcode, payload);
+        }
+        messageOpcode = opcode;
+        message = new ByteArrayOutputStream();
+      } else if (message == null) {
+        throw new IOException("Unexpected WebSocket continuation frame");
+      }
+      message.write(payload);
+      if (fin) {
+        return new Message(messageOpcode, message.toByteArray());
+      }
+    }
+  }
+
+  /**
+   * Writes a single unfragmented frame. Frames sent by clients must be masked, for which
+   * {@code maskRandom} is used; servers must pass null.
+   */
+  static void writeFrame(OutputStream outputStream, int opcode, byte[] payload, Random maskRandom)
+      throws IOException {
+    // Header, extended length and mask, written in one go to avoid small TCP segments.
+    byte[] header = new byte[14];
+    int headerLength = 0;
+    header[headerLength++] = (byte) (0x80 | opcode);
+    int maskBit = maskRandom != null ? 0x80 : 0;
+    if (payload.length < 126) {
+      header[headerLength++] = (byte) (maskBit | payload.length);
+    } else if (payload.length <= 0xFFFF) {
+      header[headerLength++] = (byte) (maskBit | 126);
+      header[headerLength++] = (byte) (payload.length >>> 8);
+      header[headerLength++] = (byte) payload.length;
+    } else {
+      header[headerLength++] = (byte) (maskBit | 127);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        header[headerLength++] = (byte) ((long) payload.length >>> shift);
+      }
+    }
+    byte[] body = payload;
+    if (maskRandom != null) {
+      byte[] mask = new byte[4];
+      maskRandom.nextBytes(mask);
+      System.arraycopy(mask, 0, header, headerLength, 4);
+      headerLength += 4;
+      body = new byte[payload.length];
+      for (int i = 0; i < payload.length; i++) {
+        body[i] = (byte) (payload[i] ^ mask[i % 4]);
+      }
+    }
+    byte[] frame = new byte[headerLength + body.length];
+    System.arraycopy(header, 0, frame, 0, headerLength);
+    System.arraycopy(body, 0, frame, headerLength, body.length);
+    outputStream.write(frame);
+    outputStream.flush();
+  }
+
+  /**
+   * Reads a line of an HTTP header, without the line terminator, or returns null if the stream
+   * ended.
+   */
+  static String readHttpLine(InputStream inputStream) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int character;
+    while ((character = inputStream.read()) != -1) {
+      if (character == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      if (line.length() >= 8192) {
+        throw new IOException("HTTP header line too long");
+      }
+      line.append((char) character);
+    }
+    return line.length() > 0 ? line.toString() : null;
+  }
+
+  private static int readByte(InputStream inputStream) throws IOException {
+    int value = inputStream.read();
+    if (value == -1) {
+      throw new EOFException();
+    }
+    return value;
+  }
+
+  private static byte[] readFully(InputStream inputStream, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int read = inputStream.read(bytes, offset, length - offset);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes {@code bytes} in standard, padded Base64. Neither {@code java.util.Base64} nor
+   * {@code android.util.Base64} is available to this module on all the platforms it runs on.
+   */
+  private static String encodeBase64(byte[] bytes) {
+    StringBuilder encoded = new StringBuilder((bytes.length + 2) / 3 * 4);
+    for (int i = 0; i < bytes.length; i += 3) {
+      int chunk = (bytes[i] & 0xFF) << 16;
+      if (i + 1 < bytes.length) {
+        chunk |= (bytes[i + 1] & 0xFF) << 8;
+      }
+      if (i + 2 < bytes.length) {
+        chunk |= bytes[i + 2] & 0xFF;
+      }
+      encoded.append(BASE64_ALPHABET[(chunk >> 18) & 0x3F]);
+      encoded.append(BASE64_ALPHABET[(chunk >> 12) & 0x3F]);
+      encoded.append(i + 1 < bytes.length ? BASE64_ALPHABET[(chunk >> 6) & 0x3F] : '=');
+      encoded.append(i + 2 < bytes.length ? BASE64_ALPHABET[chunk & 0x3F] : '=');
+    }
+    return encoded.toString();
+  }
+}
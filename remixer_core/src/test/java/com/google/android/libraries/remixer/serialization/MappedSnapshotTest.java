@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.android.libraries.remixer.BooleanVariableBuilder;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.RangeVariable;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MappedSnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private SerializableRemixerContents contents;
+  private File file;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    contents = new SerializableRemixerContents();
+    for (int i = 0; i < 100; i++) {
+      contents.addItem(new StringVariableBuilder()
+          .setKey("string" + i).setContext(this).setInitialValue("välue " + i).build());
+    }
+    contents.addItem(new BooleanVariableBuilder().setKey("boolean").setContext(this).build());
+    contents.addItem(new RangeVariable.Builder()
+        .setMinValue(0f)
+        .setMaxValue(10f)
+        .setIncrement(1f)
+        .setInitialValue(5f)
+        .setKey("ränge")
+        .setContext(this)
+        .build());
+    file = folder.newFile("snapshot");
+    MappedSnapshot.write(contents, file);
+  }
+
+  @Test
+  public void readsItemsByKey() throws IOException {
+    MappedSnapshot snapshot = MappedSnapshot.open(file);
+    Assert.assertEquals(contents.keySet().size(), snapshot.size());
+    for (String key : contents.keySet()) {
+      Assert.assertTrue(snapshot.containsKey(key));
+      Assert.assertEquals(contents.getItem(key), snapshot.getItem(key));
+    }
+    Assert.assertEquals(contents, snapshot.toContents());
+  }
+
+  @Test
+  public void returnsNullForMissingKeys() throws IOException {
+    MappedSnapshot snapshot = MappedSnapshot.open(file);
+    Assert.assertFalse(snapshot.containsKey("string"));
+    Assert.assertNull(snapshot.getItem("string"));
+    Assert.assertNull(snapshot.getItem("zzz"));
+    Assert.assertNull(snapshot.getItem(""));
+  }
+
+  @Test
+  public void writesEmptySnapshots() throws IOException {
+    MappedSnapshot.write(new SerializableRemixerContents(), file);
+    MappedSnapshot snapshot = MappedSnapshot.open(file);
+    Assert.assertEquals(0, snapshot.size());
+    Assert.assertNull(snapshot.getItem("boolean"));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsInvalidFiles() throws IOException {
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write("{\"boolean\": {}}".getBytes("UTF-8"));
+    } finally {
+      outputStream.close();
+    }
+    MappedSnapshot.open(file);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsIndexRecordsOutsideTheFile() throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      // The value length of the last index record.
+      randomAccessFile.seek(12 + (contents.keySet().size() - 1) * 16 + 12);
+      randomAccessFile.writeInt((int) randomAccessFile.length());
+    } finally {
+      randomAccessFile.close();
+    }
+    MappedSnapshot.open(file);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTruncatedFiles() throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(randomAccessFile.length() - 1);
+    } finally {
+      randomAccessFile.close();
+    }
+    MappedSnapshot.open(file);
+  }
+}
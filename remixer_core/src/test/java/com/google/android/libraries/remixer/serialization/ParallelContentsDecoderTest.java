@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.android.libraries.remixer.BooleanVariableBuilder;
+import com.google.android.libraries.remixer.DataType;
+import com.google.android.libraries.remixer.IncompatibleRemixerItemsWithSameKeyException;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.ItemListVariable;
+import com.google.android.libraries.remixer.RangeVariable;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.io.StringReader;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelContentsDecoderTest {
+
+  private static final int VARIABLE_COUNT = 5000;
+  private static final int BLACK = 0x00000000;
+  private static final int BLUE = 0xFF0000FF;
+
+  private Gson gson = GsonProvider.getInstance();
+  private ForkJoinPool pool;
+  private SerializableRemixerContents contents;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+    contents = new SerializableRemixerContents();
+    for (int i = 0; i < VARIABLE_COUNT; i++) {
+      switch (i % 4) {
+        case 0:
+          contents.addItem(new BooleanVariableBuilder()
+              .setKey("key" + i).setContext(this).setInitialValue(i % 3 == 0).build());
+          break;
+        case 1:
+          contents.addItem(new StringVariableBuilder()
+              .setKey("key" + i).setContext(this).setInitialValue("value" + i).build());
+          break;
+        case 2:
+          contents.addItem(new ItemListVariable.Builder<Integer>()
+              .setLimitedToValues(new Integer[]{BLACK, BLUE})
+              .setInitialValue(BLUE)
+              .setDataType(DataType.COLOR)
+              .setKey("key" + i)
+              .setContext(this)
+              .build());
+          break;
+        default:
+          contents.addItem(new RangeVariable.Builder()
+              .setMinValue(0f)
+              .setMaxValue(100f)
+              .setIncrement(1f)
+              .setInitialValue((float) (i % 100))
+              .setKey("key" + i)
+              .setContext(this)
+              .build());
+          break;
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Test
+  public void decodesSameAsSerialPath() {
+    JsonObject json = gson.toJsonTree(contents).getAsJsonObject();
+    SerializableRemixerContents serial = gson.fromJson(json, SerializableRemixerContents.class);
+    SerializableRemixerContents parallel = new ParallelContentsDecoder(pool, 64).decode(json);
+    Assert.assertEquals(serial, parallel);
+    Assert.assertEquals(contents, parallel);
+  }
+
+  @Test
+  public void decodesFromReader() {
+    String json = gson.toJson(contents);
+    Assert.assertEquals(
+        contents, new ParallelContentsDecoder(pool).decode(new StringReader(json)));
+  }
+
+  @Test(expected = IncompatibleRemixerItemsWithSameKeyException.class)
+  public void rejectsIncompatibleItemsWithSameKey() {
+    JsonObject json = gson.toJsonTree(contents).getAsJsonObject();
+    // Serialize a boolean variable whose key is the same as a string variable's.
+    json.add("duplicate", gson.toJsonTree(StoredVariable.fromVariable(
+        new BooleanVariableBuilder().setKey("key1").setContext(this).build())));
+    new ParallelContentsDecoder(pool, 64).decode(json);
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void propagatesParseErrors() {
+    JsonObject json = gson.toJsonTree(contents).getAsJsonObject();
+    json.getAsJsonObject("key1").addProperty(StoredVariable.DATA_TYPE, "__UnknownDataType__");
+    new ParallelContentsDecoder(pool, 64).decode(json);
+  }
+}
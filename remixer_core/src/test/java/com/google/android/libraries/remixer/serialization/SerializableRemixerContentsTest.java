@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.serialization;
+
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SerializableRemixerContentsTest {
+
+  private static final int VARIABLE_COUNT = 100;
+
+  private SerializableRemixerContents contents;
+  private SerializableRemixerContents otherContents;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    contents = new SerializableRemixerContents();
+    otherContents = new SerializableRemixerContents();
+    for (int i = 0; i < VARIABLE_COUNT; i++) {
+      contents.addItem(createVariable("key" + i, "value"));
+      otherContents.addItem(createVariable("key" + i, "value"));
+    }
+  }
+
+  @Test
+  public void hashMatchesMapHash() {
+    Map<String, StoredVariable> map = new HashMap<>();
+    for (String key : contents.keySet()) {
+      map.put(key, contents.getItem(key));
+    }
+    Assert.assertEquals(map.hashCode(), contents.hashCode());
+    contents.setValue(createVariable("key3", "new value"));
+    Assert.assertEquals(map.hashCode(), contents.hashCode());
+  }
+
+  @Test
+  public void hashIsUpdatedWithValues() {
+    Assert.assertEquals(contents, otherContents);
+    Assert.assertEquals(contents.hashCode(), otherContents.hashCode());
+    contents.setValue(createVariable("key3", "new value"));
+    Assert.assertNotEquals(contents, otherContents);
+    Assert.assertNotEquals(contents.hashCode(), otherContents.hashCode());
+    contents.setValue(createVariable("key3", "value"));
+    Assert.assertEquals(contents, otherContents);
+    Assert.assertEquals(contents.hashCode(), otherContents.hashCode());
+  }
+
+  @Test
+  public void findsKeysWithDifferentContent() {
+    Assert.assertTrue(contents.getKeysWithDifferentContent(otherContents).isEmpty());
+    contents.setValue(createVariable("key3", "new value"));
+    otherContents.setValue(createVariable("key42", "other value"));
+    otherContents.addItem(createVariable("onlyInOther", "value"));
+    Set<String> differentKeys = contents.getKeysWithDifferentContent(otherContents);
+    Assert.assertEquals(3, differentKeys.size());
+    Assert.assertTrue(differentKeys.contains("key3"));
+    Assert.assertTrue(differentKeys.contains("key42"));
+    Assert.assertTrue(differentKeys.contains("onlyInOther"));
+    Assert.assertEquals(differentKeys, otherContents.getKeysWithDifferentContent(contents));
+  }
+
+  @Test
+  public void findsKeysWithDifferentContentWhenGroupHashesCollide() {
+    // "Aa" and "BB" have the same hash code, so swapping their values keeps every content hash.
+    contents.addItem(createVariable("Aa", "first"));
+    contents.addItem(createVariable("BB", "second"));
+    otherContents.addItem(createVariable("Aa", "second"));
+    otherContents.addItem(createVariable("BB", "first"));
+    Assert.assertEquals(contents.hashCode(), otherContents.hashCode());
+    Set<String> differentKeys = contents.getKeysWithDifferentContent(otherContents);
+    Assert.assertEquals(2, differentKeys.size());
+    Assert.assertTrue(differentKeys.contains("Aa"));
+    Assert.assertTrue(differentKeys.contains("BB"));
+  }
+
+  @Test
+  public void unversionedValuesAreStampedWithTheNextTick() {
+    contents.setValue(createVariable("key3", "new value"));
+    StoredVariable storedVariable = contents.getItem("key3");
+    Assert.assertEquals(1, storedVariable.getClock());
+    Assert.assertEquals(contents.getOriginId(), storedVariable.getOrigin());
+    contents.setValue(createVariable("key4", "new value"));
+    Assert.assertEquals(2, contents.getItem("key4").getClock());
+  }
+
+  @Test
+  public void acceptsValuesWithEqualButDistinctDataTypes() {
+    StoredVariable<String> variable = createVariable("key3", "new value");
+    variable.dataType = new String(variable.dataType);
+    Assert.assertTrue(contents.setValue(variable));
+    Assert.assertEquals("new value", contents.getItem("key3").getSelectedValue());
+  }
+
+  @Test
+  public void olderValuesAreRejected() {
+    contents.setValue(createVariable("key3", "new value"));
+    contents.setValue(createVariable("key3", "newer value"));
+    StoredVariable<String> older = createVariable("key3", "old value");
+    older.setClock(1);
+    older.setOrigin(contents.getOriginId());
+    Assert.assertFalse(contents.setValue(older));
+    Assert.assertEquals("newer value", contents.getItem("key3").getSelectedValue());
+  }
+
+  @Test
+  public void seenVersionsAdvanceTheClock() {
+    StoredVariable<String> remote = createVariable("key3", "remote value");
+    remote.setClock(10);
+    remote.setOrigin("remote");
+    Assert.assertTrue(contents.setValue(remote));
+    Assert.assertEquals(10, contents.getClock());
+    contents.setValue(createVariable("key3", "local value"));
+    Assert.assertEquals(11, contents.getItem("key3").getClock());
+  }
+
+  @Test
+  public void concurrentValuesConvergeRegardlessOfOrder() {
+    SerializableRemixerContents first = new SerializableRemixerContents("a");
+    SerializableRemixerContents second = new SerializableRemixerContents("b");
+    first.addItem(createVariable("key", "value"));
+    second.addItem(createVariable("key", "value"));
+    first.setValue(createVariable("key", "first"));
+    second.setValue(createVariable("key", "second"));
+    StoredVariable fromFirst = copy(first.getItem("key"));
+    StoredVariable fromSecond = copy(second.getItem("key"));
+    // Both writes have clock 1, the tie is broken by origin.
+    Assert.assertFalse(first.setValue(fromSecond) == second.setValue(fromFirst));
+    Assert.assertEquals("second", first.getItem("key").getSelectedValue());
+    Assert.assertEquals("second", second.getItem("key").getSelectedValue());
+    Assert.assertEquals(first.getItem("key").getOrigin(), second.getItem("key").getOrigin());
+  }
+
+  @Test
+  public void versionSurvivesSerialization() {
+    contents.setValue(createVariable("key3", "new value"));
+    StoredVariable storedVariable = copy(contents.getItem("key3"));
+    Assert.assertEquals(1, storedVariable.getClock());
+    Assert.assertEquals(contents.getOriginId(), storedVariable.getOrigin());
+    Assert.assertEquals(contents.getItem("key3"), storedVariable);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void keySetCannotBeModified() {
+    contents.keySet().remove("key1");
+  }
+
+  private static StoredVariable copy(StoredVariable storedVariable) {
+    return GsonProvider.getInstance().fromJson(
+        GsonProvider.getInstance().toJson(storedVariable), StoredVariable.class);
+  }
+
+  private StoredVariable<String> createVariable(String key, String value) {
+    Variable<String> variable = new StringVariableBuilder()
+        .setKey(key)
+        .setContext(this)
+        .setInitialValue(value)
+        .build();
+    @SuppressWarnings("unchecked")
+    StoredVariable<String> storedVariable = StoredVariable.fromVariable(variable);
+    return storedVariable;
+  }
+}
@@ -95,4 +95,15 @@ public class StringVariableSerializationTest {
     // Check that it converts to Json and back with no data loss.
     Assert.assertEquals(result, gson.fromJson(gson.toJsonTree(result), StoredVariable.class));
   }
+
+  @Test
+  public void deserializedTypeStringsAreShared() {
+    String json = gson.toJson(StoredVariable.fromVariable(stringListVariable));
+    StoredVariable<?> first = gson.fromJson(json, StoredVariable.class);
+    StoredVariable<?> second = gson.fromJson(json, StoredVariable.class);
+    Assert.assertSame(DataType.STRING.getName(), first.dataType);
+    Assert.assertSame(first.dataType, second.dataType);
+    Assert.assertSame(StoredVariable.ITEM_LIST_VARIABLE_CONSTRAINT, first.constraintType);
+    Assert.assertSame(first.constraintType, second.constraintType);
+  }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class EvictionPolicyTest {
+
+  private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+  private static final int MAX_UNUSED_LAUNCHES = 3;
+
+  private InMemoryKeyValueStore store;
+  private InMemoryKeyValueStore metadataStore;
+  private long now;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    store = new InMemoryKeyValueStore();
+    metadataStore = new InMemoryKeyValueStore();
+    now = 0;
+    Remixer remixer = launch();
+    setValue(remixer, "used", "value");
+    setValue(remixer, "unused", "value");
+  }
+
+  @Test
+  public void evictsKeysNotUsedForEnoughLaunchesAndTime() {
+    for (int i = 0; i < MAX_UNUSED_LAUNCHES; i++) {
+      now += DAY_MILLIS;
+      setValue(launch(), "used", "value" + i);
+    }
+    Assert.assertNotNull(store.get("unused"));
+    now += DAY_MILLIS;
+    Remixer remixer = launch();
+    Assert.assertNull(store.get("unused"));
+    Assert.assertNotNull(store.get("used"));
+    // The evicted value is not loaded.
+    Assert.assertEquals("", addVariable(remixer, "unused").getSelectedValue());
+  }
+
+  @Test
+  public void keepsKeysUsedRecently() {
+    for (int i = 0; i < MAX_UNUSED_LAUNCHES * 2; i++) {
+      now += DAY_MILLIS;
+      Remixer remixer = launch();
+      addVariable(remixer, "used");
+      if (i % MAX_UNUSED_LAUNCHES == 0) {
+        addVariable(remixer, "unused");
+      }
+    }
+    Assert.assertNotNull(store.get("used"));
+    Assert.assertNotNull(store.get("unused"));
+  }
+
+  @Test
+  public void keepsKeysUnusedForManyLaunchesInShortTime() {
+    for (int i = 0; i < MAX_UNUSED_LAUNCHES * 2; i++) {
+      now += 1000;
+      launch();
+    }
+    Assert.assertNotNull(store.get("unused"));
+  }
+
+  @Test
+  public void forgetsMetadataForRemovedValues() {
+    Remixer remixer = launch();
+    setValue(remixer, "used", "");
+    Assert.assertNull(store.get("used"));
+    Assert.assertNull(metadataStore.get("key:used"));
+    Assert.assertNotNull(metadataStore.get("key:unused"));
+  }
+
+  private Remixer launch() {
+    Remixer remixer = new Remixer();
+    EvictionPolicy policy = new EvictionPolicy(metadataStore, MAX_UNUSED_LAUNCHES, DAY_MILLIS, now);
+    remixer.setSynchronizationMechanism(new KeyValueStoreSyncing(store, policy));
+    return remixer;
+  }
+
+  private Variable<String> addVariable(Remixer remixer, String key) {
+    Variable<String> variable =
+        new StringVariableBuilder().setKey(key).setContext(this).build();
+    remixer.addItem(variable);
+    return variable;
+  }
+
+  private void setValue(Remixer remixer, String key, String value) {
+    addVariable(remixer, key).setValue(value);
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GroupSessionHubTest {
+
+  private static final int DEVICE_COUNT = 20;
+  private static final String KEY = "string";
+  private static final List<String> NO_KEYS = Collections.emptyList();
+
+  private ScheduledExecutorService executor;
+  private RemoteWriteBuffer.Scheduler scheduler;
+  private LoopbackRemoteTransport controllerTransport;
+  private BlockingQueue<StoredVariable> controllerReceived;
+  private GroupSessionHub hub;
+  private List<Variable<String>> deviceVariables;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    scheduler = new RemoteWriteBuffer.ExecutorScheduler(executor);
+    controllerTransport = new LoopbackRemoteTransport(executor, 0, 0, new Random(0));
+    LoopbackRemoteTransport hubSide = new LoopbackRemoteTransport(executor, 0, 0, new Random(0));
+    LoopbackRemoteTransport.connect(controllerTransport, hubSide);
+    controllerReceived = new LinkedBlockingQueue<>();
+    controllerTransport.setListener(new RemoteTransport.Listener() {
+      @Override
+      public void onRemoteVariableAdded(StoredVariable variable) {
+        controllerReceived.add(variable);
+      }
+
+      @Override
+      public void onRemoteVariableChanged(StoredVariable variable) {
+        controllerReceived.add(variable);
+      }
+    });
+    hub = new GroupSessionHub(hubSide, scheduler, 0);
+    deviceVariables = new ArrayList<>();
+    for (int i = 0; i < DEVICE_COUNT; i++) {
+      deviceVariables.add(addDevice("device" + i));
+    }
+    waitFor(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return controllerReceived.size() == 1;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    hub.close();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void fansOutControllerChangesToAllDevices() throws Exception {
+    sendFromController("controller value");
+    waitForDeviceValues("controller value");
+    waitFor(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+          if (hub.getDeviceStats("device" + i).getPendingCount() != 0) {
+            return false;
+          }
+        }
+        return true;
+      }
+    });
+    for (int i = 0; i < DEVICE_COUNT; i++) {
+      GroupSessionHub.DeviceStats stats = hub.getDeviceStats("device" + i);
+      Assert.assertTrue(stats.getAcknowledgedCount() >= 1);
+      Assert.assertTrue(stats.getAcknowledgementLatencyPercentileMicros(99) > 0);
+    }
+  }
+
+  @Test
+  public void forwardsDeviceChangesToControllerAndOtherDevices() throws Exception {
+    controllerReceived.clear();
+    long sentToChangingDevice = hub.getDeviceStats("device3").getSentValueCount();
+    long sentToOtherDevice = hub.getDeviceStats("device4").getSentValueCount();
+    final Variable<String> variable = deviceVariables.get(3);
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        variable.setValue("device value");
+      }
+    }).get();
+    waitForDeviceValues("device value");
+    StoredVariable received = controllerReceived.poll(5, TimeUnit.SECONDS);
+    Assert.assertEquals("device value", received.getSelectedValue());
+    // The device that made the change is not sent its own value back.
+    Assert.assertEquals(
+        sentToChangingDevice, hub.getDeviceStats("device3").getSentValueCount());
+    Assert.assertEquals(
+        sentToOtherDevice + 1, hub.getDeviceStats("device4").getSentValueCount());
+  }
+
+  @Test
+  public void appliesOnlyTheNewestOfConcurrentChanges() throws Exception {
+    StoredVariable older = createStoredVariable("older value");
+    older.setClock(5);
+    older.setOrigin("controller");
+    StoredVariable newer = createStoredVariable("newer value");
+    newer.setClock(6);
+    newer.setOrigin("controller");
+    controllerTransport.send(Collections.singletonMap(KEY, newer), NO_KEYS);
+    controllerTransport.send(Collections.singletonMap(KEY, older), NO_KEYS);
+    waitForDeviceValues("newer value");
+  }
+
+  @Test
+  public void sendsSessionValuesToDevicesThatJoinLater() throws Exception {
+    sendFromController("controller value");
+    waitForDeviceValues("controller value");
+    final Variable<String> lateVariable = addDevice("late device");
+    waitFor(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return "controller value".equals(lateVariable.getSelectedValue());
+      }
+    });
+    Assert.assertEquals(DEVICE_COUNT + 1, hub.getDeviceIds().size());
+  }
+
+  @Test
+  public void keepsChangesReceivedWhileFlushing() throws Exception {
+    final StoredVariable echo = createStoredVariable("changed while flushing");
+    echo.setClock(100);
+    echo.setOrigin("echoing device");
+    hub.addDevice("echoing device", new RemoteTransport() {
+      private Listener listener;
+      private boolean echoed;
+
+      @Override
+      public void send(Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+        if (!echoed) {
+          // Answer with a newer value from within send, as synchronous transports may.
+          echoed = true;
+          listener.onRemoteVariableChanged(echo);
+        }
+      }
+
+      @Override
+      public void clear() {}
+
+      @Override
+      public void setListener(Listener listener) {
+        this.listener = listener;
+      }
+    });
+    waitForDeviceValues("changed while flushing");
+    StoredVariable received;
+    do {
+      received = controllerReceived.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(received);
+    } while (!"changed while flushing".equals(received.getSelectedValue()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsDuplicateDevices() {
+    hub.addDevice("device0", new LoopbackRemoteTransport(executor, 0, 0, new Random(0)));
+  }
+
+  /**
+   * Adds a device that has a variable with {@link #KEY} to the session and returns the variable.
+   */
+  private Variable<String> addDevice(String deviceId) throws Exception {
+    LoopbackRemoteTransport deviceSide = new LoopbackRemoteTransport(executor, 0, 0, new Random(0));
+    LoopbackRemoteTransport hubSide = new LoopbackRemoteTransport(executor, 0, 0, new Random(0));
+    LoopbackRemoteTransport.connect(deviceSide, hubSide);
+    hub.addDevice(deviceId, hubSide);
+    final RemoteValueSyncing syncing = new RemoteValueSyncing(deviceSide, scheduler, 0, 0);
+    syncing.setAcknowledgesRemoteChanges(true);
+    final Variable<String> variable =
+        new StringVariableBuilder().setKey(KEY).setContext(this).setInitialValue("initial").build();
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        Remixer remixer = new Remixer();
+        remixer.setSynchronizationMechanism(syncing);
+        remixer.addItem(variable);
+      }
+    }).get();
+    return variable;
+  }
+
+  private StoredVariable createStoredVariable(String value) {
+    StoredVariable storedVariable = StoredVariable.fromVariable(deviceVariables.get(0));
+    storedVariable.setSelectedValue(value);
+    return storedVariable;
+  }
+
+  private void sendFromController(String value) {
+    controllerTransport.send(Collections.singletonMap(KEY, createStoredVariable(value)), NO_KEYS);
+  }
+
+  private void waitForDeviceValues(final String value) throws Exception {
+    waitFor(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        for (Variable<String> variable : deviceVariables) {
+          if (!value.equals(variable.getSelectedValue())) {
+            return false;
+          }
+        }
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Waits for {@code condition}, which is checked on the executor so it sees what the transports
+   * and syncers did.
+   */
+  private void waitFor(Callable<Boolean> condition)
+      throws ExecutionException, InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!executor.submit(condition).get()) {
+      if (System.nanoTime() > deadline) {
+        Assert.fail("Timed out waiting for the session to settle");
+      }
+      Thread.sleep(5);
+    }
+  }
+}
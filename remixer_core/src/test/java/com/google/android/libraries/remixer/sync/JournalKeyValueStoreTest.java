@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JournalKeyValueStoreTest {
+
+  /**
+   * Runs compactions right away, on the thread that triggers them.
+   */
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable runnable) {
+      runnable.run();
+    }
+  };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private JournalKeyValueStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(folder.getRoot(), "journal");
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+  }
+
+  @Test
+  public void replaysJournalOnLoad() throws IOException {
+    Map<String, String> values = new HashMap<>();
+    values.put("key1", "value1");
+    values.put("key2", "välue2");
+    store.putAll(values);
+    store.putAll(Collections.singletonMap("key1", "new value1"));
+    store.putAll(Collections.singletonMap("key3", "value3"));
+    store.removeAll(Collections.singletonList("key3"));
+    reopen();
+    Assert.assertEquals(2, store.getAll().size());
+    Assert.assertEquals("new value1", store.get("key1"));
+    Assert.assertEquals("välue2", store.get("key2"));
+    Assert.assertNull(store.get("key3"));
+  }
+
+  @Test
+  public void dropsPartiallyWrittenRecords() throws IOException {
+    store.putAll(Collections.singletonMap("key1", "value1"));
+    long validLength = store.getJournalSize();
+    store.putAll(Collections.singletonMap("key2", "value2"));
+    store.close();
+    // Simulate a crash in the middle of writing the second record.
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(file.length() - 3);
+    randomAccessFile.close();
+
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+    Assert.assertEquals("value1", store.get("key1"));
+    Assert.assertNull(store.get("key2"));
+    Assert.assertEquals(validLength, file.length());
+    // New records go after the last valid one.
+    store.putAll(Collections.singletonMap("key2", "value2"));
+    reopen();
+    Assert.assertEquals("value2", store.get("key2"));
+  }
+
+  @Test
+  public void dropsPartiallyWrittenCommitsAsAWhole() throws IOException {
+    Map<String, String> values = new HashMap<>();
+    values.put("key1", "value1");
+    values.put("key2", "value2");
+    store.putAll(values);
+    Map<String, String> newValues = new HashMap<>();
+    newValues.put("key1", "new value1");
+    newValues.put("key3", "value3");
+    store.commit(newValues, Collections.singletonList("key2"));
+    store.close();
+    // Simulate a crash in the middle of writing the commit.
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(file.length() - 3);
+    randomAccessFile.close();
+
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+    Assert.assertEquals(values, store.getAll());
+  }
+
+  @Test
+  public void compactsWhenJournalGrows() throws IOException {
+    store.close();
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR, 2, 1024);
+    long maxSize = 0;
+    for (int i = 0; i < 1000; i++) {
+      store.putAll(Collections.singletonMap("key" + (i % 10), "value" + i));
+      maxSize = Math.max(maxSize, store.getJournalSize());
+    }
+    Assert.assertTrue(maxSize <= 2048);
+    Assert.assertEquals(file.length(), store.getJournalSize());
+    reopen();
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals("value" + (990 + i), store.get("key" + i));
+    }
+  }
+
+  @Test
+  public void keepsRecordsAppendedDuringCompaction() throws IOException {
+    final Runnable[] pendingCompaction = new Runnable[1];
+    store.close();
+    store = new JournalKeyValueStore(file, new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        pendingCompaction[0] = runnable;
+      }
+    }, 1, 0);
+    store.putAll(Collections.singletonMap("key1", "value1"));
+    store.putAll(Collections.singletonMap("key1", "value2"));
+    Assert.assertNotNull(pendingCompaction[0]);
+    store.putAll(Collections.singletonMap("key2", "value3"));
+    pendingCompaction[0].run();
+    reopen();
+    Assert.assertEquals("value2", store.get("key1"));
+    Assert.assertEquals("value3", store.get("key2"));
+  }
+
+  @Test
+  public void ignoresUnfinishedCompaction() throws IOException {
+    store.putAll(Collections.singletonMap("key1", "value1"));
+    store.close();
+    FileOutputStream leftover = new FileOutputStream(file.getPath() + ".compact");
+    leftover.write(new byte[] {1, 2, 3});
+    leftover.close();
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+    Assert.assertEquals("value1", store.get("key1"));
+    Assert.assertFalse(new File(file.getPath() + ".compact").exists());
+  }
+
+  @Test
+  public void ignoresUnfinishedJournalCreation() throws IOException {
+    store.close();
+    Assert.assertTrue(file.delete());
+    // The process died while writing the header of a new journal.
+    FileOutputStream leftover = new FileOutputStream(file.getPath() + ".compact");
+    leftover.write(new byte[] {0x52, 0x4D});
+    leftover.close();
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+    Assert.assertTrue(store.getAll().isEmpty());
+    Assert.assertFalse(new File(file.getPath() + ".compact").exists());
+    store.putAll(Collections.singletonMap("key1", "value1"));
+    reopen();
+    Assert.assertEquals("value1", store.get("key1"));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsFilesThatAreNotJournals() throws IOException {
+    store.close();
+    FileOutputStream outputStream = new FileOutputStream(file);
+    outputStream.write("{\"key1\": \"value1\"}".getBytes("UTF-8"));
+    outputStream.close();
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+  }
+
+  private void reopen() throws IOException {
+    store.close();
+    store = new JournalKeyValueStore(file, DIRECT_EXECUTOR);
+  }
+}
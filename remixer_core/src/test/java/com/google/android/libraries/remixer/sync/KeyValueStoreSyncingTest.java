@@ -0,0 +1,380 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.BooleanVariableBuilder;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.android.libraries.remixer.serialization.StoredVariableMigration;
+import com.google.android.libraries.remixer.serialization.StoredVariableMigrations;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class KeyValueStoreSyncingTest {
+
+  private Gson gson = GsonProvider.getInstance();
+  private InMemoryKeyValueStore store;
+  private Remixer remixer;
+  private Variable<Boolean> booleanVariable;
+  private Variable<String> stringVariable;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    store = new InMemoryKeyValueStore();
+    remixer = new Remixer();
+    remixer.setSynchronizationMechanism(new KeyValueStoreSyncing(store));
+    booleanVariable = new BooleanVariableBuilder().setKey("boolean").setContext(this).build();
+    stringVariable = new StringVariableBuilder().setKey("string").setContext(this).build();
+  }
+
+  @After
+  public void tearDown() {
+    StoredVariableMigrations.clearMigrations();
+  }
+
+  @Test
+  public void onlyWritesValuesDifferentFromInitialValue() {
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    Assert.assertTrue(store.getAll().isEmpty());
+    stringVariable.setValue("new value");
+    compareToStored(stringVariable);
+    Assert.assertEquals(1, store.getAll().size());
+  }
+
+  @Test
+  public void removesValuesResetToInitialValue() {
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("new value");
+    Assert.assertNotNull(store.get("string"));
+    stringVariable.setValue("");
+    Assert.assertNull(store.get("string"));
+  }
+
+  @Test
+  public void countsPersistedAndRegisteredKeys() {
+    KeyValueStoreSyncing syncing = new KeyValueStoreSyncing(store);
+    remixer.setSynchronizationMechanism(syncing);
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    remixer.addItem(new StringVariableBuilder().setKey("string").setContext(remixer).build());
+    Assert.assertEquals(2, syncing.getRegisteredKeyCount());
+    Assert.assertEquals(0, syncing.getPersistedKeyCount());
+    booleanVariable.setValue(true);
+    Assert.assertEquals(1, syncing.getPersistedKeyCount());
+  }
+
+  @Test
+  public void recordsStorageStats() {
+    KeyValueStoreSyncing syncing = new KeyValueStoreSyncing(store);
+    remixer.setSynchronizationMechanism(syncing);
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    booleanVariable.setValue(true);
+    stringVariable.setValue("new value");
+    StorageStats stats = syncing.getStorageStats();
+    Assert.assertTrue(stats.getLoadTimeMillis() >= 0);
+    Assert.assertEquals(2, stats.getChangeCount());
+    Assert.assertEquals(2, stats.getCommitCount());
+
+    StringWriter output = new StringWriter();
+    syncing.dump(new PrintWriter(output));
+    Assert.assertTrue(output.toString().contains("2 persisted of 2 registered keys"));
+    Assert.assertTrue(output.toString().contains("commits: 2"));
+  }
+
+  @Test
+  public void updatesValuesInStore() {
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    booleanVariable.setValue(true);
+    stringVariable.setValue("new value");
+    compareToStored(booleanVariable);
+    compareToStored(stringVariable);
+  }
+
+  @Test
+  public void doesNotPersistTimestamps() {
+    StoredVariable<String> stored = StoredVariable.fromVariable(
+        new StringVariableBuilder()
+            .setKey("string").setContext(this).setInitialValue("stored value").build());
+    stored.setTimestamp(1234);
+    store.putAll(Collections.singletonMap("string", gson.toJson(stored)));
+    remixer.setSynchronizationMechanism(new KeyValueStoreSyncing(store));
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("new value");
+    Assert.assertFalse(store.get("string").contains(StoredVariable.TIMESTAMP));
+    compareToStored(stringVariable);
+  }
+
+  @Test
+  public void readsValuesAlreadyStored() {
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("stored value");
+
+    Remixer otherRemixer = new Remixer();
+    otherRemixer.setSynchronizationMechanism(new KeyValueStoreSyncing(store));
+    Variable<String> otherStringVariable =
+        new StringVariableBuilder().setKey("string").setContext(this).build();
+    otherRemixer.addItem(otherStringVariable);
+    Assert.assertEquals("stored value", otherStringVariable.getSelectedValue());
+  }
+
+  @Test
+  public void appliesStoredValuesAfterLoadingInBackground() {
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    booleanVariable.setValue(true);
+    stringVariable.setValue("stored value");
+
+    DeferredExecutor loadExecutor = new DeferredExecutor();
+    DeferredExecutor callbackExecutor = new DeferredExecutor();
+    Remixer otherRemixer = new Remixer();
+    KeyValueStoreSyncing syncing =
+        new KeyValueStoreSyncing(store, loadExecutor, callbackExecutor);
+    otherRemixer.setSynchronizationMechanism(syncing);
+    Variable<Boolean> otherBooleanVariable =
+        new BooleanVariableBuilder().setKey("boolean").setContext(this).build();
+    Variable<String> otherStringVariable =
+        new StringVariableBuilder().setKey("string").setContext(this).build();
+    otherRemixer.addItem(otherBooleanVariable);
+    otherRemixer.addItem(otherStringVariable);
+    // Nothing is loaded yet, so the variables keep their initial values and nothing is written.
+    Assert.assertFalse(syncing.isLoaded());
+    Assert.assertFalse(otherBooleanVariable.getSelectedValue());
+    Assert.assertEquals("", otherStringVariable.getSelectedValue());
+    compareToStored(booleanVariable);
+    compareToStored(stringVariable);
+
+    loadExecutor.runAll();
+    Assert.assertFalse(syncing.isLoaded());
+    callbackExecutor.runAll();
+    Assert.assertTrue(syncing.isLoaded());
+    Assert.assertTrue(otherBooleanVariable.getSelectedValue());
+    Assert.assertEquals("stored value", otherStringVariable.getSelectedValue());
+  }
+
+  @Test
+  public void valuesChangedWhileLoadingTakePrecedence() {
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("stored value");
+
+    DeferredExecutor loadExecutor = new DeferredExecutor();
+    Remixer otherRemixer = new Remixer();
+    otherRemixer.setSynchronizationMechanism(
+        new KeyValueStoreSyncing(store, loadExecutor, new Executor() {
+          @Override
+          public void execute(Runnable runnable) {
+            runnable.run();
+          }
+        }));
+    Variable<String> otherStringVariable =
+        new StringVariableBuilder().setKey("string").setContext(this).build();
+    Variable<Boolean> newVariable =
+        new BooleanVariableBuilder().setKey("new").setContext(this).build();
+    otherRemixer.addItem(otherStringVariable);
+    otherRemixer.addItem(newVariable);
+    otherStringVariable.setValue("changed while loading");
+    loadExecutor.runAll();
+    Assert.assertEquals("changed while loading", otherStringVariable.getSelectedValue());
+    compareToStored(otherStringVariable);
+    Assert.assertNull(store.get(newVariable.getKey()));
+  }
+
+  @Test
+  public void commitsBatchesAsOneGroup() {
+    CountingKeyValueStore countingStore = new CountingKeyValueStore();
+    remixer.setSynchronizationMechanism(new KeyValueStoreSyncing(countingStore));
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("old value");
+    countingStore.commits = 0;
+
+    remixer.beginBatch();
+    remixer.beginBatch();
+    booleanVariable.setValue(true);
+    remixer.endBatch();
+    stringVariable.setValue("");
+    Assert.assertEquals(0, countingStore.commits);
+    remixer.endBatch();
+    Assert.assertEquals(1, countingStore.commits);
+    Assert.assertNotNull(countingStore.get("boolean"));
+    Assert.assertNull(countingStore.get("string"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rejectsUnmatchedEndBatch() {
+    remixer.endBatch();
+  }
+
+  @Test
+  public void appliesValuesChangedInStoreByOthers() {
+    KeyValueStoreSyncing syncing = new KeyValueStoreSyncing(store);
+    remixer.setSynchronizationMechanism(syncing);
+    remixer.addItem(booleanVariable);
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("old value");
+
+    // Another process sets the boolean and resets the string to its initial value.
+    store.commit(
+        Collections.singletonMap("boolean", gson.toJson(StoredVariable.fromVariable(
+            new BooleanVariableBuilder()
+                .setKey("boolean").setContext(remixer).setInitialValue(true).build()))),
+        Collections.singletonList("string"));
+    syncing.onStoreChanged(Arrays.asList("boolean", "string"));
+    Assert.assertTrue(booleanVariable.getSelectedValue());
+    Assert.assertEquals("", stringVariable.getSelectedValue());
+    Assert.assertEquals(1, syncing.getPersistedKeyCount());
+  }
+
+  @Test
+  public void migratesValuesFromOlderSchemaVersions() {
+    StoredVariableMigrations.registerMigration(new StoredVariableMigration() {
+      @Override
+      public int getFromVersion() {
+        return StoredVariable.SCHEMA_VERSION - 1;
+      }
+
+      @Override
+      public JsonObject migrate(String key, JsonObject storedVariable) {
+        if (key.equals("dropped")) {
+          return null;
+        }
+        storedVariable.add(StoredVariable.SELECTED_VALUE, storedVariable.remove("value"));
+        return storedVariable;
+      }
+    });
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("old value");
+    JsonObject oldStringVariable = gson.fromJson(store.get("string"), JsonObject.class);
+    oldStringVariable.add("value", oldStringVariable.remove(StoredVariable.SELECTED_VALUE));
+    Map<String, String> oldValues = new HashMap<>();
+    oldValues.put("string", oldStringVariable.toString());
+    oldValues.put("dropped", oldStringVariable.toString());
+    oldValues.put(
+        KeyValueStoreSyncing.SCHEMA_VERSION_KEY,
+        Integer.toString(StoredVariable.SCHEMA_VERSION - 1));
+    store.putAll(oldValues);
+
+    Remixer otherRemixer = new Remixer();
+    otherRemixer.setSynchronizationMechanism(new KeyValueStoreSyncing(store));
+    Variable<String> otherStringVariable =
+        new StringVariableBuilder().setKey("string").setContext(this).build();
+    otherRemixer.addItem(otherStringVariable);
+    Assert.assertEquals("old value", otherStringVariable.getSelectedValue());
+    // The upgraded values are written back along with the current version.
+    compareToStored(otherStringVariable);
+    Assert.assertNull(store.get("dropped"));
+    Assert.assertEquals(
+        Integer.toString(StoredVariable.SCHEMA_VERSION),
+        store.get(KeyValueStoreSyncing.SCHEMA_VERSION_KEY));
+  }
+
+  @Test
+  public void dropsValuesFromNewerSchemaVersions() {
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("new value");
+    store.putAll(Collections.singletonMap(
+        KeyValueStoreSyncing.SCHEMA_VERSION_KEY,
+        Integer.toString(StoredVariable.SCHEMA_VERSION + 1)));
+
+    Remixer otherRemixer = new Remixer();
+    otherRemixer.setSynchronizationMechanism(new KeyValueStoreSyncing(store));
+    Variable<String> otherStringVariable =
+        new StringVariableBuilder().setKey("string").setContext(this).build();
+    otherRemixer.addItem(otherStringVariable);
+    Assert.assertEquals("", otherStringVariable.getSelectedValue());
+    Assert.assertNull(store.get("string"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void failsWithoutMigrationFromStoredVersion() {
+    store.putAll(Collections.singletonMap(
+        KeyValueStoreSyncing.SCHEMA_VERSION_KEY,
+        Integer.toString(StoredVariable.SCHEMA_VERSION - 1)));
+    store.putAll(Collections.singletonMap(
+        "string", gson.toJson(StoredVariable.fromVariable(stringVariable))));
+    new KeyValueStoreSyncing(store);
+  }
+
+  private void compareToStored(Variable<?> variable) {
+    StoredVariable<?> storedData =
+        gson.fromJson(store.get(variable.getKey()), StoredVariable.class);
+    Assert.assertEquals(StoredVariable.fromVariable(variable), storedData);
+  }
+
+  /**
+   * Counts how many times changes are committed.
+   */
+  private static class CountingKeyValueStore extends InMemoryKeyValueStore {
+
+    int commits;
+
+    @Override
+    public synchronized void commit(Map<String, String> values, Collection<String> removedKeys) {
+      commits++;
+      super.commit(values, removedKeys);
+    }
+  }
+
+  /**
+   * Keeps tasks until {@link #runAll()} is called.
+   */
+  private static class DeferredExecutor implements Executor {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable runnable) {
+      tasks.add(runnable);
+    }
+
+    void runAll() {
+      for (Runnable task : new ArrayList<>(tasks)) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+}
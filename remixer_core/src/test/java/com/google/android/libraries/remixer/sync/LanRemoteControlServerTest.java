@@ -0,0 +1,576 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.DataType;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.ItemListVariable;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.GsonProvider;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LanRemoteControlServerTest {
+
+  private static final List<String> NO_KEYS = Collections.emptyList();
+  private static final String HANDSHAKE_KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+  private LanRemoteControlServer server;
+  private StoredVariable storedVariable;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LanRemoteControlServer(0);
+    server.start();
+    storedVariable = StoredVariable.fromVariable(new StringVariableBuilder()
+        .setKey("string").setContext(this).setInitialValue("initial").build());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  @Test
+  public void servesVariableList() throws IOException {
+    server.send(Collections.singletonMap("string", storedVariable), NO_KEYS);
+    HttpURLConnection connection =
+        (HttpURLConnection) getUrl(LanRemoteControlServer.VARIABLES_PATH).openConnection();
+    Assert.assertEquals(200, connection.getResponseCode());
+    Reader reader = new InputStreamReader(connection.getInputStream(), "UTF-8");
+    JsonArray variables = new JsonParser().parse(reader).getAsJsonObject()
+        .getAsJsonArray(LanRemoteControlServer.FIELD_VARIABLES);
+    reader.close();
+    Assert.assertEquals(1, variables.size());
+    Assert.assertEquals(
+        storedVariable,
+        GsonProvider.getInstance().fromJson(variables.get(0), StoredVariable.class));
+  }
+
+  @Test
+  public void streamsSnapshotAndUpdatesToClients() throws IOException {
+    server.send(Collections.singletonMap("string", storedVariable), NO_KEYS);
+    TestClient client = new TestClient(server);
+    JsonObject snapshot = client.readMessage();
+    Assert.assertEquals(LanRemoteControlServer.TYPE_SNAPSHOT, snapshot.get("type").getAsString());
+    Assert.assertEquals("initial", getFirstValue(snapshot));
+
+    storedVariable.setSelectedValue("changed");
+    server.send(Collections.singletonMap("string", storedVariable), NO_KEYS);
+    JsonObject update = client.readMessage();
+    Assert.assertEquals(LanRemoteControlServer.TYPE_UPDATE, update.get("type").getAsString());
+    Assert.assertEquals("changed", getFirstValue(update));
+
+    server.clear();
+    JsonObject emptySnapshot = client.readMessage();
+    Assert.assertEquals(
+        LanRemoteControlServer.TYPE_SNAPSHOT, emptySnapshot.get("type").getAsString());
+    Assert.assertEquals(0, emptySnapshot.getAsJsonArray("variables").size());
+    client.close();
+  }
+
+  @Test
+  public void forwardsClientUpdatesToListenerAndOtherClients() throws Exception {
+    final BlockingQueue<StoredVariable> changed = new LinkedBlockingQueue<>();
+    server.setListener(new RemoteTransport.Listener() {
+      @Override
+      public void onRemoteVariableAdded(StoredVariable variable) {}
+
+      @Override
+      public void onRemoteVariableChanged(StoredVariable variable) {
+        changed.add(variable);
+      }
+    });
+    server.send(Collections.singletonMap("string", storedVariable), NO_KEYS);
+    TestClient sender = new TestClient(server);
+    TestClient observer = new TestClient(server);
+    sender.readMessage();
+    observer.readMessage();
+
+    storedVariable.setSelectedValue("remote");
+    sender.sendUpdate(storedVariable);
+    Assert.assertEquals("remote", changed.poll(5, TimeUnit.SECONDS).getSelectedValue());
+    Assert.assertEquals("remote", getFirstValue(observer.readMessage()));
+    sender.close();
+    observer.close();
+  }
+
+  @Test
+  public void syncsRemixerVariablesWithClients() throws Exception {
+    ScheduledExecutorService main = Executors.newSingleThreadScheduledExecutor();
+    try {
+      RemoteValueSyncing syncing =
+          new RemoteValueSyncing(server, new RemoteWriteBuffer.ExecutorScheduler(main), 0, 0);
+      Remixer remixer = new Remixer();
+      remixer.setSynchronizationMechanism(syncing);
+      Variable<String> variable = new StringVariableBuilder()
+          .setKey("string").setContext(this).setInitialValue("initial").build();
+      remixer.addItem(variable);
+      syncing.flush();
+      TestClient client = new TestClient(server);
+      Assert.assertEquals("initial", getFirstValue(client.readMessage()));
+
+      variable.setValue("local");
+      syncing.flush();
+      Assert.assertEquals("local", getFirstValue(client.readMessage()));
+
+      StoredVariable remoteVariable = StoredVariable.fromVariable(variable);
+      remoteVariable.setSelectedValue("remote");
+      client.sendUpdate(remoteVariable);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!"remote".equals(variable.getSelectedValue())
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals("remote", variable.getSelectedValue());
+      client.close();
+    } finally {
+      main.shutdownNow();
+    }
+  }
+
+  @Test
+  public void sendsTracesOfClientChanges() throws Exception {
+    ScheduledExecutorService main = Executors.newSingleThreadScheduledExecutor();
+    try {
+      RemoteValueSyncing syncing =
+          new RemoteValueSyncing(server, new RemoteWriteBuffer.ExecutorScheduler(main), 0, 0);
+      server.setLatencyTracker(syncing.getLatencyTracker());
+      syncing.getLatencyTracker().setTraceListener(new SyncLatencyTracker.TraceListener() {
+        @Override
+        public void onTrace(SyncLatencyTracker.Trace trace) {
+          server.sendTrace(trace);
+        }
+      });
+      Remixer remixer = new Remixer();
+      remixer.setSynchronizationMechanism(syncing);
+      Variable<String> variable = new StringVariableBuilder()
+          .setKey("string").setContext(this).setInitialValue("initial").build();
+      remixer.addItem(variable);
+      syncing.flush();
+      TestClient client = new TestClient(server);
+      client.readMessage();
+
+      StoredVariable remoteVariable = StoredVariable.fromVariable(variable);
+      remoteVariable.setSelectedValue("remote");
+      remoteVariable.setTimestamp(System.currentTimeMillis());
+      client.sendUpdate(remoteVariable);
+      JsonObject trace = client.readMessage();
+      Assert.assertEquals(LanRemoteControlServer.TYPE_TRACE, trace.get("type").getAsString());
+      Assert.assertEquals("string", trace.get(LanRemoteControlServer.FIELD_KEY).getAsString());
+      Assert.assertEquals(
+          remoteVariable.getTimestamp(),
+          trace.get(LanRemoteControlServer.FIELD_TIMESTAMP).getAsLong());
+      JsonObject stages = trace.getAsJsonObject(LanRemoteControlServer.FIELD_STAGES);
+      for (int stage = 0; stage < SyncLatencyTracker.STAGE_COUNT; stage++) {
+        Assert.assertTrue(stages.has(SyncLatencyTracker.getStageName(stage)));
+      }
+      Assert.assertEquals("remote", variable.getSelectedValue());
+      client.close();
+    } finally {
+      main.shutdownNow();
+    }
+  }
+
+  @Test
+  public void sendsOnlyValuesToCompactClients() throws IOException {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      items.add("item " + i);
+    }
+    StoredVariable listVariable = StoredVariable.fromVariable(new ItemListVariable.Builder<String>()
+        .setLimitedToValues(items)
+        .setDataType(DataType.STRING)
+        .setKey("list")
+        .setContext(this)
+        .build());
+    server.send(Collections.singletonMap("list", listVariable), NO_KEYS);
+    TestClient compactClient = new TestClient(server, "&format=compact");
+    TestClient fullClient = new TestClient(server);
+    JsonObject definition = compactClient.readMessage()
+        .getAsJsonArray("variables").get(0).getAsJsonObject();
+    Assert.assertEquals(50, definition.getAsJsonArray("limitedToValues").size());
+    int id = definition.get(LanRemoteControlServer.FIELD_ID).getAsInt();
+    fullClient.readMessage();
+
+    StoredVariable changed = StoredVariable.fromVariable(new ItemListVariable.Builder<String>()
+        .setLimitedToValues(items)
+        .setDataType(DataType.STRING)
+        .setInitialValue("item 7")
+        .setKey("list")
+        .setContext(this)
+        .build());
+    changed.setClock(3);
+    changed.setOrigin("device");
+    server.send(Collections.singletonMap("list", changed), NO_KEYS);
+    String compactUpdate = compactClient.readText();
+    String fullUpdate = fullClient.readText();
+    JsonObject update = new JsonParser().parse(compactUpdate).getAsJsonObject();
+    Assert.assertNull(update.get("variables"));
+    JsonObject value =
+        update.getAsJsonArray(LanRemoteControlServer.FIELD_VALUES).get(0).getAsJsonObject();
+    Assert.assertEquals(id, value.get(LanRemoteControlServer.FIELD_ID).getAsInt());
+    Assert.assertEquals("item 7", value.get("selectedValue").getAsString());
+    Assert.assertEquals(3, value.get("clock").getAsLong());
+    Assert.assertEquals("item 7", getFirstValue(new JsonParser().parse(fullUpdate)
+        .getAsJsonObject()));
+    Assert.assertTrue(compactUpdate.length() * 5 < fullUpdate.length());
+    Assert.assertEquals(4, server.getSentValueCount());
+    compactClient.close();
+    fullClient.close();
+  }
+
+  @Test
+  public void acceptsValuesFromCompactClients() throws Exception {
+    final BlockingQueue<StoredVariable> changed = new LinkedBlockingQueue<>();
+    server.setListener(new RemoteTransport.Listener() {
+      @Override
+      public void onRemoteVariableAdded(StoredVariable variable) {}
+
+      @Override
+      public void onRemoteVariableChanged(StoredVariable variable) {
+        changed.add(variable);
+      }
+    });
+    server.send(Collections.singletonMap("string", storedVariable), NO_KEYS);
+    TestClient sender = new TestClient(server, "&format=compact");
+    TestClient observer = new TestClient(server);
+    int id = sender.readMessage().getAsJsonArray("variables").get(0).getAsJsonObject()
+        .get(LanRemoteControlServer.FIELD_ID).getAsInt();
+    observer.readMessage();
+
+    JsonObject value = new JsonObject();
+    value.addProperty(LanRemoteControlServer.FIELD_ID, id);
+    value.addProperty("selectedValue", "remote");
+    JsonArray values = new JsonArray();
+    values.add(value);
+    JsonObject message = new JsonObject();
+    message.addProperty("type", LanRemoteControlServer.TYPE_UPDATE);
+    message.add(LanRemoteControlServer.FIELD_VALUES, values);
+    sender.sendText(message.toString());
+    StoredVariable received = changed.poll(5, TimeUnit.SECONDS);
+    Assert.assertEquals("remote", received.getSelectedValue());
+    Assert.assertTrue(received.hasSameDefinitionAs(storedVariable));
+    Assert.assertEquals("remote", getFirstValue(observer.readMessage()));
+    sender.close();
+    observer.close();
+  }
+
+  @Test
+  public void reportsMalformedClientMessages() throws IOException {
+    final List<StoredVariable> received = new ArrayList<>();
+    server.setListener(new RemoteTransport.Listener() {
+      @Override
+      public void onRemoteVariableAdded(StoredVariable variable) {
+        received.add(variable);
+      }
+
+      @Override
+      public void onRemoteVariableChanged(StoredVariable variable) {
+        received.add(variable);
+      }
+    });
+    TestClient client = new TestClient(server, "&format=compact");
+    client.readMessage();
+    String[] messages = {
+        "not json",
+        "[]",
+        "{\"variables\": []}",
+        "{\"type\": \"update\", \"variables\": {}}",
+        "{\"type\": \"update\", \"variables\": [{\"selectedValue\": \"value\"}]}",
+        "{\"type\": \"update\", \"values\": [{\"selectedValue\": \"value\"}]}",
+    };
+    for (String message : messages) {
+      client.sendText(message);
+      JsonObject error = client.readMessage();
+      Assert.assertEquals(LanRemoteControlServer.TYPE_ERROR, error.get("type").getAsString());
+      Assert.assertNotNull(error.get(LanRemoteControlServer.FIELD_MESSAGE));
+    }
+    Assert.assertTrue(received.isEmpty());
+    client.close();
+  }
+
+  @Test
+  public void compressesLargeSnapshots() throws IOException {
+    Map<String, StoredVariable> manyVariables = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      manyVariables.put("string" + i, StoredVariable.fromVariable(new StringVariableBuilder()
+          .setKey("string" + i).setContext(this).setInitialValue("value " + i).build()));
+    }
+    server.send(manyVariables, NO_KEYS);
+    TestClient client = new TestClient(server, "&format=compact&compression=gzip");
+    WebSocketFrames.Message message = client.readFrame();
+    Assert.assertEquals(WebSocketFrames.OPCODE_BINARY, message.opcode);
+    Reader reader = new InputStreamReader(
+        new GZIPInputStream(new ByteArrayInputStream(message.payload)), "UTF-8");
+    JsonObject snapshot = new JsonParser().parse(reader).getAsJsonObject();
+    Assert.assertEquals(100, snapshot.getAsJsonArray("variables").size());
+    Assert.assertTrue(server.getSentBytes() < snapshot.toString().length() / 2);
+    client.close();
+
+    HttpURLConnection connection =
+        (HttpURLConnection) getUrl(LanRemoteControlServer.VARIABLES_PATH).openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    Assert.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+  }
+
+  @Test
+  public void rejectsRequestsWithoutTheToken() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://127.0.0.1:" + server.getPort() + LanRemoteControlServer.VARIABLES_PATH)
+        .openConnection();
+    Assert.assertEquals(403, connection.getResponseCode());
+    Assert.assertEquals("HTTP/1.1 403 Forbidden", getHandshakeStatus("?token=wrong", null));
+    Assert.assertEquals(0, server.getClientCount());
+  }
+
+  @Test
+  public void onlyAcceptsAllowedOrigins() throws IOException {
+    String query = "?token=" + server.getToken();
+    Assert.assertEquals(
+        "HTTP/1.1 403 Forbidden", getHandshakeStatus(query, "http://evil.example.com"));
+    server.addAllowedOrigin("http://localhost:3000");
+    Assert.assertEquals(
+        "HTTP/1.1 101 Switching Protocols", getHandshakeStatus(query, "http://localhost:3000"));
+
+    HttpURLConnection connection =
+        (HttpURLConnection) getUrl(LanRemoteControlServer.VARIABLES_PATH).openConnection();
+    Assert.assertEquals(200, connection.getResponseCode());
+    Assert.assertNull(connection.getHeaderField("Access-Control-Allow-Origin"));
+  }
+
+  @Test
+  public void rejectsRequestsWithTooManyHeaders() throws IOException {
+    Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+    try {
+      socket.setSoTimeout(5000);
+      StringBuilder request = new StringBuilder("GET " + LanRemoteControlServer.VARIABLES_PATH
+          + "?token=" + server.getToken() + " HTTP/1.1\r\n");
+      for (int i = 0; i <= LanRemoteControlServer.MAX_HEADER_LINES; i++) {
+        request.append("X-Header-").append(i).append(": value\r\n");
+      }
+      request.append("\r\n");
+      socket.getOutputStream().write(request.toString().getBytes("UTF-8"));
+      socket.getOutputStream().flush();
+      Assert.assertNull(readStatusUnlessReset(socket));
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void limitsConcurrentConnections() throws Exception {
+    String query = "?token=" + server.getToken();
+    List<Socket> idleSockets = new ArrayList<>();
+    try {
+      for (int i = 0; i < LanRemoteControlServer.MAX_CONNECTIONS; i++) {
+        idleSockets.add(new Socket(InetAddress.getByName("127.0.0.1"), server.getPort()));
+      }
+      Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+      try {
+        socket.setSoTimeout(5000);
+        Assert.assertNull(readStatusUnlessReset(socket));
+      } finally {
+        socket.close();
+      }
+    } finally {
+      for (Socket socket : idleSockets) {
+        socket.close();
+      }
+    }
+    // The server notices the idle sockets went away on its own time.
+    String status = null;
+    for (int attempt = 0; attempt < 50 && status == null; attempt++) {
+      Thread.sleep(20);
+      try {
+        status = getHandshakeStatus(query, null);
+      } catch (SocketException e) {
+        // Still at the limit.
+      }
+    }
+    Assert.assertEquals("HTTP/1.1 101 Switching Protocols", status);
+  }
+
+  @Test
+  public void listensOnLoopbackByDefault() {
+    Assert.assertTrue(server.getAddress().isLoopbackAddress());
+  }
+
+  @Test
+  public void rejectsUnknownPaths() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) getUrl("/unknown").openConnection();
+    Assert.assertEquals(404, connection.getResponseCode());
+  }
+
+  private static String getFirstValue(JsonObject message) {
+    return message.getAsJsonArray("variables").get(0).getAsJsonObject()
+        .get("selectedValue").getAsString();
+  }
+
+  /**
+   * A minimal WebSocket client, standing in for a remote controller.
+   */
+  private URL getUrl(String path) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getPort() + path + "?token=" + server.getToken());
+  }
+
+  /**
+   * Sends a WebSocket handshake for {@code query}, with an {@code Origin} header if {@code origin}
+   * is not null, and returns the status line of the response.
+   */
+  private String getHandshakeStatus(String query, String origin) throws IOException {
+    Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+    try {
+      socket.setSoTimeout(5000);
+      writeHandshake(socket.getOutputStream(), query, origin);
+      return WebSocketFrames.readHttpLine(new BufferedInputStream(socket.getInputStream()));
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Reads the status line of the response on {@code socket}, or returns null if the server closed
+   * the connection without responding.
+   */
+  private static String readStatusUnlessReset(Socket socket) throws IOException {
+    try {
+      return WebSocketFrames.readHttpLine(new BufferedInputStream(socket.getInputStream()));
+    } catch (SocketException e) {
+      // Closing a socket with unread input resets the connection.
+      return null;
+    }
+  }
+
+  private static void writeHandshake(OutputStream outputStream, String query, String origin)
+      throws IOException {
+    outputStream.write(("GET " + LanRemoteControlServer.SYNC_PATH + query + " HTTP/1.1\r\n"
+        + "Host: 127.0.0.1\r\n"
+        + (origin != null ? "Origin: " + origin + "\r\n" : "")
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: " + HANDSHAKE_KEY + "\r\n"
+        + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+    outputStream.flush();
+  }
+
+  private static class TestClient {
+
+    private final Socket socket;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final Random maskRandom = new Random(0);
+
+    TestClient(LanRemoteControlServer server) throws IOException {
+      this(server, "");
+    }
+
+    TestClient(LanRemoteControlServer server, String options) throws IOException {
+      socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+      socket.setSoTimeout(5000);
+      inputStream = new BufferedInputStream(socket.getInputStream());
+      outputStream = socket.getOutputStream();
+      writeHandshake(outputStream, "?token=" + server.getToken() + options, null);
+      Assert.assertEquals(
+          "HTTP/1.1 101 Switching Protocols", WebSocketFrames.readHttpLine(inputStream));
+      boolean accepted = false;
+      String line;
+      while (!(line = WebSocketFrames.readHttpLine(inputStream)).isEmpty()) {
+        accepted |= line.equals(
+            "Sec-WebSocket-Accept: " + WebSocketFrames.computeAcceptKey(HANDSHAKE_KEY));
+      }
+      Assert.assertTrue(accepted);
+    }
+
+    JsonObject readMessage() throws IOException {
+      return new JsonParser().parse(readText()).getAsJsonObject();
+    }
+
+    String readText() throws IOException {
+      WebSocketFrames.Message message = readFrame();
+      Assert.assertEquals(WebSocketFrames.OPCODE_TEXT, message.opcode);
+      return message.getText();
+    }
+
+    WebSocketFrames.Message readFrame() throws IOException {
+      return WebSocketFrames.readMessage(inputStream);
+    }
+
+    void sendUpdate(StoredVariable variable) throws IOException {
+      JsonArray variables = new JsonArray();
+      variables.add(GsonProvider.getInstance().toJsonTree(variable, StoredVariable.class));
+      JsonObject message = new JsonObject();
+      message.addProperty("type", LanRemoteControlServer.TYPE_UPDATE);
+      message.add("variables", variables);
+      sendText(message.toString());
+    }
+
+    void sendText(String text) throws IOException {
+      WebSocketFrames.writeFrame(
+          outputStream, WebSocketFrames.OPCODE_TEXT, text.getBytes("UTF-8"), maskRandom);
+    }
+
+    void close() throws IOException {
+      WebSocketFrames.writeFrame(
+          outputStream, WebSocketFrames.OPCODE_CLOSE, new byte[0], maskRandom);
+      Assert.assertEquals(
+          WebSocketFrames.OPCODE_CLOSE, WebSocketFrames.readMessage(inputStream).opcode);
+      socket.close();
+    }
+  }
+}
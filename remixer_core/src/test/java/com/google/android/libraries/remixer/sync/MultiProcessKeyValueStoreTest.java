@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Uses two stores on the same file to stand in for two processes.
+ */
+@RunWith(JUnit4.class)
+public class MultiProcessKeyValueStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private MultiProcessKeyValueStore store;
+  private MultiProcessKeyValueStore otherStore;
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(folder.getRoot(), "journal");
+    store = new MultiProcessKeyValueStore(file);
+    otherStore = new MultiProcessKeyValueStore(file);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+    otherStore.close();
+  }
+
+  @Test
+  public void reportsOnlyKeysChangedByOtherProcesses() {
+    Map<String, String> values = new HashMap<>();
+    values.put("key1", "value1");
+    values.put("key2", "value2");
+    store.putAll(values);
+    Assert.assertEquals(values.keySet(), otherStore.checkForChanges());
+    Assert.assertEquals(values, otherStore.getAll());
+
+    store.commit(
+        Collections.singletonMap("key1", "new value1"), Collections.singletonList("key2"));
+    final Set<String> notifiedKeys = new HashSet<>();
+    otherStore.setListener(new MultiProcessKeyValueStore.Listener() {
+      @Override
+      public void onKeysChanged(Set<String> keys) {
+        notifiedKeys.addAll(keys);
+      }
+    });
+    Assert.assertEquals(values.keySet(), otherStore.checkForChanges());
+    Assert.assertEquals(values.keySet(), notifiedKeys);
+    Assert.assertEquals("new value1", otherStore.get("key1"));
+    Assert.assertNull(otherStore.get("key2"));
+    Assert.assertTrue(otherStore.checkForChanges().isEmpty());
+    // Its own changes are never reported.
+    Assert.assertTrue(store.checkForChanges().isEmpty());
+  }
+
+  @Test
+  public void appliesChangesFromOtherProcessesBeforeWriting() {
+    store.putAll(Collections.singletonMap("key1", "value1"));
+    otherStore.putAll(Collections.singletonMap("key2", "value2"));
+    Assert.assertEquals("value1", otherStore.get("key1"));
+    Assert.assertEquals(Collections.singleton("key2"), store.checkForChanges());
+    Assert.assertEquals(store.getAll(), otherStore.getAll());
+  }
+
+  @Test
+  public void reloadsAfterOtherProcessCompacts() throws IOException {
+    store.close();
+    store = new MultiProcessKeyValueStore(file, 1, 0);
+    otherStore.putAll(Collections.singletonMap("unchanged", "value"));
+    store.checkForChanges();
+    for (int i = 0; i < 10; i++) {
+      store.putAll(Collections.singletonMap("key", "value" + i));
+    }
+    Assert.assertTrue(file.length() < 200);
+    Assert.assertEquals(Collections.singleton("key"), otherStore.checkForChanges());
+    Assert.assertEquals("value9", otherStore.get("key"));
+    Assert.assertEquals("value", otherStore.get("unchanged"));
+  }
+
+  @Test
+  public void noticesCompactionToTheSameLength() throws IOException {
+    store.close();
+    store = new MultiProcessKeyValueStore(file, 1, 0);
+    store.putAll(Collections.singletonMap("key", "valueA"));
+    otherStore.checkForChanges();
+    long length = file.length();
+    store.putAll(Collections.singletonMap("key", "valueB"));
+    Assert.assertEquals(length, file.length());
+    Assert.assertEquals(Collections.singleton("key"), otherStore.checkForChanges());
+    Assert.assertEquals("valueB", otherStore.get("key"));
+    Assert.assertTrue(store.checkForChanges().isEmpty());
+  }
+
+  @Test
+  public void dropsRecordsLeftByProcessesThatDied() throws IOException {
+    store.putAll(Collections.singletonMap("key1", "value1"));
+    long validLength = file.length();
+    FileOutputStream outputStream = new FileOutputStream(file, true);
+    try {
+      outputStream.write(new byte[] {0, 0, 0, 100, 1, 2});
+    } finally {
+      outputStream.close();
+    }
+    Assert.assertEquals(Collections.singleton("key1"), otherStore.checkForChanges());
+    Assert.assertEquals(validLength, file.length());
+    otherStore.putAll(Collections.singletonMap("key2", "value2"));
+    Assert.assertEquals(Collections.singleton("key2"), store.checkForChanges());
+  }
+}
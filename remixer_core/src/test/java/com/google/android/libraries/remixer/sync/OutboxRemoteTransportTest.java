@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OutboxRemoteTransportTest {
+
+  private static final List<String> NO_KEYS = Collections.emptyList();
+
+  private RecordingTransport delegate;
+  private OutboxRemoteTransport transport;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    delegate = new RecordingTransport();
+    transport = new OutboxRemoteTransport(delegate, new RemoteOutbox(3));
+  }
+
+  @Test
+  public void sendsRightAwayWhileConnected() {
+    Assert.assertFalse(transport.setConnected(true));
+    transport.send(Collections.singletonMap("first", createVariable("first", "value")), NO_KEYS);
+    Assert.assertEquals(1, delegate.sentVariables.size());
+    Assert.assertEquals(0, transport.getOutbox().getDepth());
+  }
+
+  @Test
+  public void replaysLatestChangesInOrderOnReconnect() {
+    transport.send(Collections.singletonMap("first", createVariable("first", "old")), NO_KEYS);
+    transport.send(
+        Collections.singletonMap("second", createVariable("second", "value")),
+        Collections.singletonList("third"));
+    transport.send(Collections.singletonMap("first", createVariable("first", "new")), NO_KEYS);
+    Assert.assertTrue(delegate.sentVariables.isEmpty());
+    Assert.assertEquals(3, transport.getOutbox().getDepth());
+
+    Assert.assertFalse(transport.setConnected(true));
+    Assert.assertEquals(1, delegate.sentVariables.size());
+    Map<String, StoredVariable> replayed = delegate.sentVariables.get(0);
+    Assert.assertEquals(Arrays.asList("second", "first"), new ArrayList<>(replayed.keySet()));
+    Assert.assertEquals("new", replayed.get("first").getSelectedValue());
+    Assert.assertEquals(Collections.singletonList("third"), delegate.sentRemovedKeys.get(0));
+    Assert.assertEquals(0, transport.getOutbox().getDepth());
+    Assert.assertEquals(1, transport.getOutbox().getReplayCount());
+  }
+
+  @Test
+  public void reportsDroppedChangesOnReplay() {
+    for (int i = 0; i < 5; i++) {
+      transport.send(
+          Collections.singletonMap("key" + i, createVariable("key" + i, "value")), NO_KEYS);
+    }
+    Assert.assertEquals(3, transport.getOutbox().getDepth());
+    Assert.assertEquals(2, transport.getOutbox().getDroppedCount());
+
+    Assert.assertTrue(transport.setConnected(true));
+    Assert.assertEquals(
+        Arrays.asList("key2", "key3", "key4"),
+        new ArrayList<>(delegate.sentVariables.get(0).keySet()));
+    // Only reported once.
+    transport.setConnected(false);
+    transport.send(Collections.<String, StoredVariable>emptyMap(), Arrays.asList("key0"));
+    Assert.assertFalse(transport.setConnected(true));
+  }
+
+  @Test
+  public void dropsPendingChangesWhenCleared() {
+    transport.send(Collections.singletonMap("first", createVariable("first", "value")), NO_KEYS);
+    transport.clear();
+    Assert.assertEquals(1, delegate.clearCount);
+    Assert.assertEquals(0, transport.getOutbox().getDepth());
+    transport.setConnected(true);
+    Assert.assertTrue(delegate.sentVariables.isEmpty());
+  }
+
+  @Test
+  public void dumpsMetrics() {
+    transport.send(Collections.singletonMap("first", createVariable("first", "value")), NO_KEYS);
+    transport.setConnected(true);
+    StringWriter output = new StringWriter();
+    transport.getOutbox().dump(new PrintWriter(output), "  ");
+    Assert.assertTrue(output.toString().contains("outbox depth: 0 (max 1, limit 3)"));
+    Assert.assertTrue(output.toString().contains("entries replayed: 1"));
+  }
+
+  private StoredVariable createVariable(String key, String value) {
+    return StoredVariable.fromVariable(new StringVariableBuilder()
+        .setKey(key).setContext(this).setInitialValue(value).build());
+  }
+
+  /**
+   * Records everything sent through it.
+   */
+  private static class RecordingTransport implements RemoteTransport {
+
+    final List<Map<String, StoredVariable>> sentVariables = new ArrayList<>();
+    final List<Collection<String>> sentRemovedKeys = new ArrayList<>();
+    int clearCount;
+
+    @Override
+    public void send(Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+      sentVariables.add(variables);
+      sentRemovedKeys.add(removedKeys);
+    }
+
+    @Override
+    public void clear() {
+      clearCount++;
+    }
+
+    @Override
+    public void setListener(Listener listener) {}
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteChangeBufferTest {
+
+  private List<StoredVariable> added;
+  private List<StoredVariable> changed;
+  private List<Runnable> scheduledTasks;
+  private RemoteChangeBuffer changeBuffer;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    added = new ArrayList<>();
+    changed = new ArrayList<>();
+    scheduledTasks = new ArrayList<>();
+    RemoteTransport.Listener target = new RemoteTransport.Listener() {
+      @Override
+      public void onRemoteVariableAdded(StoredVariable variable) {
+        added.add(variable);
+      }
+
+      @Override
+      public void onRemoteVariableChanged(StoredVariable variable) {
+        changed.add(variable);
+      }
+    };
+    changeBuffer = new RemoteChangeBuffer(target, new RemoteWriteBuffer.Scheduler() {
+      @Override
+      public void schedule(Runnable task, long delayMs) {
+        scheduledTasks.add(task);
+      }
+
+      @Override
+      public void cancel(Runnable task) {
+        scheduledTasks.remove(task);
+      }
+    }, 0);
+  }
+
+  @Test
+  public void appliesBurstsOfChangesOnce() {
+    for (int i = 0; i < 10; i++) {
+      changeBuffer.onRemoteVariableChanged(createVariable("first", "value" + i));
+      changeBuffer.onRemoteVariableChanged(createVariable("second", "value" + i));
+    }
+    Assert.assertEquals(1, scheduledTasks.size());
+    Assert.assertTrue(changed.isEmpty());
+    scheduledTasks.get(0).run();
+    Assert.assertEquals(2, changed.size());
+    Assert.assertEquals("value9", changed.get(0).getSelectedValue());
+    Assert.assertEquals("second", changed.get(1).getKey());
+    Assert.assertEquals("value9", changed.get(1).getSelectedValue());
+    Assert.assertTrue(scheduledTasks.isEmpty());
+  }
+
+  @Test
+  public void keepsVariablesAddedInTheSameTickAsAdded() {
+    changeBuffer.onRemoteVariableAdded(createVariable("first", "initial"));
+    changeBuffer.onRemoteVariableChanged(createVariable("first", "changed"));
+    changeBuffer.apply();
+    Assert.assertTrue(changed.isEmpty());
+    Assert.assertEquals(1, added.size());
+    Assert.assertEquals("changed", added.get(0).getSelectedValue());
+  }
+
+  @Test
+  public void appliesInTheOrderOfTheLatestChange() {
+    changeBuffer.onRemoteVariableChanged(createVariable("first", "value"));
+    changeBuffer.onRemoteVariableChanged(createVariable("second", "value"));
+    changeBuffer.onRemoteVariableChanged(createVariable("first", "new value"));
+    changeBuffer.apply();
+    Assert.assertEquals("second", changed.get(0).getKey());
+    Assert.assertEquals("first", changed.get(1).getKey());
+  }
+
+  @Test
+  public void keepsNewestVersionWhenCopiesArriveOutOfOrder() {
+    StoredVariable newer = createVariable("first", "newer");
+    newer.setClock(50);
+    newer.setOrigin("controller");
+    StoredVariable older = createVariable("first", "older");
+    older.setClock(30);
+    older.setOrigin("controller");
+    changeBuffer.onRemoteVariableChanged(newer);
+    changeBuffer.onRemoteVariableChanged(older);
+    changeBuffer.apply();
+    Assert.assertEquals(1, changed.size());
+    Assert.assertEquals("newer", changed.get(0).getSelectedValue());
+    Assert.assertEquals(50, changed.get(0).getClock());
+  }
+
+  @Test
+  public void dropsDiscardedChanges() {
+    changeBuffer.onRemoteVariableChanged(createVariable("first", "value"));
+    changeBuffer.discard();
+    changeBuffer.apply();
+    Assert.assertTrue(changed.isEmpty());
+    Assert.assertTrue(scheduledTasks.isEmpty());
+  }
+
+  private StoredVariable createVariable(String key, String value) {
+    return StoredVariable.fromVariable(new StringVariableBuilder()
+        .setKey(key).setContext(this).setInitialValue(value).build());
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.Callback;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures throughput and latency of {@link RemoteValueSyncing} over a
+ * {@link LoopbackRemoteTransport}, on a plain JVM and without a live backend.
+ *
+ * <p>First the device changes its variables as fast as it can and the remote controller records
+ * when each value arrives. Since outgoing changes are coalesced per key, only some of the values
+ * are delivered; latencies are reported for those. Then the remote controller sends one change
+ * at a time and the device records when each one is applied to its variables.
+ *
+ * <p>This is not part of the tests. Run it with the test classpath and, optionally, the number of
+ * changes, number of variables, one-way latency in microseconds, loss rate, flush delay and apply
+ * delay in milliseconds as arguments, in that order.
+ */
+public class RemoteSyncBenchmark {
+
+  private static final List<String> NO_KEYS = Collections.emptyList();
+
+  /**
+   * Prefix of the values the remote controller sends, to tell them apart from the values the
+   * device sets itself.
+   */
+  private static final String REMOTE_PREFIX = "r";
+
+  /**
+   * How long to wait for more values once nothing new has arrived.
+   */
+  private static final long QUIET_PERIOD_MS = 500;
+
+  public static void main(String[] args) throws InterruptedException, ExecutionException {
+    final int changes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    final int variableCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long latencyMicros = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+    double lossRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+    long flushDelayMs = args.length > 4 ? Long.parseLong(args[4]) : 16;
+    long applyDelayMs = args.length > 5 ? Long.parseLong(args[5]) : 0;
+    InitializationHelper.init();
+
+    // Stands in for the main thread of the app, where Remixer is used from.
+    ScheduledExecutorService main = Executors.newSingleThreadScheduledExecutor();
+    ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+    LoopbackRemoteTransport deviceTransport =
+        new LoopbackRemoteTransport(network, latencyMicros, lossRate, new Random(0));
+    LoopbackRemoteTransport controllerTransport =
+        new LoopbackRemoteTransport(network, latencyMicros, lossRate, new Random(1));
+    LoopbackRemoteTransport.connect(deviceTransport, controllerTransport);
+
+    final AtomicLongArray sendNanos = new AtomicLongArray(changes);
+    final AtomicLongArray arrivalNanos = new AtomicLongArray(changes);
+    final AtomicInteger arrivals = new AtomicInteger();
+    controllerTransport.setListener(new RemoteTransport.Listener() {
+      @Override
+      public void onRemoteVariableAdded(StoredVariable variable) {
+        onRemoteVariableChanged(variable);
+      }
+
+      @Override
+      public void onRemoteVariableChanged(StoredVariable variable) {
+        String value = (String) variable.getSelectedValue();
+        if (!value.isEmpty()) {
+          arrivalNanos.set(Integer.parseInt(value), System.nanoTime());
+          arrivals.incrementAndGet();
+        }
+      }
+    });
+
+    final AtomicLongArray remoteSendNanos = new AtomicLongArray(changes);
+    final AtomicLongArray remoteArrivalNanos = new AtomicLongArray(changes);
+    final AtomicInteger remoteArrivals = new AtomicInteger();
+    final Callback<String> callback = new Callback<String>() {
+      @Override
+      public void onValueSet(Variable<String> variable) {
+        String value = variable.getSelectedValue();
+        if (value.startsWith(REMOTE_PREFIX)) {
+          remoteArrivalNanos.set(
+              Integer.parseInt(value.substring(REMOTE_PREFIX.length())), System.nanoTime());
+          remoteArrivals.incrementAndGet();
+        }
+      }
+    };
+    final RemoteValueSyncing syncing = new RemoteValueSyncing(
+        deviceTransport,
+        new RemoteWriteBuffer.ExecutorScheduler(main),
+        flushDelayMs,
+        applyDelayMs);
+    final Remixer remixer = new Remixer();
+    @SuppressWarnings("unchecked")
+    final Variable<String>[] variables = new Variable[variableCount];
+    main.submit(new Runnable() {
+      @Override
+      public void run() {
+        remixer.setSynchronizationMechanism(syncing);
+        for (int i = 0; i < variableCount; i++) {
+          variables[i] = new StringVariableBuilder()
+              .setKey("key" + i)
+              .setContext(remixer)
+              .setInitialValue("")
+              .setCallback(callback)
+              .build();
+          remixer.addItem(variables[i]);
+        }
+        syncing.flush();
+      }
+    }).get();
+    waitForQuiet(arrivals);
+    arrivals.set(0);
+
+    long start = System.nanoTime();
+    main.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < changes; i++) {
+          sendNanos.set(i, System.nanoTime());
+          variables[i % variableCount].setValue(Integer.toString(i));
+        }
+        syncing.flush();
+      }
+    }).get();
+    long elapsed = System.nanoTime() - start;
+    waitForQuiet(arrivals);
+    System.out.println(String.format(Locale.getDefault(),
+        "device -> controller: %d changes in %.1f ms (%.0f changes/s), %d sends, %d lost",
+        changes,
+        elapsed / 1e6,
+        changes / (elapsed / 1e9),
+        deviceTransport.getSentCount(),
+        deviceTransport.getLostCount()));
+    printLatencies(sendNanos, arrivalNanos, arrivals.get());
+
+    StoredVariable remoteVariable = StoredVariable.fromVariable(variables[0]);
+    start = System.nanoTime();
+    for (int i = 0; i < changes; i++) {
+      remoteVariable.setKey("key" + (i % variableCount));
+      remoteVariable.setSelectedValue(REMOTE_PREFIX + i);
+      remoteSendNanos.set(i, System.nanoTime());
+      controllerTransport.send(
+          Collections.singletonMap(remoteVariable.getKey(), remoteVariable), NO_KEYS);
+    }
+    elapsed = System.nanoTime() - start;
+    waitForQuiet(remoteArrivals);
+    System.out.println(String.format(Locale.getDefault(),
+        "controller -> device: %d changes in %.1f ms (%.0f changes/s), %d lost",
+        changes,
+        elapsed / 1e6,
+        changes / (elapsed / 1e9),
+        controllerTransport.getLostCount()));
+    printLatencies(remoteSendNanos, remoteArrivalNanos, remoteArrivals.get());
+
+    syncing.close();
+    main.shutdown();
+    network.shutdown();
+  }
+
+  /**
+   * Waits until {@code counter} stops changing for {@link #QUIET_PERIOD_MS}.
+   */
+  private static void waitForQuiet(AtomicInteger counter) throws InterruptedException {
+    int last;
+    do {
+      last = counter.get();
+      Thread.sleep(QUIET_PERIOD_MS);
+    } while (counter.get() != last);
+  }
+
+  private static void printLatencies(
+      AtomicLongArray sendNanos, AtomicLongArray arrivalNanos, int delivered) {
+    long[] latencies = new long[delivered];
+    int count = 0;
+    for (int i = 0; i < arrivalNanos.length() && count < delivered; i++) {
+      if (arrivalNanos.get(i) != 0) {
+        latencies[count++] = arrivalNanos.get(i) - sendNanos.get(i);
+      }
+    }
+    if (count == 0) {
+      System.out.println("  nothing delivered");
+      return;
+    }
+    latencies = Arrays.copyOf(latencies, count);
+    Arrays.sort(latencies);
+    System.out.println(String.format(Locale.getDefault(),
+        "  %d delivered, latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+        count,
+        percentile(latencies, 50) / 1e6,
+        percentile(latencies, 90) / 1e6,
+        percentile(latencies, 99) / 1e6,
+        latencies[count - 1] / 1e6));
+  }
+
+  private static long percentile(long[] sortedValues, int percentile) {
+    int index = (int) Math.ceil(sortedValues.length * percentile / 100.0) - 1;
+    return sortedValues[Math.max(0, index)];
+  }
+}
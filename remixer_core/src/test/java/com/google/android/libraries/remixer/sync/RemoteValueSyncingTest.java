@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.Callback;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteValueSyncingTest {
+
+  private static final List<String> NO_KEYS = Collections.emptyList();
+
+  private ScheduledExecutorService executor;
+  private LoopbackRemoteTransport deviceTransport;
+  private LoopbackRemoteTransport controllerTransport;
+  private RecordingListener controller;
+  private RemoteValueSyncing syncing;
+  private Remixer remixer;
+  private Variable<String> variable;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    deviceTransport = new LoopbackRemoteTransport(executor, 0, 0, new Random(0));
+    controllerTransport = new LoopbackRemoteTransport(executor, 0, 0, new Random(0));
+    LoopbackRemoteTransport.connect(deviceTransport, controllerTransport);
+    controller = new RecordingListener();
+    controllerTransport.setListener(controller);
+    // A long flush delay, so that only explicit flushes send anything.
+    syncing = new RemoteValueSyncing(
+        deviceTransport,
+        new RemoteWriteBuffer.ExecutorScheduler(executor),
+        TimeUnit.HOURS.toMillis(1),
+        0);
+    remixer = new Remixer();
+    remixer.setSynchronizationMechanism(syncing);
+    variable = new StringVariableBuilder().setKey("string").setContext(this).build();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void sendsOnlyLatestValuePerFlush() throws InterruptedException {
+    remixer.addItem(variable);
+    variable.setValue("first");
+    variable.setValue("second");
+    syncing.flush();
+    StoredVariable received = controller.added.poll(5, TimeUnit.SECONDS);
+    Assert.assertEquals("second", received.getSelectedValue());
+    Assert.assertEquals(1, deviceTransport.getSentCount());
+
+    variable.setValue("third");
+    syncing.flush();
+    Assert.assertEquals("third", controller.changed.poll(5, TimeUnit.SECONDS).getSelectedValue());
+  }
+
+  @Test
+  public void appliesValuesChangedRemotely() throws InterruptedException {
+    remixer.addItem(variable);
+    final BlockingQueue<String> values = new LinkedBlockingQueue<>();
+    Variable<String> otherVariable = new StringVariableBuilder()
+        .setKey("string")
+        .setContext(remixer)
+        .setCallback(new Callback<String>() {
+          @Override
+          public void onValueSet(Variable<String> variable) {
+            values.add(variable.getSelectedValue());
+          }
+        })
+        .build();
+    remixer.addItem(otherVariable);
+    values.clear();
+    syncing.flush();
+    Assert.assertNotNull(controller.added.poll(5, TimeUnit.SECONDS));
+
+    StoredVariable remoteVariable = StoredVariable.fromVariable(variable);
+    remoteVariable.setSelectedValue("remote value");
+    controllerTransport.send(Collections.singletonMap("string", remoteVariable), NO_KEYS);
+    Assert.assertEquals("remote value", values.poll(5, TimeUnit.SECONDS));
+    Assert.assertEquals("remote value", variable.getSelectedValue());
+  }
+
+  @Test
+  public void tracesRemoteChangesThroughEveryStage() throws InterruptedException {
+    SyncLatencyTracker tracker = syncing.getLatencyTracker();
+    deviceTransport.setLatencyTracker(tracker);
+    final BlockingQueue<SyncLatencyTracker.Trace> traces = new LinkedBlockingQueue<>();
+    tracker.setTraceListener(new SyncLatencyTracker.TraceListener() {
+      @Override
+      public void onTrace(SyncLatencyTracker.Trace trace) {
+        traces.add(trace);
+      }
+    });
+    remixer.addItem(variable);
+    syncing.flush();
+    Assert.assertNotNull(controller.added.poll(5, TimeUnit.SECONDS));
+
+    StoredVariable remoteVariable = StoredVariable.fromVariable(variable);
+    remoteVariable.setSelectedValue("first");
+    remoteVariable.setTimestamp(System.currentTimeMillis());
+    controllerTransport.send(Collections.singletonMap("string", remoteVariable), NO_KEYS);
+    SyncLatencyTracker.Trace trace = traces.poll(5, TimeUnit.SECONDS);
+    Assert.assertEquals("string", trace.getKey());
+    Assert.assertEquals(remoteVariable.getTimestamp(), trace.getTimestampMillis());
+    for (int stage = 0; stage < SyncLatencyTracker.STAGE_COUNT; stage++) {
+      Assert.assertTrue(trace.getStageMicros(stage) >= 0);
+      Assert.assertEquals(1, tracker.getCount(stage));
+    }
+    Assert.assertTrue(trace.getStageMicros(SyncLatencyTracker.STAGE_TOTAL)
+        >= trace.getStageMicros(SyncLatencyTracker.STAGE_CALLBACKS));
+
+    // Without a timestamp the time on the network is unknown.
+    remoteVariable.setSelectedValue("second");
+    remoteVariable.setTimestamp(0);
+    controllerTransport.send(Collections.singletonMap("string", remoteVariable), NO_KEYS);
+    trace = traces.poll(5, TimeUnit.SECONDS);
+    Assert.assertEquals(-1, trace.getStageMicros(SyncLatencyTracker.STAGE_NETWORK));
+    Assert.assertEquals(1, tracker.getCount(SyncLatencyTracker.STAGE_NETWORK));
+    Assert.assertEquals(2, tracker.getCount(SyncLatencyTracker.STAGE_TOTAL));
+  }
+
+  @Test
+  public void stampsSentValuesWithTheirTime() throws InterruptedException {
+    long before = System.currentTimeMillis();
+    remixer.addItem(variable);
+    syncing.flush();
+    StoredVariable received = controller.added.poll(5, TimeUnit.SECONDS);
+    Assert.assertTrue(received.getTimestamp() >= before);
+    Assert.assertTrue(received.getTimestamp() <= System.currentTimeMillis());
+  }
+
+  @Test
+  public void losesSendsWithConfiguredProbability() {
+    LoopbackRemoteTransport lossyTransport =
+        new LoopbackRemoteTransport(executor, 0, 1, new Random(0));
+    LoopbackRemoteTransport.connect(lossyTransport, controllerTransport);
+    lossyTransport.send(Collections.<String, StoredVariable>emptyMap(), NO_KEYS);
+    Assert.assertEquals(1, lossyTransport.getSentCount());
+    Assert.assertEquals(1, lossyTransport.getLostCount());
+  }
+
+  /**
+   * Records what the remote controller receives.
+   */
+  private static class RecordingListener implements RemoteTransport.Listener {
+
+    final BlockingQueue<StoredVariable> added = new LinkedBlockingQueue<>();
+    final BlockingQueue<StoredVariable> changed = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onRemoteVariableAdded(StoredVariable variable) {
+      added.add(variable);
+    }
+
+    @Override
+    public void onRemoteVariableChanged(StoredVariable variable) {
+      changed.add(variable);
+    }
+  }
+}
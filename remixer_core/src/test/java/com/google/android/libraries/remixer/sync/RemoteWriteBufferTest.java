@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteWriteBufferTest {
+
+  private RecordingTransport transport;
+  private List<Runnable> scheduledTasks;
+  private RemoteWriteBuffer writeBuffer;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() {
+    transport = new RecordingTransport();
+    scheduledTasks = new ArrayList<>();
+    writeBuffer = new RemoteWriteBuffer(transport, new RemoteWriteBuffer.Scheduler() {
+      @Override
+      public void schedule(Runnable task, long delayMs) {
+        scheduledTasks.add(task);
+      }
+
+      @Override
+      public void cancel(Runnable task) {
+        scheduledTasks.remove(task);
+      }
+    }, 100);
+  }
+
+  @Test
+  public void sendsWritesAndRemovalsTogether() {
+    StoredVariable first = createVariable("first", "value");
+    writeBuffer.write(first);
+    writeBuffer.remove("second");
+    Assert.assertEquals(1, scheduledTasks.size());
+    scheduledTasks.get(0).run();
+    Assert.assertEquals(1, transport.sentVariables.size());
+    Assert.assertEquals(
+        Collections.singletonMap("first", first), transport.sentVariables.get(0));
+    Assert.assertEquals(
+        Collections.singletonList("second"), transport.sentRemovedKeys.get(0));
+  }
+
+  @Test
+  public void keepsOnlyTheLastOperationPerKey() {
+    writeBuffer.write(createVariable("first", "value"));
+    writeBuffer.remove("first");
+    StoredVariable second = createVariable("second", "value");
+    writeBuffer.remove("second");
+    writeBuffer.write(second);
+    writeBuffer.flush();
+    Assert.assertEquals(
+        Collections.singletonMap("second", second), transport.sentVariables.get(0));
+    Assert.assertEquals(
+        Collections.singletonList("first"), transport.sentRemovedKeys.get(0));
+    Assert.assertTrue(scheduledTasks.isEmpty());
+  }
+
+  @Test
+  public void dropsDiscardedOperations() {
+    writeBuffer.write(createVariable("first", "value"));
+    writeBuffer.remove("second");
+    writeBuffer.discard();
+    writeBuffer.flush();
+    Assert.assertTrue(transport.sentVariables.isEmpty());
+  }
+
+  private StoredVariable createVariable(String key, String value) {
+    return StoredVariable.fromVariable(new StringVariableBuilder()
+        .setKey(key).setContext(this).setInitialValue(value).build());
+  }
+
+  /**
+   * Records everything sent through it.
+   */
+  private static class RecordingTransport implements RemoteTransport {
+
+    final List<Map<String, StoredVariable>> sentVariables = new ArrayList<>();
+    final List<Collection<String>> sentRemovedKeys = new ArrayList<>();
+
+    @Override
+    public void send(Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+      sentVariables.add(variables);
+      sentRemovedKeys.add(removedKeys);
+    }
+
+    @Override
+    public void clear() {}
+
+    @Override
+    public void setListener(Listener listener) {}
+  }
+}
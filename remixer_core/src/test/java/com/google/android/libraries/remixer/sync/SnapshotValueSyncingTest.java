@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.BooleanVariableBuilder;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.Remixer;
+import com.google.android.libraries.remixer.StringVariableBuilder;
+import com.google.android.libraries.remixer.Variable;
+import com.google.android.libraries.remixer.serialization.MappedSnapshot;
+import com.google.android.libraries.remixer.serialization.SerializableRemixerContents;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SnapshotValueSyncingTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Remixer remixer;
+  private SnapshotValueSyncing syncing;
+
+  @BeforeClass
+  public static void oneTimeSetUp() {
+    InitializationHelper.init();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    SerializableRemixerContents contents = new SerializableRemixerContents();
+    for (int i = 0; i < 10; i++) {
+      Variable<String> variable = new StringVariableBuilder()
+          .setKey("string" + i).setContext(this).setInitialValue("initial").build();
+      contents.addItem(variable);
+      StoredVariable<String> value = StoredVariable.fromVariable(variable);
+      value.setSelectedValue("baked " + i);
+      contents.setValue(value);
+    }
+    // Stored as a string, so it is incompatible with the boolean variable below.
+    contents.addItem(new StringVariableBuilder()
+        .setKey("flag").setContext(this).setInitialValue("true").build());
+    File file = folder.newFile("snapshot");
+    MappedSnapshot.write(contents, file);
+
+    remixer = new Remixer();
+    syncing = new SnapshotValueSyncing(MappedSnapshot.open(file));
+    remixer.setSynchronizationMechanism(syncing);
+  }
+
+  @Test
+  public void startsVariablesWithTheSnapshotValues() {
+    Variable<String> variable = new StringVariableBuilder()
+        .setKey("string3").setContext(this).setInitialValue("initial").build();
+    remixer.addItem(variable);
+    Assert.assertEquals("baked 3", variable.getSelectedValue());
+    // Only the values of the variables that were added are loaded.
+    Assert.assertEquals(1, syncing.serializableRemixerContents.keySet().size());
+  }
+
+  @Test
+  public void keepsValuesChangedAtRuntime() {
+    Variable<String> variable = new StringVariableBuilder()
+        .setKey("string3").setContext(this).setInitialValue("initial").build();
+    remixer.addItem(variable);
+    variable.setValue("changed");
+    Variable<String> other = new StringVariableBuilder()
+        .setKey("string3").setContext(new Object()).setInitialValue("initial").build();
+    remixer.addItem(other);
+    Assert.assertEquals("changed", other.getSelectedValue());
+  }
+
+  @Test
+  public void ignoresMissingAndIncompatibleValues() {
+    Variable<String> missing = new StringVariableBuilder()
+        .setKey("missing").setContext(this).setInitialValue("initial").build();
+    Variable<Boolean> incompatible = new BooleanVariableBuilder()
+        .setKey("flag").setContext(this).setInitialValue(false).build();
+    remixer.addItem(missing);
+    remixer.addItem(incompatible);
+    Assert.assertEquals("initial", missing.getSelectedValue());
+    Assert.assertFalse(incompatible.getSelectedValue());
+  }
+}
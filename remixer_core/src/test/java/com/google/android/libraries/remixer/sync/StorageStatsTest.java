@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StorageStatsTest {
+
+  @Test
+  public void computesCoalescingRatioAndRate() {
+    StorageStats stats = new StorageStats(0);
+    Assert.assertEquals(0, stats.getCoalescingRatio(), 0);
+    for (int i = 0; i < 10; i++) {
+      stats.recordChange();
+    }
+    stats.recordCommit(3, 0);
+    stats.recordCommit(1, 0);
+    Assert.assertEquals(10, stats.getChangeCount());
+    Assert.assertEquals(2, stats.getCommitCount());
+    Assert.assertEquals(4, stats.getCommittedKeyCount());
+    Assert.assertEquals(5, stats.getCoalescingRatio(), 0.001);
+    Assert.assertEquals(1, stats.getCommitsPerMinute(TimeUnit.MINUTES.toNanos(2)), 0.001);
+  }
+
+  @Test
+  public void computesCommitCallPercentiles() {
+    StorageStats stats = new StorageStats();
+    Assert.assertEquals(0, stats.getCommitCallPercentileMicros(50));
+    for (int i = 0; i < 90; i++) {
+      stats.recordCommit(1, TimeUnit.MICROSECONDS.toNanos(100));
+    }
+    for (int i = 0; i < 10; i++) {
+      stats.recordCommit(1, TimeUnit.MILLISECONDS.toNanos(20));
+    }
+    Assert.assertEquals(128, stats.getCommitCallPercentileMicros(50));
+    Assert.assertEquals(128, stats.getCommitCallPercentileMicros(90));
+    Assert.assertEquals(32768, stats.getCommitCallPercentileMicros(99));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WebSocketFramesTest {
+
+  @Test
+  public void computesAcceptKey() {
+    // The example from RFC 6455, section 1.3.
+    Assert.assertEquals(
+        "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=",
+        WebSocketFrames.computeAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+  }
+
+  @Test
+  public void readsMaskedFramesOfAllLengths() throws IOException {
+    Random random = new Random(0);
+    for (int length : new int[] {0, 125, 126, 65535, 65536}) {
+      byte[] payload = new byte[length];
+      random.nextBytes(payload);
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      WebSocketFrames.writeFrame(outputStream, WebSocketFrames.OPCODE_BINARY, payload, random);
+      WebSocketFrames.Message message = WebSocketFrames.readMessage(
+          new ByteArrayInputStream(outputStream.toByteArray()));
+      Assert.assertEquals(WebSocketFrames.OPCODE_BINARY, message.opcode);
+      Assert.assertArrayEquals(payload, message.payload);
+    }
+  }
+
+  @Test
+  public void mergesFragmentedMessages() throws IOException {
+    // "Hel" + "lo", the first example of a fragmented message in RFC 6455, section 5.7.
+    byte[] frames = new byte[] {
+        0x01, 0x03, 0x48, 0x65, 0x6c, (byte) 0x80, 0x02, 0x6c, 0x6f};
+    WebSocketFrames.Message message =
+        WebSocketFrames.readMessage(new ByteArrayInputStream(frames));
+    Assert.assertEquals(WebSocketFrames.OPCODE_TEXT, message.opcode);
+    Assert.assertEquals("Hello", message.getText());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsMessagesThatAreTooLarge() throws IOException {
+    byte[] header = new byte[] {(byte) 0x81, 127, 0, 0, 0, 0, 0x7F, 0, 0, 0};
+    WebSocketFrames.readMessage(new ByteArrayInputStream(header));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsLengthsWithTheMostSignificantBitSet() throws IOException {
+    byte[] header = new byte[] {(byte) 0x81, 127, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0};
+    WebSocketFrames.readMessage(new ByteArrayInputStream(header));
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.sync;
+
+import com.google.android.libraries.remixer.DataType;
+import com.google.android.libraries.remixer.InitializationHelper;
+import com.google.android.libraries.remixer.ItemListVariable;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many bytes a {@link LanRemoteControlServer} sends per changed value in the full and
+ * the compact formats, with one client connected in each.
+ *
+ * <p>The device defines list variables and then changes their values one at a time, like a remote
+ * controller being used to pick values. The server's summary is printed at the end, including the
+ * snapshots each client got when connecting; the second run connects with compressed snapshots.
+ *
+ * <p>This is not part of the tests. Run it with the test classpath and, optionally, the number of
+ * changes, number of variables and number of items per list as arguments, in that order.
+ */
+public class WireSizeBenchmark {
+
+  private static final List<String> NO_KEYS = Collections.emptyList();
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int changes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int variableCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int itemCount = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    InitializationHelper.init();
+
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < itemCount; i++) {
+      items.add("item " + i);
+    }
+    run("uncompressed snapshots", "", changes, variableCount, items);
+    run("compressed snapshots", "&compression=gzip", changes, variableCount, items);
+  }
+
+  private static void run(
+      String name, String options, int changes, int variableCount, List<String> items)
+      throws IOException, InterruptedException {
+    LanRemoteControlServer server = new LanRemoteControlServer(0);
+    server.start();
+    Map<String, StoredVariable> definitions = new HashMap<>();
+    for (int i = 0; i < variableCount; i++) {
+      definitions.put("key" + i, createVariable("key" + i, items, items.get(0)));
+    }
+    server.send(definitions, NO_KEYS);
+    Client fullClient = new Client(server.getPort(), "?token=" + server.getToken());
+    Client compactClient = new Client(
+        server.getPort(), "?token=" + server.getToken() + "&format=compact" + options);
+    while (server.getClientCount() < 2) {
+      Thread.sleep(1);
+    }
+    long snapshotBytes = server.getSentBytes();
+
+    for (int i = 0; i < changes; i++) {
+      String key = "key" + (i % variableCount);
+      server.send(
+          Collections.singletonMap(key, createVariable(key, items, items.get(i % items.size()))),
+          NO_KEYS);
+    }
+    // Each client gets a snapshot and then one message per change.
+    fullClient.awaitMessages(changes + 1);
+    compactClient.awaitMessages(changes + 1);
+
+    PrintWriter writer = new PrintWriter(System.out);
+    writer.println(name + ":");
+    writer.println(String.format(
+        Locale.getDefault(),
+        "  snapshots: %d bytes for 2 clients, %d variables each",
+        snapshotBytes,
+        variableCount));
+    server.dump(writer, "  ");
+    writer.flush();
+    fullClient.close();
+    compactClient.close();
+    server.close();
+  }
+
+  private static StoredVariable createVariable(String key, List<String> items, String value) {
+    return StoredVariable.fromVariable(new ItemListVariable.Builder<String>()
+        .setLimitedToValues(items)
+        .setDataType(DataType.STRING)
+        .setInitialValue(value)
+        .setKey(key)
+        .setContext(WireSizeBenchmark.class)
+        .build());
+  }
+
+  /**
+   * A WebSocket client that reads and counts every message it gets.
+   */
+  private static class Client {
+
+    private final Socket socket;
+    private final AtomicLong messageCount = new AtomicLong();
+
+    Client(int port, String query) throws IOException {
+      socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+      final InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+      OutputStream outputStream = socket.getOutputStream();
+      outputStream.write(("GET " + LanRemoteControlServer.SYNC_PATH + query + " HTTP/1.1\r\n"
+          + "Upgrade: websocket\r\n"
+          + "Connection: Upgrade\r\n"
+          + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+          + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+      outputStream.flush();
+      String line;
+      while ((line = WebSocketFrames.readHttpLine(inputStream)) != null && !line.isEmpty()) {
+        // Skip the handshake response.
+      }
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              WebSocketFrames.readMessage(inputStream);
+              messageCount.incrementAndGet();
+            }
+          } catch (IOException e) {
+            // Closed.
+          }
+        }
+      });
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    void awaitMessages(long count) throws InterruptedException {
+      while (messageCount.get() < count) {
+        Thread.sleep(1);
+      }
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+}
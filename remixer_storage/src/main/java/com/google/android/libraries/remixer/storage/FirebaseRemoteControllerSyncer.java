@@ -20,22 +20,31 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
+import android.util.Log;
 import com.google.android.libraries.remixer.Remixer;
 import com.google.android.libraries.remixer.Variable;
 import com.google.android.libraries.remixer.serialization.StoredVariable;
-import com.google.android.libraries.remixer.sync.LocalValueSyncing;
+import com.google.android.libraries.remixer.sync.OutboxRemoteTransport;
+import com.google.android.libraries.remixer.sync.RemoteChangeBuffer;
+import com.google.android.libraries.remixer.sync.RemoteOutbox;
+import com.google.android.libraries.remixer.sync.RemoteTransport;
+import com.google.android.libraries.remixer.sync.RemoteWriteBuffer;
+import com.google.android.libraries.remixer.sync.SyncLatencyTracker;
 import com.google.android.libraries.remixer.sync.SynchronizationMechanism;
 import com.google.firebase.FirebaseApp;
-import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -43,15 +52,89 @@ import java.util.UUID;
  *
  * <p>This synchronization mechanism assumes that the local host is the source of truth, so it does
  * very little in terms of conflict resolution.
+ *
+ * <p>Outgoing changes are buffered per key, keeping only the latest value, and sent as a single
+ * multi-path update at most once per remote flush delay. Dragging a slider or switching to an
+ * activity with many variables results in a handful of network operations instead of one per
+ * change per variable.
+ *
+ * <p>When the foreground context changes, the remote controller is not cleared. Instead this keeps
+ * track of what the remote controller holds and only sends the difference: the variables it does
+ * not have or has with a different value, and the removal of those that are not in the new
+ * context. Going back and forth between two activities, or recreating one on a configuration
+ * change, sends little or nothing.
+ *
+ * <p>Incoming changes are buffered per key as well and applied together right before the next
+ * frame, so a burst of remote edits results in a single pass over the variables and a single
+ * relayout.
+ *
+ * <p>While Firebase cannot be reached, outgoing changes are kept in a {@link RemoteOutbox} (only
+ * the latest change per key) instead of piling up in Firebase's own queue, and replayed in order
+ * as a single update once it reconnects. If the outbox had to drop changes, everything in the
+ * current context is sent again instead. Its depth and replay times are part of
+ * {@link #dump(PrintWriter)}. The outbox is kept in memory only: sharing always starts by clearing
+ * the remote controller and sending it the locally persisted values, which supersede anything a
+ * previous session did not get to send.
+ *
+ * <p>All communication goes through a {@link RemoteTransport}, a {@link FirebaseRemoteTransport}
+ * unless {@link #createTransport()} is overridden.
+ *
+ * <p>How long remote changes take to reach the variables' callbacks is measured per stage by
+ * {@link #getLatencyTracker()}, and part of {@link #dump(PrintWriter)}. With
+ * {@link #setEchoesTraces(boolean)} every change's trace is also written to Firebase, next to the
+ * variables, for the remote controller to show.
  */
 public class FirebaseRemoteControllerSyncer
-    extends LocalStorage implements ChildEventListener {
+    extends LocalStorage implements RemoteTransport.Listener {
+
+  /**
+   * Default time to buffer outgoing changes before sending them to Firebase, in milliseconds.
+   */
+  public static final long DEFAULT_REMOTE_FLUSH_DELAY_MS = 100;
+
+  /**
+   * Default time to buffer incoming changes before applying them, in milliseconds. Changes are
+   * always applied right before a frame, 0 means the next one.
+   */
+  public static final long DEFAULT_REMOTE_APPLY_DELAY_MS = 0;
 
   private final Context applicationContext;
   /**
-   * The reference to the root element for this Remixer Instance in the database
+   * The transport to the remote controller for this Remixer instance, created when sharing starts
+   * for the first time. It wraps the one returned by {@link #createTransport()}.
+   */
+  private OutboxRemoteTransport transport;
+  /**
+   * Changes made while Firebase cannot be reached.
+   */
+  private final RemoteOutbox outbox;
+  /**
+   * Reports whether Firebase can be reached to {@link #transport} while sharing.
+   */
+  private final ValueEventListener connectionListener = new ValueEventListener() {
+    @Override
+    public void onDataChange(DataSnapshot dataSnapshot) {
+      onConnectionChanged(Boolean.TRUE.equals(dataSnapshot.getValue(Boolean.class)));
+    }
+
+    @Override
+    public void onCancelled(DatabaseError databaseError) {
+      Log.w(TAG, "Stopped tracking the connection state: " + databaseError.getMessage());
+    }
+  };
+  /**
+   * Buffers the changes to send through {@link #transport}.
+   */
+  private RemoteWriteBuffer writeBuffer;
+  /**
+   * Buffers the changes received through {@link #transport} until they are applied.
+   */
+  private RemoteChangeBuffer changeBuffer;
+  /**
+   * What the remote controller holds once the buffered changes are sent, keyed by variable key.
+   * All accesses must be synchronized.
    */
-  private DatabaseReference reference;
+  private final Map<String, StoredVariable> remoteVariables = new HashMap<>();
   /**
    * The current context that is active on the app (foreground activity).
    */
@@ -72,9 +155,17 @@ public class FirebaseRemoteControllerSyncer
    */
   private String remoteId;
 
+  private final long remoteFlushDelayMs;
+  private final long remoteApplyDelayMs;
+
+  private static final String TAG = "FirebaseRemoteController";
   private static final String PREFERENCES_FILE_NAME = "remixer_firebase";
+  private static final String CONNECTED_REFERENCE = ".info/connected";
   private static final String REMOTE_ID = "remote_id";
   private static final String REFERENCE_FORMAT = "remixer/%s";
+  private static final String TRACES_REFERENCE_FORMAT = "remixerTraces/%s";
+  private static final String TRACE_TIMESTAMP = "timestamp";
+  private static final String TRACE_STAGES = "stages";
 
   /**
    * Initializes a {@code FirebaseRemoteControllerSyncer} instance.
@@ -83,7 +174,30 @@ public class FirebaseRemoteControllerSyncer
    * one if it does not yet exist).
    */
   public FirebaseRemoteControllerSyncer(Context applicationContext) {
+    this(applicationContext, DEFAULT_REMOTE_FLUSH_DELAY_MS);
+  }
+
+  /**
+   * Initializes a {@code FirebaseRemoteControllerSyncer} instance that buffers outgoing changes for
+   * {@code remoteFlushDelayMs} milliseconds before sending them all in a single update.
+   */
+  public FirebaseRemoteControllerSyncer(Context applicationContext, long remoteFlushDelayMs) {
+    this(applicationContext, remoteFlushDelayMs, DEFAULT_REMOTE_APPLY_DELAY_MS);
+  }
+
+  /**
+   * Initializes a {@code FirebaseRemoteControllerSyncer} instance that buffers outgoing changes for
+   * {@code remoteFlushDelayMs} milliseconds, and incoming changes for at least
+   * {@code remoteApplyDelayMs} milliseconds before applying them right before a frame.
+   */
+  public FirebaseRemoteControllerSyncer(
+      Context applicationContext, long remoteFlushDelayMs, long remoteApplyDelayMs) {
     super(applicationContext);
+    if (remoteFlushDelayMs < 0 || remoteApplyDelayMs < 0) {
+      throw new IllegalArgumentException("The remote flush and apply delays cannot be negative");
+    }
+    this.remoteFlushDelayMs = remoteFlushDelayMs;
+    this.remoteApplyDelayMs = remoteApplyDelayMs;
     SharedPreferences preferences =
         applicationContext.getSharedPreferences(PREFERENCES_FILE_NAME, Context.MODE_PRIVATE);
     remoteId = preferences.getString(REMOTE_ID, null);
@@ -93,32 +207,108 @@ public class FirebaseRemoteControllerSyncer
     }
     this.applicationContext = applicationContext;
     listeners = new HashSet<>();
+    outbox = new RemoteOutbox(RemoteOutbox.DEFAULT_MAX_ENTRIES);
   }
 
   /**
    * Starts sharing up to Firebase.
    *
    * <p>Since we don't know what the status of the database is right now, we clear the value and
-   * then add everything for the current context, then add this instance as a child event listener.
+   * then add everything for the current context, then start listening to the transport.
    *
    * <p>That way we get notified of changes to children (individual variables) after the initial
    * sync.
    */
   public synchronized void startSharing() {
-    reference = FirebaseDatabase.getInstance().getReference(
-        String.format(Locale.getDefault(), REFERENCE_FORMAT, remoteId));
-    reference.removeValue();
+    if (transport == null) {
+      transport = new OutboxRemoteTransport(createTransport(), outbox);
+      writeBuffer = new RemoteWriteBuffer(transport, new MainThreadScheduler(), remoteFlushDelayMs);
+      changeBuffer = new RemoteChangeBuffer(this, new FrameScheduler(), remoteApplyDelayMs);
+    }
+    boolean wasSharing = sharing;
     sharing = true;
+    uploadCurrentContext();
+    if (!wasSharing) {
+      // Calling this again while sharing only uploads again, the listener is removed when sharing
+      // stops.
+      getConnectedReference().addValueEventListener(connectionListener);
+    }
+    transport.setListener(changeBuffer);
+    notifyListeners();
+  }
+
+  /**
+   * Clears the remote controller and sends it all the variables in the current context, in a
+   * single update.
+   *
+   * <p>This also drops whatever was left in the outbox, the values it would have sent are sent
+   * again anyway.
+   */
+  private synchronized void uploadCurrentContext() {
+    clearRemoteController();
     if (context != null && context.get() != null) {
       List<Variable> variableList =  Remixer.getInstance().getVariablesWithContext(context.get());
       if (variableList != null) {
         for (Variable variable : variableList) {
-          syncVariableToRemoteController(StoredVariable.fromVariable(variable));
+          syncVariableToRemoteController(createStoredCopy(variable));
         }
       }
     }
-    reference.addChildEventListener(this);
-    notifyListeners();
+    // Send the initial state right away, in a single update.
+    flushRemoteWrites();
+  }
+
+  private synchronized void onConnectionChanged(boolean connected) {
+    if (sharing && transport.setConnected(connected)) {
+      // The outbox overflowed, so the remote controller is missing changes.
+      uploadCurrentContext();
+    }
+  }
+
+  private static DatabaseReference getConnectedReference() {
+    return FirebaseDatabase.getInstance().getReference(CONNECTED_REFERENCE);
+  }
+
+  /**
+   * Creates the transport to the remote controller. By default this is the Firebase database
+   * location for this device's remote ID, override it to use a different backend.
+   */
+  protected RemoteTransport createTransport() {
+    FirebaseRemoteTransport firebaseTransport =
+        new FirebaseRemoteTransport(FirebaseDatabase.getInstance().getReference(
+            String.format(Locale.getDefault(), REFERENCE_FORMAT, remoteId)));
+    firebaseTransport.setLatencyTracker(getLatencyTracker());
+    return firebaseTransport;
+  }
+
+  /**
+   * Sets whether to write a trace of how long each remote change took to go from the controller
+   * to the variables' callbacks, per stage, to {@code remixerTraces/<remote ID>/<key>} in Firebase.
+   * See {@link SyncLatencyTracker}.
+   */
+  public void setEchoesTraces(boolean echoesTraces) {
+    if (!echoesTraces) {
+      getLatencyTracker().setTraceListener(null);
+      return;
+    }
+    final DatabaseReference tracesReference = FirebaseDatabase.getInstance().getReference(
+        String.format(Locale.getDefault(), TRACES_REFERENCE_FORMAT, remoteId));
+    getLatencyTracker().setTraceListener(new SyncLatencyTracker.TraceListener() {
+      @Override
+      public void onTrace(SyncLatencyTracker.Trace trace) {
+        Map<String, Object> stages = new HashMap<>();
+        for (int i = 0; i < SyncLatencyTracker.STAGE_COUNT; i++) {
+          long micros = trace.getStageMicros(i);
+          if (micros >= 0) {
+            stages.put(SyncLatencyTracker.getStageName(i), micros);
+          }
+        }
+        Map<String, Object> value = new HashMap<>();
+        value.put(TRACE_TIMESTAMP, trace.getTimestampMillis());
+        value.put(TRACE_STAGES, stages);
+        tracesReference.child(trace.getKey()).setValue(value);
+      }
+    });
   }
 
   /**
@@ -128,8 +318,11 @@ public class FirebaseRemoteControllerSyncer
   public synchronized void stopSharing() {
     if (sharing) {
       sharing = false;
-      reference.removeEventListener(this);
-      reference.removeValue();
+      getConnectedReference().removeEventListener(connectionListener);
+      transport.setListener(null);
+      changeBuffer.discard();
+      clearRemoteController();
+      transport.setConnected(false);
     }
     notifyListeners();
   }
@@ -153,6 +346,19 @@ public class FirebaseRemoteControllerSyncer
     }
   }
 
+  @Override
+  public void dump(PrintWriter writer) {
+    super.dump(writer);
+    writer.println(String.format(
+        Locale.getDefault(),
+        "  sharing: %b, connected: %b",
+        sharing,
+        transport != null && transport.isConnected()));
+    outbox.dump(writer, "  ");
+    writer.println("  latency:");
+    getLatencyTracker().dump(writer, "    ");
+  }
+
   /**
    * Returns true if it is currently sharing up to firebase.
    */
@@ -161,7 +367,7 @@ public class FirebaseRemoteControllerSyncer
   }
 
   /**
-   * Syncs a variable up to the remote controller.
+   * Syncs a variable up to the remote controller, once the pending changes are flushed.
    *
    * <p>Since the local app is the source of truth, this ignores any differences there may be
    * between the local data and the remote data and just rewrites any remote data. This should not
@@ -170,7 +376,58 @@ public class FirebaseRemoteControllerSyncer
    */
   private synchronized void syncVariableToRemoteController(StoredVariable variable) {
     if (sharing) {
-      reference.child(variable.getKey()).setValue(variable);
+      remoteVariables.put(variable.getKey(), variable);
+      writeBuffer.write(variable);
+    }
+  }
+
+  /**
+   * Makes the remote controller hold exactly the variables in {@code currentContext}, sending only
+   * the ones that are missing or have a different value remotely and removing the rest.
+   */
+  private synchronized void reconcileRemoteController(Object currentContext) {
+    if (!sharing) {
+      return;
+    }
+    Map<String, StoredVariable> contextVariables = new HashMap<>();
+    List<Variable> variables = Remixer.getInstance().getVariablesWithContext(currentContext);
+    if (variables != null) {
+      for (Variable<?> variable : variables) {
+        contextVariables.put(variable.getKey(), createStoredCopy(variable));
+      }
+    }
+    for (String key : new ArrayList<>(remoteVariables.keySet())) {
+      if (!contextVariables.containsKey(key)) {
+        remoteVariables.remove(key);
+        writeBuffer.remove(key);
+      }
+    }
+    for (StoredVariable variable : contextVariables.values()) {
+      if (!variable.equals(remoteVariables.get(variable.getKey()))) {
+        syncVariableToRemoteController(variable);
+      }
+    }
+    flushRemoteWrites();
+  }
+
+  /**
+   * Sends all the buffered changes to the remote controller in a single multi-path update.
+   */
+  private synchronized void flushRemoteWrites() {
+    if (writeBuffer != null) {
+      writeBuffer.flush();
+    }
+  }
+
+  /**
+   * Removes all the values from the remote controller, along with any changes that were not sent
+   * yet since they would be stale.
+   */
+  private synchronized void clearRemoteController() {
+    remoteVariables.clear();
+    if (transport != null) {
+      writeBuffer.discard();
+      transport.clear();
     }
   }
 
@@ -178,13 +435,13 @@ public class FirebaseRemoteControllerSyncer
   @Override
   public void onAddingVariable(Variable variable) {
     super.onAddingVariable(variable);
-    syncVariableToRemoteController(StoredVariable.fromVariable(variable));
+    syncVariableToRemoteController(createStoredCopy(variable));
   }
 
   @Override
   public void onValueChanged(Variable variable) {
     super.onValueChanged(variable);
-    syncVariableToRemoteController(StoredVariable.fromVariable(variable));
+    syncVariableToRemoteController(createStoredCopy(variable));
   }
 
   @Override
@@ -193,15 +450,7 @@ public class FirebaseRemoteControllerSyncer
     if ((context == null && currentContext != null) ||
         (context != null && currentContext != context.get())) {
       context = new WeakReference<Object>(currentContext);
-      if (reference != null) {
-        reference.removeValue();
-      }
-      List<Variable> variables = Remixer.getInstance().getVariablesWithContext(currentContext);
-      if (variables != null) {
-        for (Variable<?> var : variables) {
-          syncVariableToRemoteController(StoredVariable.fromVariable(var));
-        }
-      }
+      reconcileRemoteController(currentContext);
     }
   }
 
@@ -209,51 +458,28 @@ public class FirebaseRemoteControllerSyncer
   public void onContextRemoved(Object currentContext) {
     super.onContextRemoved(currentContext);
     if (context != null && context.get() == currentContext) {
-      if (reference != null) {
-        reference.removeValue();
-      }
+      // The remote controller keeps the variables until the next context replaces them, which is
+      // usually the same ones again when the activity is being recreated.
       context = null;
     }
   }
 
-  // Implementation of ChildEventListener
+  // Implementation of RemoteTransport.Listener, called by the change buffer right before a frame.
   @Override
-  public void onChildAdded(DataSnapshot dataSnapshot, String childKey) {
-    // Add it to serializableRemixerContents if it does not exist. If it does exist let the local
-    // value take precedence and ignore the one coming from firebase.
-    if (!serializableRemixerContents.keySet().contains(childKey)) {
-      serializableRemixerContents.addItem(
-          FirebaseSerializationHelper.deserializeStoredVariable(dataSnapshot));
-    }
+  public void onRemoteVariableAdded(StoredVariable variable) {
+    // Add it if it does not exist. If it does exist let the local value take precedence and ignore
+    // the one coming from firebase.
+    addRemoteVariable(variable);
   }
 
   @Override
-  @SuppressWarnings("unchecked")
-  // There is no way to check this without knowing the type in advance
-  public void onChildChanged(DataSnapshot dataSnapshot, String childKey) {
-    StoredVariable storedVariable =
-        FirebaseSerializationHelper.deserializeStoredVariable(dataSnapshot);
-    serializableRemixerContents.setValue(storedVariable);
-    Object valueFromFirebase = Remixer.getDataType(storedVariable.getDataType())
-        .getConverter().toRuntimeType(storedVariable.getSelectedValue());
-    for (Variable variable : Remixer.getInstance().getVariablesWithKey(storedVariable.getKey())) {
-      variable.setValueWithoutNotifyingOthers(valueFromFirebase);
+  public void onRemoteVariableChanged(StoredVariable variable) {
+    synchronized (this) {
+      if (remoteVariables.containsKey(variable.getKey())) {
+        remoteVariables.put(variable.getKey(), variable);
+      }
     }
-  }
-
-  @Override
-  public void onChildRemoved(DataSnapshot dataSnapshot) {
-    // This shouldn't happen.
-  }
-
-  @Override
-  public void onChildMoved(DataSnapshot dataSnapshot, String childKey) {
-    // This shouldn't happen.
-  }
-
-  @Override
-  public void onCancelled(DatabaseError databaseError) {
-    // Ignoring errors for the time being
+    applyRemoteValue(variable);
   }
 
   public void addSharingStatusListener(@NonNull SharingStatusListener listener) {
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.storage;
+
+import android.util.Log;
+import com.google.android.libraries.remixer.serialization.StoredVariable;
+import com.google.android.libraries.remixer.sync.RemoteTransport;
+import com.google.android.libraries.remixer.sync.SyncLatencyTracker;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link RemoteTransport} that exchanges variables through a Firebase Realtime Database
+ * location, with one child per variable key.
+ *
+ * <p>Each variable is written in full the first time and whenever its definition changes. After
+ * that only its value, version and timestamp are written, since the rest of the child is already
+ * there.
+ */
+public class FirebaseRemoteTransport implements RemoteTransport, ChildEventListener {
+
+  private static final String TAG = "FirebaseRemoteTransport";
+
+  private final DatabaseReference reference;
+  private RemoteTransport.Listener listener;
+  private volatile SyncLatencyTracker latencyTracker;
+
+  /**
+   * Latest copy of each variable in the database, keyed by variable key, to tell whether its
+   * definition is already there. All accesses must be synchronized.
+   */
+  private final Map<String, StoredVariable> knownVariables = new HashMap<>();
+
+  public FirebaseRemoteTransport(DatabaseReference reference) {
+    this.reference = reference;
+  }
+
+  /**
+   * Sends all the variables and removals in a single multi-path update.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized void send(
+      Map<String, StoredVariable> variables, Collection<String> removedKeys) {
+    Map<String, Object> update = new HashMap<>();
+    for (StoredVariable variable : variables.values()) {
+      String key = variable.getKey();
+      StoredVariable known = knownVariables.put(key, variable);
+      if (known != null && known.hasSameDefinitionAs(variable)) {
+        update.put(key + "/" + StoredVariable.SELECTED_VALUE, variable.getSelectedValue());
+        if (variable.getClock() != 0) {
+          update.put(key + "/" + StoredVariable.CLOCK, variable.getClock());
+          update.put(key + "/" + StoredVariable.ORIGIN, variable.getOrigin());
+        }
+        if (variable.getTimestamp() != 0) {
+          update.put(key + "/" + StoredVariable.TIMESTAMP, variable.getTimestamp());
+        }
+      } else {
+        update.put(key, variable);
+      }
+    }
+    for (String key : removedKeys) {
+      // A null value in a multi-path update removes the child.
+      update.put(key, null);
+      knownVariables.remove(key);
+    }
+    reference.updateChildren(update);
+  }
+
+  @Override
+  public synchronized void clear() {
+    knownVariables.clear();
+    reference.removeValue();
+  }
+
+  @Override
+  public synchronized void setListener(RemoteTransport.Listener listener) {
+    if (this.listener == null && listener != null) {
+      reference.addChildEventListener(this);
+    } else if (this.listener != null && listener == null) {
+      reference.removeEventListener(this);
+    }
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the tracker to report received variables to, or null to stop reporting them.
+   */
+  public void setLatencyTracker(SyncLatencyTracker latencyTracker) {
+    this.latencyTracker = latencyTracker;
+  }
+
+  // Implementation of ChildEventListener
+  @Override
+  public void onChildAdded(DataSnapshot dataSnapshot, String childKey) {
+    long startNanos = System.nanoTime();
+    StoredVariable variable = FirebaseSerializationHelper.deserializeStoredVariable(dataSnapshot);
+    RemoteTransport.Listener currentListener = onReceived(variable, startNanos);
+    if (currentListener != null) {
+      currentListener.onRemoteVariableAdded(variable);
+    }
+  }
+
+  @Override
+  public void onChildChanged(DataSnapshot dataSnapshot, String childKey) {
+    long startNanos = System.nanoTime();
+    StoredVariable variable = FirebaseSerializationHelper.deserializeStoredVariable(dataSnapshot);
+    RemoteTransport.Listener currentListener = onReceived(variable, startNanos);
+    if (currentListener != null) {
+      currentListener.onRemoteVariableChanged(variable);
+    }
+  }
+
+  @Override
+  public synchronized void onChildRemoved(DataSnapshot dataSnapshot) {
+    // This shouldn't happen, but if it does the next write for this key has to be a full one.
+    knownVariables.remove(dataSnapshot.getKey());
+  }
+
+  @Override
+  public void onChildMoved(DataSnapshot dataSnapshot, String childKey) {
+    // This shouldn't happen.
+  }
+
+  @Override
+  public void onCancelled(DatabaseError databaseError) {
+    // Firebase stops calling this listener, so changes made remotely no longer reach the app.
+    Log.w(TAG, "Stopped receiving remote changes: " + databaseError.getMessage());
+    synchronized (this) {
+      listener = null;
+    }
+  }
+
+  /**
+   * Records what the database has for {@code variable}'s key, which started being deserialized at
+   * {@code startNanos}, and returns the listener to notify.
+   */
+  private RemoteTransport.Listener onReceived(StoredVariable variable, long startNanos) {
+    long receivedNanos = System.nanoTime();
+    RemoteTransport.Listener currentListener;
+    synchronized (this) {
+      knownVariables.put(variable.getKey(), variable);
+      currentListener = listener;
+    }
+    SyncLatencyTracker currentTracker = latencyTracker;
+    if (currentTracker != null && currentListener != null) {
+      currentTracker.recordReceived(variable, receivedNanos, receivedNanos - startNanos);
+    }
+    return currentListener;
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.google.android.libraries.remixer.storage;
 
+import static com.google.android.libraries.remixer.serialization.StoredVariable.CLOCK;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.CONSTRAINT_TYPE;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.DATA_TYPE;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.INCREMENT;
@@ -23,7 +24,9 @@ import static com.google.android.libraries.remixer.serialization.StoredVariable.
 import static com.google.android.libraries.remixer.serialization.StoredVariable.LIMITED_TO_VALUES;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.MAX_VALUE;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.MIN_VALUE;
+import static com.google.android.libraries.remixer.serialization.StoredVariable.ORIGIN;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.SELECTED_VALUE;
+import static com.google.android.libraries.remixer.serialization.StoredVariable.TIMESTAMP;
 import static com.google.android.libraries.remixer.serialization.StoredVariable.TITLE;
 
 import com.google.android.libraries.remixer.DataType;
@@ -96,6 +99,13 @@ class FirebaseSerializationHelper {
       variable.setIncrement(
           getValue(dataSnapshot, INCREMENT, dataType.getSerializableType()));
     }
+    if (dataSnapshot.hasChild(CLOCK)) {
+      variable.setClock(getValue(dataSnapshot, CLOCK, Long.class));
+      variable.setOrigin(getValue(dataSnapshot, ORIGIN, String.class));
+    }
+    if (dataSnapshot.hasChild(TIMESTAMP)) {
+      variable.setTimestamp(getValue(dataSnapshot, TIMESTAMP, Long.class));
+    }
     return variable;
   }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import com.google.android.libraries.remixer.sync.RemoteWriteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs tasks on the main thread right before a frame is drawn, at least the given delay after they
+ * are scheduled, so that whatever they change shows up in that frame. A delay of 0 means the next
+ * frame.
+ *
+ * <p>Tasks can be scheduled and cancelled from any thread. Scheduling from the main thread posts
+ * the frame callback right away; from other threads it is posted through the main thread's handler
+ * first, since {@link Choreographer} can only be used from the main thread, and cancelling a task
+ * also drops it if it is still waiting for that.
+ */
+class FrameScheduler implements RemoteWriteBuffer.Scheduler {
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Frame callbacks posted for each scheduled task, only accessed on the main thread.
+   */
+  private final Map<Runnable, Choreographer.FrameCallback> frameCallbacks = new HashMap<>();
+
+  /**
+   * Runnables posted to the handler to post the frame callback of each task scheduled from a
+   * thread other than the main one. All accesses must be synchronized.
+   */
+  private final Map<Runnable, Runnable> pendingPosts = new HashMap<>();
+
+  @Override
+  public void schedule(final Runnable task, final long delayMs) {
+    if (isMainThread()) {
+      removePendingPost(task);
+      postFrameCallback(task, delayMs);
+      return;
+    }
+    Runnable post = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (FrameScheduler.this) {
+          if (pendingPosts.get(task) != this) {
+            // Cancelled or scheduled again since.
+            return;
+          }
+          pendingPosts.remove(task);
+        }
+        postFrameCallback(task, delayMs);
+      }
+    };
+    synchronized (this) {
+      Runnable previous = pendingPosts.put(task, post);
+      if (previous != null) {
+        handler.removeCallbacks(previous);
+      }
+    }
+    handler.post(post);
+  }
+
+  @Override
+  public void cancel(final Runnable task) {
+    removePendingPost(task);
+    if (isMainThread()) {
+      removeFrameCallback(task);
+    } else {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          removeFrameCallback(task);
+        }
+      });
+    }
+  }
+
+  private synchronized void removePendingPost(Runnable task) {
+    Runnable post = pendingPosts.remove(task);
+    if (post != null) {
+      handler.removeCallbacks(post);
+    }
+  }
+
+  private void postFrameCallback(final Runnable task, long delayMs) {
+    Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+      @Override
+      public void doFrame(long frameTimeNanos) {
+        frameCallbacks.remove(task);
+        task.run();
+      }
+    };
+    removeFrameCallback(task);
+    frameCallbacks.put(task, callback);
+    Choreographer.getInstance().postFrameCallbackDelayed(callback, delayMs);
+  }
+
+  private void removeFrameCallback(Runnable task) {
+    Choreographer.FrameCallback callback = frameCallbacks.remove(task);
+    if (callback != null) {
+      Choreographer.getInstance().removeFrameCallback(callback);
+    }
+  }
+
+  private static boolean isMainThread() {
+    return Looper.myLooper() == Looper.getMainLooper();
+  }
+}
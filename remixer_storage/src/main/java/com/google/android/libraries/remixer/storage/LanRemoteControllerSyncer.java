@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.storage;
+
+import com.google.android.libraries.remixer.sync.LanRemoteControlServer;
+import com.google.android.libraries.remixer.sync.RemoteValueSyncing;
+import com.google.android.libraries.remixer.sync.SyncLatencyTracker;
+import com.google.android.libraries.remixer.sync.SynchronizationMechanism;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@link SynchronizationMechanism} that lets remote controllers connect straight to the device,
+ * through a {@link LanRemoteControlServer} running in the app.
+ *
+ * <p>Unlike {@link FirebaseRemoteControllerSyncer} no change goes through a hosted backend, so
+ * changes show up within a frame and it works on networks without internet access. Values are not
+ * persisted.
+ *
+ * <p>This is meant for debug builds only. By default the server only listens on the loopback
+ * interface, so remote controllers connect through {@code adb forward}; pass an address to
+ * {@link #LanRemoteControllerSyncer(InetAddress, int, long, long)} to let other hosts on the
+ * network connect. Either way remote controllers need the session token from {@link #getToken()},
+ * see {@link LanRemoteControlServer} for the details.
+ *
+ * <p>The app needs the {@code android.permission.INTERNET} permission, which it has to request in
+ * its own (debug) manifest. Call {@link #close()} to stop the server.
+ */
+public class LanRemoteControllerSyncer extends RemoteValueSyncing {
+
+  /**
+   * Default port the server listens on.
+   */
+  public static final int DEFAULT_PORT = 8089;
+
+  /**
+   * Default time to buffer outgoing changes before sending them, in milliseconds. Half a frame at
+   * 60fps, so that changes made in a single frame go out together.
+   */
+  public static final long DEFAULT_REMOTE_FLUSH_DELAY_MS = 8;
+
+  /**
+   * Default time to buffer incoming changes before applying them, in milliseconds. Changes are
+   * always applied right before a frame, 0 means the next one.
+   */
+  public static final long DEFAULT_REMOTE_APPLY_DELAY_MS = 0;
+
+  private final LanRemoteControlServer server;
+
+  /**
+   * Starts a server on {@link #DEFAULT_PORT} of the loopback interface.
+   *
+   * @throws IOException if the port cannot be used.
+   */
+  public LanRemoteControllerSyncer() throws IOException {
+    this(DEFAULT_PORT, DEFAULT_REMOTE_FLUSH_DELAY_MS, DEFAULT_REMOTE_APPLY_DELAY_MS);
+  }
+
+  /**
+   * Starts a server on {@code port} of the loopback interface, or on any free port if it is 0, that
+   * buffers outgoing changes for {@code remoteFlushDelayMs} milliseconds and incoming ones for
+   * {@code remoteApplyDelayMs} milliseconds.
+   *
+   * @throws IOException if the port cannot be used.
+   */
+  public LanRemoteControllerSyncer(int port, long remoteFlushDelayMs, long remoteApplyDelayMs)
+      throws IOException {
+    this(new LanRemoteControlServer(port), remoteFlushDelayMs, remoteApplyDelayMs);
+  }
+
+  /**
+   * Like {@link #LanRemoteControllerSyncer(int, long, long)}, but listening on
+   * {@code bindAddress}, for example the wildcard address to accept connections from the local
+   * network. Only do this on a trusted network.
+   *
+   * @throws IOException if the address or port cannot be used.
+   */
+  public LanRemoteControllerSyncer(
+      InetAddress bindAddress, int port, long remoteFlushDelayMs, long remoteApplyDelayMs)
+      throws IOException {
+    this(new LanRemoteControlServer(bindAddress, port), remoteFlushDelayMs, remoteApplyDelayMs);
+  }
+
+  private LanRemoteControllerSyncer(
+      LanRemoteControlServer server, long remoteFlushDelayMs, long remoteApplyDelayMs) {
+    super(server, new FrameScheduler(), remoteFlushDelayMs, remoteApplyDelayMs);
+    this.server = server;
+    server.setLatencyTracker(getLatencyTracker());
+    server.start();
+  }
+
+  /**
+   * Returns the port the server is listening on.
+   */
+  public int getPort() {
+    return server.getPort();
+  }
+
+  /**
+   * Returns the token remote controllers must send with every request, as the {@code token} query
+   * parameter.
+   */
+  public String getToken() {
+    return server.getToken();
+  }
+
+  /**
+   * Allows web pages from {@code origin} to connect, see
+   * {@link LanRemoteControlServer#addAllowedOrigin(String)}.
+   */
+  public void addAllowedOrigin(String origin) {
+    server.addAllowedOrigin(origin);
+  }
+
+  /**
+   * Returns the URLs remote controllers can use to reach this device. That is the address the
+   * server listens on or, if it listens on all of them, one per IPv4 address of the network
+   * interfaces other than loopback.
+   */
+  public List<String> getRemoteUrls() {
+    List<String> urls = new ArrayList<>();
+    InetAddress boundAddress = server.getAddress();
+    if (!boundAddress.isAnyLocalAddress()) {
+      urls.add(String.format(
+          Locale.getDefault(), "http://%s:%d", boundAddress.getHostAddress(), getPort()));
+      return urls;
+    }
+    try {
+      for (NetworkInterface networkInterface
+          : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+        if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+          continue;
+        }
+        for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+          if (address instanceof Inet4Address) {
+            urls.add(String.format(
+                Locale.getDefault(), "http://%s:%d", address.getHostAddress(), getPort()));
+          }
+        }
+      }
+    } catch (SocketException e) {
+      // Without network interfaces there is no URL to return.
+    }
+    return urls;
+  }
+
+  /**
+   * Sets whether to send remote controllers a trace of how long each of their changes took to go
+   * from the controller to the variables' callbacks, per stage. See {@link SyncLatencyTracker}.
+   */
+  public void setEchoesTraces(boolean echoesTraces) {
+    getLatencyTracker().setTraceListener(echoesTraces ? new SyncLatencyTracker.TraceListener() {
+      @Override
+      public void onTrace(SyncLatencyTracker.Trace trace) {
+        server.sendTrace(trace);
+      }
+    } : null);
+  }
+
+  /**
+   * Writes a human-readable summary of the connected remote controllers, of how many bytes were
+   * sent to them per value, and of how long their changes took to apply, to {@code writer}, such
+   * as from {@code Activity#dump}.
+   */
+  public void dump(PrintWriter writer) {
+    writer.println(getClass().getSimpleName() + ":");
+    server.dump(writer, "  ");
+    writer.println("  latency:");
+    getLatencyTracker().dump(writer, "    ");
+  }
+
+  /**
+   * Stops the server and disconnects all remote controllers.
+   */
+  @Override
+  public void close() {
+    super.close();
+    try {
+      server.close();
+    } catch (IOException e) {
+      // The server socket is gone either way.
+    }
+  }
+}
@@ -17,48 +17,274 @@
 package com.google.android.libraries.remixer.storage;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import com.google.android.libraries.remixer.Variable;
-import com.google.android.libraries.remixer.serialization.GsonProvider;
-import com.google.android.libraries.remixer.serialization.StoredVariable;
-import com.google.android.libraries.remixer.sync.LocalValueSyncing;
-import com.google.gson.Gson;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.google.android.libraries.remixer.sync.EvictionPolicy;
+import com.google.android.libraries.remixer.sync.KeyValueStore;
+import com.google.android.libraries.remixer.sync.KeyValueStoreSyncing;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * A {@link com.google.android.libraries.remixer.sync.SynchronizationMechanism} that stores values
- * in a SharedPreferences object.
+ * in a {@link KeyValueStore}, by default a SharedPreferences object.
+ *
+ * <p>Writes are deferred: changed keys are marked dirty and written together in a single
+ * {@link KeyValueStore#commit(java.util.Map, java.util.Collection)} call once no changes have
+ * happened for a while (the flush delay), or at the latest after the maximum staleness has passed
+ * since the oldest unwritten change. Repeated changes to the same key in that window (such as
+ * dragging a SeekBar) result in one write. Pending changes are also written when the current
+ * context is removed, that is when the foreground activity is paused, and can be written at any
+ * time on the main thread with {@link #flush()}. Changes made in a batch (see
+ * {@link com.google.android.libraries.remixer.Remixer#beginBatch()}) are committed as one group as
+ * soon as the batch finishes.
+ *
+ * <p>Values can be loaded in the background by passing a load {@link Executor}, see
+ * {@link KeyValueStoreSyncing} for how variables added before loading finishes are handled.
+ * Without one, values are loaded on the calling thread, and so is the one-time rewrite of values
+ * stored by an older version of Remixer. Every constructor also has a variant that takes an
+ * {@link EvictionPolicy}, usually created with {@link #createEvictionPolicy(Context, int, long)},
+ * to drop the values of variables that have not been used for a while.
+ *
+ * <p>The cost of persisting values is recorded in {@link #getStorageStats()}. To see it with
+ * {@code adb shell dumpsys activity <activity>}, call {@link #dump(PrintWriter)} from your
+ * activity's {@code dump} method.
  */
-public class LocalStorage extends LocalValueSyncing {
+public class LocalStorage extends KeyValueStoreSyncing {
+
+  /**
+   * Default time to wait for further changes before writing to storage, in milliseconds.
+   */
+  public static final long DEFAULT_FLUSH_DELAY_MS = 250;
+
+  /**
+   * Default maximum time a change may wait before being written to storage, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_STALENESS_MS = 1000;
 
   private static final String PREFERENCES_FILE_NAME = "remixer_local_storage";
-  private final SharedPreferences preferences;
-  private final Gson gson;
+  private static final String METADATA_PREFERENCES_FILE_NAME = "remixer_local_storage_metadata";
+  private final Handler handler;
+  private final long flushDelayMs;
+  private final long maxStalenessMs;
+
+  /**
+   * Keys whose values have not been written to storage yet. All accesses must be synchronized on
+   * this set.
+   */
+  private final Set<String> dirtyKeys = new LinkedHashSet<>();
+
+  /**
+   * Uptime, in milliseconds, of the oldest change in {@link #dirtyKeys}.
+   */
+  private long oldestChangeUptimeMs;
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
 
   public LocalStorage(Context context) {
-    preferences = context.getSharedPreferences(PREFERENCES_FILE_NAME, Context.MODE_PRIVATE);
-    gson = GsonProvider.getInstance();
-    for (Object data : preferences.getAll().values()) {
-      // Assume all objects are actually JSON strings.
-      StoredVariable<?> variable = gson.fromJson(data.toString(), StoredVariable.class);
-      serializableRemixerContents.addItem(variable);
+    this(context, DEFAULT_FLUSH_DELAY_MS, DEFAULT_MAX_STALENESS_MS);
+  }
+
+  /**
+   * Creates a LocalStorage that waits {@code flushDelayMs} milliseconds without changes before
+   * writing them, but never keeps a change unwritten for more than {@code maxStalenessMs}.
+   */
+  public LocalStorage(Context context, long flushDelayMs, long maxStalenessMs) {
+    this(context, null, flushDelayMs, maxStalenessMs);
+  }
+
+  /**
+   * Creates a LocalStorage like {@link #LocalStorage(Context, long, long)} that does not load the
+   * values that {@code evictionPolicy} evicts.
+   *
+   * @see #createEvictionPolicy(Context, int, long)
+   */
+  public LocalStorage(
+      Context context, EvictionPolicy evictionPolicy, long flushDelayMs, long maxStalenessMs) {
+    this(createStore(context), evictionPolicy, flushDelayMs, maxStalenessMs);
+  }
+
+  /**
+   * Creates a LocalStorage that loads the stored values on {@code loadExecutor} and returns
+   * immediately, so it can be created in {@code Application.onCreate} without delaying startup.
+   */
+  public LocalStorage(Context context, Executor loadExecutor) {
+    this(context, null, loadExecutor);
+  }
+
+  /**
+   * Creates a LocalStorage like {@link #LocalStorage(Context, Executor)} that does not load the
+   * values that {@code evictionPolicy} evicts.
+   *
+   * @see #createEvictionPolicy(Context, int, long)
+   */
+  public LocalStorage(Context context, EvictionPolicy evictionPolicy, Executor loadExecutor) {
+    this(
+        createStore(context),
+        evictionPolicy,
+        loadExecutor,
+        DEFAULT_FLUSH_DELAY_MS,
+        DEFAULT_MAX_STALENESS_MS);
+  }
+
+  /**
+   * Creates a LocalStorage that persists values to {@code store} instead of SharedPreferences.
+   */
+  public LocalStorage(KeyValueStore store, long flushDelayMs, long maxStalenessMs) {
+    this(store, (EvictionPolicy) null, flushDelayMs, maxStalenessMs);
+  }
+
+  /**
+   * Creates a LocalStorage that persists values to {@code store}, and loads them right away except
+   * for those that {@code evictionPolicy} evicts.
+   *
+   * @see #createEvictionPolicy(Context, int, long)
+   */
+  public LocalStorage(
+      KeyValueStore store, EvictionPolicy evictionPolicy, long flushDelayMs, long maxStalenessMs) {
+    super(store, evictionPolicy);
+    checkIntervals(flushDelayMs, maxStalenessMs);
+    handler = new Handler(Looper.getMainLooper());
+    this.flushDelayMs = flushDelayMs;
+    this.maxStalenessMs = maxStalenessMs;
+  }
+
+  /**
+   * Creates a LocalStorage that persists values to {@code store} and loads them on
+   * {@code loadExecutor}. The loaded values are applied on the main thread.
+   */
+  public LocalStorage(
+      KeyValueStore store, Executor loadExecutor, long flushDelayMs, long maxStalenessMs) {
+    this(store, null, loadExecutor, flushDelayMs, maxStalenessMs);
+  }
+
+  /**
+   * Creates a LocalStorage that persists values to {@code store}, and loads them on
+   * {@code loadExecutor} except for those that {@code evictionPolicy} evicts. The loaded values
+   * are applied on the main thread.
+   *
+   * @see #createEvictionPolicy(Context, int, long)
+   */
+  public LocalStorage(
+      KeyValueStore store,
+      EvictionPolicy evictionPolicy,
+      Executor loadExecutor,
+      long flushDelayMs,
+      long maxStalenessMs) {
+    super(store, evictionPolicy, loadExecutor, new MainThreadExecutor());
+    checkIntervals(flushDelayMs, maxStalenessMs);
+    handler = new Handler(Looper.getMainLooper());
+    this.flushDelayMs = flushDelayMs;
+    this.maxStalenessMs = maxStalenessMs;
+  }
+
+  /**
+   * Creates an {@link EvictionPolicy} that keeps its metadata in SharedPreferences, and evicts
+   * values whose variables have not been added for more than {@code maxUnusedLaunches} launches
+   * and {@code maxUnusedMillis} milliseconds.
+   */
+  public static EvictionPolicy createEvictionPolicy(
+      Context context, int maxUnusedLaunches, long maxUnusedMillis) {
+    return new EvictionPolicy(
+        new SharedPreferencesKeyValueStore(
+            context.getSharedPreferences(METADATA_PREFERENCES_FILE_NAME, Context.MODE_PRIVATE)),
+        maxUnusedLaunches,
+        maxUnusedMillis);
+  }
+
+  private static KeyValueStore createStore(Context context) {
+    return new SharedPreferencesKeyValueStore(
+        context.getSharedPreferences(PREFERENCES_FILE_NAME, Context.MODE_PRIVATE));
+  }
+
+  private static void checkIntervals(long flushDelayMs, long maxStalenessMs) {
+    if (flushDelayMs < 0 || maxStalenessMs < flushDelayMs) {
+      throw new IllegalArgumentException(
+          "The flush delay must be non-negative and not larger than the maximum staleness");
     }
   }
 
-  private void writeVariable(final String key) {
-    SharedPreferences.Editor editor = preferences.edit();
-    editor.putString(key, gson.toJson(serializableRemixerContents.getItem(key)));
-    editor.apply();
+  /**
+   * Marks {@code key} as changed and schedules a flush.
+   */
+  @Override
+  protected void writeVariable(String key) {
+    long now = SystemClock.uptimeMillis();
+    synchronized (dirtyKeys) {
+      if (dirtyKeys.isEmpty()) {
+        oldestChangeUptimeMs = now;
+      }
+      dirtyKeys.add(key);
+      handler.removeCallbacks(flushRunnable);
+      handler.postAtTime(
+          flushRunnable, Math.min(now + flushDelayMs, oldestChangeUptimeMs + maxStalenessMs));
+    }
+  }
+
+  /**
+   * Writes all pending changes to storage in a single transaction. Must be called on the main
+   * thread, the same one Remixer is used from.
+   *
+   * @throws IllegalStateException if called on any other thread.
+   */
+  public void flush() {
+    if (Looper.myLooper() != Looper.getMainLooper()) {
+      throw new IllegalStateException("LocalStorage must be flushed on the main thread");
+    }
+    List<String> keys;
+    synchronized (dirtyKeys) {
+      handler.removeCallbacks(flushRunnable);
+      if (dirtyKeys.isEmpty()) {
+        return;
+      }
+      keys = new ArrayList<>(dirtyKeys);
+      dirtyKeys.clear();
+    }
+    writeVariables(keys);
   }
 
   @Override
-  public void onAddingVariable(Variable variable) {
-    super.onAddingVariable(variable);
-    writeVariable(variable.getKey());
+  public void dump(PrintWriter writer) {
+    super.dump(writer);
+    int pendingKeys;
+    synchronized (dirtyKeys) {
+      pendingKeys = dirtyKeys.size();
+    }
+    writer.println(String.format(
+        Locale.getDefault(),
+        "  pending keys: %d, flush delay: %d ms, max staleness: %d ms",
+        pendingKeys,
+        flushDelayMs,
+        maxStalenessMs));
   }
 
   @Override
-  public void onValueChanged(Variable variable) {
-    super.onValueChanged(variable);
-    writeVariable(variable.getKey());
+  public void onContextRemoved(Object currentContext) {
+    super.onContextRemoved(currentContext);
+    flush();
+  }
+
+  /**
+   * Runs tasks on the main thread.
+   */
+  private static class MainThreadExecutor implements Executor {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable runnable) {
+      handler.post(runnable);
+    }
   }
 }
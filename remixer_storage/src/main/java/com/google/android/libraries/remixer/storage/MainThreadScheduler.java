@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.google.android.libraries.remixer.sync.RemoteWriteBuffer;
+
+/**
+ * Runs tasks on the main thread, where Remixer is used from, after a delay.
+ */
+class MainThreadScheduler implements RemoteWriteBuffer.Scheduler {
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  @Override
+  public void schedule(Runnable task, long delayMs) {
+    handler.postDelayed(task, delayMs);
+  }
+
+  @Override
+  public void cancel(Runnable task) {
+    handler.removeCallbacks(task);
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.storage;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.google.android.libraries.remixer.sync.EvictionPolicy;
+import com.google.android.libraries.remixer.sync.MultiProcessKeyValueStore;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A {@link LocalStorage} for apps that use Remixer from more than one process. Values changed in
+ * one process show up in the others while they are running, instead of after a restart.
+ *
+ * <p>Values are persisted to a {@link MultiProcessKeyValueStore} in the app's files directory
+ * instead of SharedPreferences, whose contents are cached separately in each process. A
+ * {@link FileObserver} notices when another process writes to it, and only the keys that process
+ * changed are read and applied, on the main thread. When two processes change the same value, the
+ * conflict is resolved by the value's Lamport clock version rather than by which process wrote it
+ * last: the value with the newer version wins (last-writer-wins on the version, see
+ * {@link com.google.android.libraries.remixer.serialization.StoredVariable#isNewerThan}), so all
+ * processes end up with the same value.
+ *
+ * <p>Call {@link #close()} once this is no longer used, to stop watching the file.
+ */
+public class MultiProcessLocalStorage extends LocalStorage
+    implements MultiProcessKeyValueStore.Listener {
+
+  private static final String TAG = "MultiProcessLocalStorage";
+  private static final String JOURNAL_FILE_NAME = "remixer_multiprocess_storage";
+
+  private final MultiProcessKeyValueStore multiProcessStore;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /**
+   * Kept in a field because it stops watching once it is garbage collected.
+   */
+  private final FileObserver fileObserver;
+
+  /**
+   * Creates a MultiProcessLocalStorage that persists values to the app's files directory.
+   *
+   * @throws IOException if the stored values cannot be read.
+   */
+  public MultiProcessLocalStorage(Context context) throws IOException {
+    this(context, null);
+  }
+
+  /**
+   * Creates a MultiProcessLocalStorage that persists values to the app's files directory, and does
+   * not load the values that {@code evictionPolicy} evicts.
+   *
+   * @throws IOException if the stored values cannot be read.
+   * @see LocalStorage#createEvictionPolicy(Context, int, long)
+   */
+  public MultiProcessLocalStorage(Context context, EvictionPolicy evictionPolicy)
+      throws IOException {
+    this(
+        new MultiProcessKeyValueStore(new File(context.getFilesDir(), JOURNAL_FILE_NAME)),
+        evictionPolicy,
+        DEFAULT_FLUSH_DELAY_MS,
+        DEFAULT_MAX_STALENESS_MS);
+  }
+
+  /**
+   * Creates a MultiProcessLocalStorage that persists values to {@code store}, see
+   * {@link LocalStorage#LocalStorage(com.google.android.libraries.remixer.sync.KeyValueStore, long,
+   * long)}.
+   */
+  public MultiProcessLocalStorage(
+      MultiProcessKeyValueStore store, long flushDelayMs, long maxStalenessMs) {
+    this(store, null, flushDelayMs, maxStalenessMs);
+  }
+
+  /**
+   * Creates a MultiProcessLocalStorage that persists values to {@code store}, and does not load
+   * the values that {@code evictionPolicy} evicts.
+   */
+  public MultiProcessLocalStorage(
+      MultiProcessKeyValueStore store,
+      EvictionPolicy evictionPolicy,
+      long flushDelayMs,
+      long maxStalenessMs) {
+    super(store, evictionPolicy, flushDelayMs, maxStalenessMs);
+    multiProcessStore = store;
+    store.setListener(this);
+    // Compaction renames a new file over the journal, so watch the directory instead of the file.
+    final File file = store.getFile();
+    fileObserver = new FileObserver(
+        file.getParent(), FileObserver.MODIFY | FileObserver.MOVED_TO) {
+      @Override
+      public void onEvent(int event, String path) {
+        if (!file.getName().equals(path)) {
+          return;
+        }
+        try {
+          // Returns right away for the events caused by this process's own appends.
+          multiProcessStore.checkForChanges();
+        } catch (IllegalStateException e) {
+          // Thrown on this observer's thread, it would take the whole process down. Changes are
+          // read again on the next event or write.
+          Log.w(TAG, "Could not read changes made by other processes", e);
+        }
+      }
+    };
+    fileObserver.startWatching();
+  }
+
+  /**
+   * Reads the changes other processes made right away, without waiting for the file to be
+   * observed.
+   */
+  public void checkForChanges() {
+    multiProcessStore.checkForChanges();
+  }
+
+  /**
+   * Writes the pending changes, stops watching for changes made by other processes and closes the
+   * store. Must be called on the main thread, and this instance must not be used afterwards.
+   *
+   * @throws IOException if the store cannot be closed.
+   */
+  public void close() throws IOException {
+    fileObserver.stopWatching();
+    multiProcessStore.setListener(null);
+    flush();
+    multiProcessStore.close();
+  }
+
+  @Override
+  public void onKeysChanged(final Set<String> keys) {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      onStoreChanged(keys);
+      return;
+    }
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        onStoreChanged(keys);
+      }
+    });
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.remixer.storage;
+
+import android.content.SharedPreferences;
+import com.google.android.libraries.remixer.sync.KeyValueStore;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link KeyValueStore} backed by a SharedPreferences object.
+ *
+ * <p>Batches of changes are written in a single editor transaction, applied asynchronously.
+ * SharedPreferences rewrites its whole file for every transaction and keeps a backup of the
+ * previous one until the write succeeds, so each transaction is atomic on disk.
+ */
+public class SharedPreferencesKeyValueStore implements KeyValueStore {
+
+  private final SharedPreferences preferences;
+
+  public SharedPreferencesKeyValueStore(SharedPreferences preferences) {
+    this.preferences = preferences;
+  }
+
+  @Override
+  public Map<String, String> getAll() {
+    Map<String, String> values = new HashMap<>();
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      // Assume all objects are actually JSON strings.
+      values.put(entry.getKey(), entry.getValue().toString());
+    }
+    return values;
+  }
+
+  @Override
+  public String get(String key) {
+    return preferences.getString(key, null);
+  }
+
+  @Override
+  public void putAll(Map<String, String> values) {
+    SharedPreferences.Editor editor = preferences.edit();
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      editor.putString(entry.getKey(), entry.getValue());
+    }
+    editor.apply();
+  }
+
+  @Override
+  public void removeAll(Collection<String> keys) {
+    SharedPreferences.Editor editor = preferences.edit();
+    for (String key : keys) {
+      editor.remove(key);
+    }
+    editor.apply();
+  }
+
+  @Override
+  public void commit(Map<String, String> values, Collection<String> removedKeys) {
+    SharedPreferences.Editor editor = preferences.edit();
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      editor.putString(entry.getKey(), entry.getValue());
+    }
+    for (String key : removedKeys) {
+      editor.remove(key);
+    }
+    editor.apply();
+  }
+}
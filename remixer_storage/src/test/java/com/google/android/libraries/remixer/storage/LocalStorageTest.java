@@ -29,6 +29,7 @@ import com.google.android.libraries.remixer.Variable;
 import com.google.android.libraries.remixer.serialization.GsonProvider;
 import com.google.android.libraries.remixer.serialization.StoredVariable;
 import com.google.gson.Gson;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -37,6 +38,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(
@@ -81,24 +83,30 @@ public class LocalStorageTest {
 
 
   @Test
-  public void writesToStorage() {
-    remixer.setSynchronizationMechanism(new LocalStorage(RuntimeEnvironment.application));
+  public void onlyWritesChangedValuesToStorage() {
+    LocalStorage storage = new LocalStorage(RuntimeEnvironment.application);
+    remixer.setSynchronizationMechanism(storage);
     remixer.addItem(booleanVariable);
     remixer.addItem(stringVariable);
     remixer.addItem(colorListVariable);
     remixer.addItem(rangeVariable);
+    storage.flush();
     SharedPreferences preferences =
         RuntimeEnvironment.application.getSharedPreferences(
             "remixer_local_storage", Context.MODE_PRIVATE);
+    Assert.assertTrue(preferences.getAll().isEmpty());
+    booleanVariable.setValue(true);
+    storage.flush();
     compareToStored(preferences, booleanVariable);
-    compareToStored(preferences, colorListVariable);
-    compareToStored(preferences, stringVariable);
-    compareToStored(preferences, rangeVariable);
+    Assert.assertEquals(1, preferences.getAll().size());
+    Assert.assertEquals(4, storage.getRegisteredKeyCount());
+    Assert.assertEquals(1, storage.getPersistedKeyCount());
   }
 
   @Test
   public void updatesValuesInStorage() {
-    remixer.setSynchronizationMechanism(new LocalStorage(RuntimeEnvironment.application));
+    LocalStorage storage = new LocalStorage(RuntimeEnvironment.application);
+    remixer.setSynchronizationMechanism(storage);
     remixer.addItem(booleanVariable);
     remixer.addItem(stringVariable);
     remixer.addItem(colorListVariable);
@@ -110,6 +118,7 @@ public class LocalStorageTest {
     colorListVariable.setValue(Color.BLUE);
     stringVariable.setValue("i am a not so random string but oh well I will do");
     rangeVariable.setValue(12.5f);
+    storage.flush();
     compareToStored(preferences, booleanVariable);
     compareToStored(preferences, colorListVariable);
     compareToStored(preferences, stringVariable);
@@ -119,25 +128,79 @@ public class LocalStorageTest {
   @Test
   public void readsValuesAlreadyStored() {
     Remixer helperInstance = new Remixer();
-    helperInstance.setSynchronizationMechanism(new LocalStorage(RuntimeEnvironment.application));
+    LocalStorage helperStorage = new LocalStorage(RuntimeEnvironment.application);
+    helperInstance.setSynchronizationMechanism(helperStorage);
     String differentValue =
         "This is a new value that has to remain when adding stringVariable to the other remixer";
     Variable<String> stringWithDifferentValue =
-        new StringVariableBuilder()
-            .setKey("string").setContext(differentValue).setInitialValue(differentValue).build();
+        new StringVariableBuilder().setKey("string").setContext(differentValue).build();
     helperInstance.addItem(stringWithDifferentValue);
+    stringWithDifferentValue.setValue(differentValue);
+    helperStorage.flush();
     // After this there should be a string variable with key string stored.
     remixer.setSynchronizationMechanism(new LocalStorage(RuntimeEnvironment.application));
     // Store the empty string variable with key string in the other instance of remixer.
     remixer.addItem(stringVariable);
     // Now stringVariable's value must be differentValue
     Assert.assertEquals(differentValue, stringVariable.getSelectedValue());
+    remixer.getSynchronizationMechanism().onContextRemoved(this);
+    SharedPreferences preferences =
+        RuntimeEnvironment.application.getSharedPreferences(
+            "remixer_local_storage", Context.MODE_PRIVATE);
+    compareToStored(preferences, stringVariable);
+  }
+
+  @Test
+  public void coalescesWritesUntilFlushed() {
+    LocalStorage storage = new LocalStorage(RuntimeEnvironment.application);
+    remixer.setSynchronizationMechanism(storage);
+    remixer.addItem(rangeVariable);
+    rangeVariable.setValue(0.5f);
+    storage.flush();
+    SharedPreferences preferences =
+        RuntimeEnvironment.application.getSharedPreferences(
+            "remixer_local_storage", Context.MODE_PRIVATE);
+    String storedJson = preferences.getString(rangeVariable.getKey(), "");
+    for (int i = 1; i <= 10; i++) {
+      rangeVariable.setValue((float) i);
+    }
+    // Nothing is written until the flush delay passes or the storage is flushed.
+    Assert.assertEquals(storedJson, preferences.getString(rangeVariable.getKey(), ""));
+    storage.onContextRemoved(this);
+    compareToStored(preferences, rangeVariable);
+  }
+
+  @Test
+  public void flushesAfterDelay() {
+    remixer.setSynchronizationMechanism(new LocalStorage(RuntimeEnvironment.application));
+    remixer.addItem(stringVariable);
+    stringVariable.setValue("written after the flush delay");
+    ShadowLooper.idleMainLooper(LocalStorage.DEFAULT_MAX_STALENESS_MS);
     SharedPreferences preferences =
         RuntimeEnvironment.application.getSharedPreferences(
             "remixer_local_storage", Context.MODE_PRIVATE);
     compareToStored(preferences, stringVariable);
   }
 
+  @Test
+  public void rejectsFlushesOffTheMainThread() throws InterruptedException {
+    final LocalStorage storage = new LocalStorage(RuntimeEnvironment.application);
+    final AtomicReference<RuntimeException> thrown = new AtomicReference<>();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          storage.flush();
+        } catch (RuntimeException e) {
+          thrown.set(e);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+    Assert.assertTrue(thrown.get() instanceof IllegalStateException);
+  }
+
   private void compareToStored(SharedPreferences preferences, Variable<?> variable) {
     String storedJson = preferences.getString(variable.getKey(), "");
     StoredVariable<?> inMemoryData = StoredVariable.fromVariable(variable);